@@ -0,0 +1,752 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Writes a result set as an Apache Arrow IPC stream. The rows are collected
+ * into record batches of column vectors whose type comes from the column's
+ * SQL type, so a reader such as pyarrow, pandas or DuckDB gets typed columns
+ * without parsing text. The stream is a schema message, one record batch
+ * message per batch and an end-of-stream marker. The message headers are
+ * flatbuffers, which are built here to avoid depending on the Arrow library.
+ * <p>
+ * Dates and timestamps carry no time zone. They are the local wall-clock
+ * values, as the text formats show them.
+ */
+class ArrowOutput {
+
+    /** Default number of rows in a record batch. */
+    static final int DEFAULT_BATCH_ROWS = 10000;
+
+    /** Arrow metadata version V5. */
+    private static final short METADATA_VERSION = 4;
+
+    /** Message header types. */
+    private static final byte HEADER_SCHEMA = 1;
+    private static final byte HEADER_RECORD_BATCH = 3;
+
+    /** Type union members. */
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_FLOATING_POINT = 3;
+    private static final byte TYPE_BINARY = 4;
+    private static final byte TYPE_UTF8 = 5;
+    private static final byte TYPE_BOOL = 6;
+    private static final byte TYPE_DECIMAL = 7;
+    private static final byte TYPE_DATE = 8;
+    private static final byte TYPE_TIME = 9;
+    private static final byte TYPE_TIMESTAMP = 10;
+
+    /** The largest precision of a 128-bit decimal. Wider decimals are written as text. */
+    private static final int MAX_DECIMAL_PRECISION = 38;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+
+    private final int batchRows;
+
+    /**
+     * Constructor.
+     *
+     * @param out - the stream to write to. It is flushed, not closed.
+     * @param batchRows - the number of rows in a record batch.
+     */
+    ArrowOutput(OutputStream out, int batchRows) {
+        this.out = out;
+        this.batchRows = Math.max(batchRows, 1);
+    }
+
+    /**
+     * Write the result set. Pieces written in order with the first having the
+     * head and the last having the tail concatenate into one stream.
+     *
+     * @param rs - the result set.
+     * @param head - write the schema.
+     * @param tail - write the end-of-stream marker.
+     */
+    void output(ResultSet rs, boolean head, boolean tail) throws Exception {
+        ResultSetMetaData rsMd = rs.getMetaData();
+        ColumnPlan plan = new ColumnPlan(rsMd);
+        ColumnVector[] columns = new ColumnVector[rsMd.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = ColumnVector.create(rsMd, i + 1, batchRows, plan);
+        }
+        if (head) {
+            FlatBuffer fb = new FlatBuffer();
+            writeMessage(fb, schema(columns, fb), HEADER_SCHEMA, 0);
+        }
+        int rows = 0;
+        while (rs.next()) {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].read(rs, i + 1, rows);
+            }
+            if (++rows == batchRows) {
+                writeBatch(columns, rows);
+                rows = 0;
+            }
+        }
+        if (rows > 0) {
+            writeBatch(columns, rows);
+        }
+        if (tail) {
+            ByteBuffer end = littleEndian(8);
+            end.putInt(-1).putInt(0);
+            out.write(end.array());
+        }
+        out.flush();
+    }
+
+    /**
+     * Build the schema header.
+     */
+    private static int schema(ColumnVector[] columns, FlatBuffer fb) {
+        int[] fields = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            int name = fb.createString(columns[i].name);
+            int type = columns[i].type(fb);
+            int children = fb.createOffsetVector(new int[0]);
+            fb.startTable(7);
+            fb.addOffset(0, name);
+            fb.addBoolean(1, true);
+            fb.addByte(2, columns[i].typeType);
+            fb.addOffset(3, type);
+            fb.addOffset(5, children);
+            fields[i] = fb.endTable();
+        }
+        int fieldVector = fb.createOffsetVector(fields);
+        fb.startTable(4);
+        fb.addOffset(1, fieldVector);
+        return fb.endTable();
+    }
+
+    /**
+     * Write a record batch of the rows in the vectors and clear the vectors.
+     */
+    private void writeBatch(ColumnVector[] columns, int rows) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (ColumnVector column : columns) {
+            buffers.addAll(Arrays.asList(column.buffers(rows)));
+        }
+        int bufferCount = buffers.size();
+        long[] offsets = new long[bufferCount];
+        long bodyLength = 0;
+        for (int i = 0; i < bufferCount; i++) {
+            offsets[i] = bodyLength;
+            bodyLength += padded(buffers.get(i).remaining());
+        }
+
+        FlatBuffer fb = new FlatBuffer();
+        fb.startStructVector(columns.length);
+        for (int i = columns.length - 1; i >= 0; i--) {
+            fb.addStruct(rows, columns[i].nullCount);
+        }
+        int nodes = fb.endVector();
+        fb.startStructVector(bufferCount);
+        for (int i = bufferCount - 1; i >= 0; i--) {
+            fb.addStruct(offsets[i], buffers.get(i).remaining());
+        }
+        int bufferVector = fb.endVector();
+        fb.startTable(4);
+        fb.addLong(0, rows);
+        fb.addOffset(1, nodes);
+        fb.addOffset(2, bufferVector);
+        writeMessage(fb, fb.endTable(), HEADER_RECORD_BATCH, bodyLength);
+
+        byte[] padding = new byte[8];
+        for (ByteBuffer buffer : buffers) {
+            int length = buffer.remaining();
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            out.write(padding, 0, padded(length) - length);
+        }
+        for (ColumnVector column : columns) {
+            column.clear();
+        }
+    }
+
+    /**
+     * Write an encapsulated message: the continuation marker, the length of
+     * the metadata, and the metadata padded to 8 bytes. The body follows.
+     */
+    private void writeMessage(FlatBuffer fb, int header, byte headerType, long bodyLength) throws IOException {
+        fb.startTable(5);
+        fb.addLong(3, bodyLength);
+        fb.addOffset(2, header);
+        fb.addShort(0, METADATA_VERSION);
+        fb.addByte(1, headerType);
+        byte[] metadata = fb.finish(fb.endTable());
+        int length = padded(metadata.length);
+        ByteBuffer prefix = littleEndian(8);
+        prefix.putInt(-1).putInt(length);
+        out.write(prefix.array());
+        out.write(metadata);
+        out.write(new byte[length - metadata.length]);
+    }
+
+    private static int padded(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static ByteBuffer littleEndian(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The local wall-clock time of an instant as milliseconds since the epoch.
+     */
+    private static long localMillis(long millis) {
+        return millis + TimeZone.getDefault().getOffset(millis);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * The values of one column in a record batch, laid out as the Arrow buffers.
+     */
+    private abstract static class ColumnVector {
+
+        final String name;
+
+        final byte typeType;
+
+        /** One bit per row, set for values that are not null. */
+        final byte[] validity;
+
+        int nullCount;
+
+        ColumnVector(String name, byte typeType, int rows) {
+            this.name = name;
+            this.typeType = typeType;
+            this.validity = new byte[(rows + 7) / 8];
+        }
+
+        /**
+         * The vector for a column of the result set. Text is read through the plan.
+         */
+        static ColumnVector create(ResultSetMetaData rsMd, int column, int rows, ColumnPlan plan)
+                throws SQLException {
+            String name = rsMd.getColumnLabel(column);
+            int sqlType = rsMd.getColumnType(column);
+            switch (sqlType) {
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    return new BooleanVector(name, rows);
+                case Types.TINYINT:
+                    return new FixedWidthVector(name, TYPE_INT, Types.TINYINT, 1, rows);
+                case Types.SMALLINT:
+                    return new FixedWidthVector(name, TYPE_INT, Types.SMALLINT, 2, rows);
+                case Types.INTEGER:
+                    return new FixedWidthVector(name, TYPE_INT, Types.INTEGER, 4, rows);
+                case Types.BIGINT:
+                    return new FixedWidthVector(name, TYPE_INT, Types.BIGINT, 8, rows);
+                case Types.REAL:
+                    return new FixedWidthVector(name, TYPE_FLOATING_POINT, Types.REAL, 4, rows);
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    return new FixedWidthVector(name, TYPE_FLOATING_POINT, Types.DOUBLE, 8, rows);
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    int precision = rsMd.getPrecision(column);
+                    int scale = rsMd.getScale(column);
+                    if (precision > 0 && precision <= MAX_DECIMAL_PRECISION && scale >= 0 && scale <= precision) {
+                        return new DecimalVector(name, precision, scale, rows);
+                    }
+                    return new VariableWidthVector(name, TYPE_UTF8, plan, rows);
+                case Types.DATE:
+                    return new FixedWidthVector(name, TYPE_DATE, Types.DATE, 4, rows);
+                case Types.TIME:
+                    return new FixedWidthVector(name, TYPE_TIME, Types.TIME, 4, rows);
+                case Types.TIMESTAMP:
+                    return new FixedWidthVector(name, TYPE_TIMESTAMP, Types.TIMESTAMP, 8, rows);
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    return new VariableWidthVector(name, TYPE_BINARY, plan, rows);
+                default:
+                    return new VariableWidthVector(name, TYPE_UTF8, plan, rows);
+            }
+        }
+
+        /**
+         * Build the type table of the schema field.
+         */
+        abstract int type(FlatBuffer fb);
+
+        /**
+         * Read the value of the current row.
+         */
+        abstract void read(ResultSet rs, int column, int row) throws SQLException;
+
+        /**
+         * The buffers of the rows read since the last clear.
+         */
+        abstract ByteBuffer[] buffers(int rows);
+
+        /**
+         * Mark a row as null or not.
+         *
+         * @return true if the value is not null.
+         */
+        boolean setValid(int row, boolean valid) {
+            if (valid) {
+                validity[row >> 3] |= 1 << (row & 7);
+            } else {
+                nullCount++;
+            }
+            return valid;
+        }
+
+        ByteBuffer validityBuffer(int rows) {
+            return ByteBuffer.wrap(validity, 0, (rows + 7) / 8);
+        }
+
+        void clear() {
+            Arrays.fill(validity, (byte) 0);
+            nullCount = 0;
+        }
+    }
+
+    /**
+     * Booleans, one bit per value.
+     */
+    private static class BooleanVector extends ColumnVector {
+
+        private final byte[] values;
+
+        BooleanVector(String name, int rows) {
+            super(name, TYPE_BOOL, rows);
+            values = new byte[(rows + 7) / 8];
+        }
+
+        int type(FlatBuffer fb) {
+            fb.startTable(0);
+            return fb.endTable();
+        }
+
+        void read(ResultSet rs, int column, int row) throws SQLException {
+            boolean value = rs.getBoolean(column);
+            if (setValid(row, !rs.wasNull()) && value) {
+                values[row >> 3] |= 1 << (row & 7);
+            }
+        }
+
+        ByteBuffer[] buffers(int rows) {
+            return new ByteBuffer[] {validityBuffer(rows), ByteBuffer.wrap(values, 0, (rows + 7) / 8)};
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            Arrays.fill(values, (byte) 0);
+        }
+    }
+
+    /**
+     * Numbers, dates and times stored in a fixed number of bytes per value.
+     */
+    private static class FixedWidthVector extends ColumnVector {
+
+        /** The SQL type the value is read as. */
+        private final int sqlType;
+
+        private final int width;
+
+        private final ByteBuffer values;
+
+        FixedWidthVector(String name, byte typeType, int sqlType, int width, int rows) {
+            super(name, typeType, rows);
+            this.sqlType = sqlType;
+            this.width = width;
+            this.values = littleEndian(rows * width);
+        }
+
+        int type(FlatBuffer fb) {
+            switch (sqlType) {
+                case Types.REAL:
+                case Types.DOUBLE:
+                    fb.startTable(1);
+                    fb.addShort(0, (short) (width == 4 ? 1 : 2));
+                    return fb.endTable();
+                case Types.DATE:
+                    // DateUnit.DAY
+                    fb.startTable(1);
+                    fb.addShort(0, (short) 0);
+                    return fb.endTable();
+                case Types.TIME:
+                    // TimeUnit.MILLISECOND, 32 bits
+                    fb.startTable(2);
+                    fb.addInt(1, 32);
+                    fb.addShort(0, (short) 1);
+                    return fb.endTable();
+                case Types.TIMESTAMP:
+                    // TimeUnit.MICROSECOND, no time zone
+                    fb.startTable(2);
+                    fb.addShort(0, (short) 2);
+                    return fb.endTable();
+                default:
+                    fb.startTable(2);
+                    fb.addInt(0, width * 8);
+                    fb.addBoolean(1, true);
+                    return fb.endTable();
+            }
+        }
+
+        void read(ResultSet rs, int column, int row) throws SQLException {
+            int position = row * width;
+            switch (sqlType) {
+                case Types.TINYINT: {
+                    byte value = rs.getByte(column);
+                    values.put(position, setValid(row, !rs.wasNull()) ? value : 0);
+                    break;
+                }
+                case Types.SMALLINT: {
+                    short value = rs.getShort(column);
+                    values.putShort(position, setValid(row, !rs.wasNull()) ? value : 0);
+                    break;
+                }
+                case Types.INTEGER: {
+                    int value = rs.getInt(column);
+                    values.putInt(position, setValid(row, !rs.wasNull()) ? value : 0);
+                    break;
+                }
+                case Types.BIGINT: {
+                    long value = rs.getLong(column);
+                    values.putLong(position, setValid(row, !rs.wasNull()) ? value : 0);
+                    break;
+                }
+                case Types.REAL: {
+                    float value = rs.getFloat(column);
+                    values.putFloat(position, setValid(row, !rs.wasNull()) ? value : 0);
+                    break;
+                }
+                case Types.DOUBLE: {
+                    double value = rs.getDouble(column);
+                    values.putDouble(position, setValid(row, !rs.wasNull()) ? value : 0);
+                    break;
+                }
+                case Types.DATE: {
+                    Date value = rs.getDate(column);
+                    values.putInt(position, setValid(row, value != null)
+                        ? (int) floorDiv(localMillis(value.getTime()), MILLIS_PER_DAY) : 0);
+                    break;
+                }
+                case Types.TIME: {
+                    Time value = rs.getTime(column);
+                    values.putInt(position, setValid(row, value != null)
+                        ? (int) (localMillis(value.getTime()) - floorDiv(localMillis(value.getTime()), MILLIS_PER_DAY)
+                            * MILLIS_PER_DAY) : 0);
+                    break;
+                }
+                default: {
+                    Timestamp value = rs.getTimestamp(column);
+                    long micros = 0;
+                    if (setValid(row, value != null)) {
+                        micros = floorDiv(localMillis(value.getTime()), 1000) * 1000000 + value.getNanos() / 1000;
+                    }
+                    values.putLong(position, micros);
+                }
+            }
+        }
+
+        ByteBuffer[] buffers(int rows) {
+            return new ByteBuffer[] {validityBuffer(rows), ByteBuffer.wrap(values.array(), 0, rows * width)};
+        }
+    }
+
+    /**
+     * Decimals as 128-bit two's complement integers at the column's scale.
+     */
+    private static class DecimalVector extends ColumnVector {
+
+        private final int precision;
+
+        private final int scale;
+
+        private final byte[] values;
+
+        DecimalVector(String name, int precision, int scale, int rows) {
+            super(name, TYPE_DECIMAL, rows);
+            this.precision = precision;
+            this.scale = scale;
+            this.values = new byte[rows * 16];
+        }
+
+        int type(FlatBuffer fb) {
+            fb.startTable(3);
+            fb.addInt(0, precision);
+            fb.addInt(1, scale);
+            fb.addInt(2, 128);
+            return fb.endTable();
+        }
+
+        void read(ResultSet rs, int column, int row) throws SQLException {
+            BigDecimal value = rs.getBigDecimal(column);
+            int position = row * 16;
+            if (!setValid(row, value != null)) {
+                Arrays.fill(values, position, position + 16, (byte) 0);
+                return;
+            }
+            BigInteger unscaled = value.setScale(scale, RoundingMode.HALF_UP).unscaledValue();
+            byte[] bigEndian = unscaled.toByteArray();
+            if (bigEndian.length > 16) {
+                throw new IllegalArgumentException("Value " + value + " is too large for DECIMAL(" + precision
+                    + "," + scale + ")");
+            }
+            byte sign = (byte) (unscaled.signum() < 0 ? -1 : 0);
+            for (int i = 0; i < 16; i++) {
+                values[position + i] = i < bigEndian.length ? bigEndian[bigEndian.length - 1 - i] : sign;
+            }
+        }
+
+        ByteBuffer[] buffers(int rows) {
+            return new ByteBuffer[] {validityBuffer(rows), ByteBuffer.wrap(values, 0, rows * 16)};
+        }
+    }
+
+    /**
+     * Text and binary data: the offset of each value and the bytes of all values.
+     */
+    private static class VariableWidthVector extends ColumnVector {
+
+        /** How text values are read. */
+        private final ColumnPlan plan;
+
+        private final ByteBuffer offsets;
+
+        private byte[] data = new byte[64 * 1024];
+
+        private int dataLength;
+
+        VariableWidthVector(String name, byte typeType, ColumnPlan plan, int rows) {
+            super(name, typeType, rows);
+            this.plan = plan;
+            offsets = littleEndian((rows + 1) * 4);
+        }
+
+        int type(FlatBuffer fb) {
+            fb.startTable(0);
+            return fb.endTable();
+        }
+
+        void read(ResultSet rs, int column, int row) throws SQLException {
+            byte[] value;
+            if (typeType == TYPE_BINARY) {
+                value = rs.getBytes(column);
+            } else {
+                String text = plan.getString(rs, column);
+                value = text == null ? null : text.getBytes(UTF8);
+            }
+            if (setValid(row, value != null)) {
+                if (dataLength + value.length > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + value.length));
+                }
+                System.arraycopy(value, 0, data, dataLength, value.length);
+                dataLength += value.length;
+            }
+            offsets.putInt((row + 1) * 4, dataLength);
+        }
+
+        ByteBuffer[] buffers(int rows) {
+            return new ByteBuffer[] {validityBuffer(rows), ByteBuffer.wrap(offsets.array(), 0, (rows + 1) * 4),
+                ByteBuffer.wrap(data, 0, dataLength)};
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            dataLength = 0;
+        }
+    }
+
+    /**
+     * Builds a flatbuffer from the end towards the start, as the flatbuffers
+     * library does. Only what the Arrow message headers need is supported:
+     * tables of scalars and offsets, strings, vectors of offsets and vectors
+     * of structs of two longs.
+     */
+    private static class FlatBuffer {
+
+        private ByteBuffer bb = littleEndian(1024);
+
+        /** Where the written part starts. */
+        private int space = bb.capacity();
+
+        private int minAlign = 1;
+
+        /** The position of each field of the table being built. Zero if absent. */
+        private int[] vtable;
+
+        private int objectStart;
+
+        private int vectorLength;
+
+        /** The position of the written part, counted from the end. */
+        int offset() {
+            return bb.capacity() - space;
+        }
+
+        /**
+         * Make room and pad so that a value of a size is aligned after more bytes are written.
+         */
+        private void prep(int size, int additionalBytes) {
+            minAlign = Math.max(minAlign, size);
+            int alignSize = (-(bb.capacity() - space + additionalBytes)) & (size - 1);
+            while (space < alignSize + size + additionalBytes) {
+                int oldCapacity = bb.capacity();
+                ByteBuffer grown = littleEndian(oldCapacity * 2);
+                System.arraycopy(bb.array(), 0, grown.array(), oldCapacity, oldCapacity);
+                bb = grown;
+                space += oldCapacity;
+            }
+            space -= alignSize;
+            Arrays.fill(bb.array(), space, space + alignSize, (byte) 0);
+        }
+
+        private void putByte(byte value) {
+            prep(1, 0);
+            bb.put(--space, value);
+        }
+
+        private void putShort(short value) {
+            prep(2, 0);
+            bb.putShort(space -= 2, value);
+        }
+
+        private void putInt(int value) {
+            prep(4, 0);
+            bb.putInt(space -= 4, value);
+        }
+
+        private void putLong(long value) {
+            prep(8, 0);
+            bb.putLong(space -= 8, value);
+        }
+
+        private void putOffset(int target) {
+            prep(4, 0);
+            int relative = offset() - target + 4;
+            bb.putInt(space -= 4, relative);
+        }
+
+        int createString(String s) {
+            byte[] bytes = s.getBytes(UTF8);
+            putByte((byte) 0);
+            startVector(1, bytes.length, 1);
+            space -= bytes.length;
+            System.arraycopy(bytes, 0, bb.array(), space, bytes.length);
+            return endVector();
+        }
+
+        int createOffsetVector(int[] targets) {
+            startVector(4, targets.length, 4);
+            for (int i = targets.length - 1; i >= 0; i--) {
+                putOffset(targets[i]);
+            }
+            return endVector();
+        }
+
+        private void startVector(int elementSize, int length, int alignment) {
+            vectorLength = length;
+            prep(4, elementSize * length);
+            prep(alignment, elementSize * length);
+        }
+
+        /**
+         * Start a vector of structs of two longs. Add them last first.
+         */
+        void startStructVector(int length) {
+            startVector(16, length, 8);
+        }
+
+        void addStruct(long first, long second) {
+            prep(8, 16);
+            bb.putLong(space -= 8, second);
+            bb.putLong(space -= 8, first);
+        }
+
+        int endVector() {
+            bb.putInt(space -= 4, vectorLength);
+            return offset();
+        }
+
+        void startTable(int fieldCount) {
+            vtable = new int[fieldCount];
+            objectStart = offset();
+        }
+
+        void addByte(int field, byte value) {
+            putByte(value);
+            vtable[field] = offset();
+        }
+
+        void addBoolean(int field, boolean value) {
+            addByte(field, (byte) (value ? 1 : 0));
+        }
+
+        void addShort(int field, short value) {
+            putShort(value);
+            vtable[field] = offset();
+        }
+
+        void addInt(int field, int value) {
+            putInt(value);
+            vtable[field] = offset();
+        }
+
+        void addLong(int field, long value) {
+            putLong(value);
+            vtable[field] = offset();
+        }
+
+        void addOffset(int field, int target) {
+            putOffset(target);
+            vtable[field] = offset();
+        }
+
+        /**
+         * Write the table's offset to its vtable, then the vtable before it.
+         */
+        int endTable() {
+            putInt(0);
+            int objectOffset = offset();
+            for (int i = vtable.length - 1; i >= 0; i--) {
+                putShort((short) (vtable[i] != 0 ? objectOffset - vtable[i] : 0));
+            }
+            putShort((short) (objectOffset - objectStart));
+            putShort((short) ((vtable.length + 2) * 2));
+            bb.putInt(bb.capacity() - objectOffset, offset() - objectOffset);
+            vtable = null;
+            return objectOffset;
+        }
+
+        /**
+         * Write the offset of the root table and return the buffer.
+         */
+        byte[] finish(int root) {
+            prep(minAlign, 4);
+            putOffset(root);
+            return Arrays.copyOfRange(bb.array(), space, bb.capacity());
+        }
+    }
+}
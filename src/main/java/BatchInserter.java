@@ -0,0 +1,310 @@
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Inserts rows into a table through one cached prepared statement. Rows are
+ * sent in batches and committed at a fixed interval. The values come as text
+ * and are converted to the column types found in the table's metadata.
+ */
+class BatchInserter {
+
+    /** Default number of rows per batch. */
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Default number of rows per commit. */
+    static final int DEFAULT_COMMIT_INTERVAL = 10000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Connection connection;
+
+    private final PreparedStatement statement;
+
+    /** The column of each parameter. */
+    private final List<String> columnNames;
+
+    /** The SQL type of each parameter. */
+    private final int[] types;
+
+    private final int batchSize;
+
+    private final int commitInterval;
+
+    /** Commit only if the connection was in auto-commit mode. */
+    private final boolean commit;
+
+    private int rowsInBatch;
+
+    private long rowsSinceCommit;
+
+    private long rowCount;
+
+    /**
+     * Constructor.
+     *
+     * @param connection - the database connection.
+     * @param table - the table to insert into.
+     * @param columns - the columns the values are given for. Null for all columns in table order.
+     * @param batchSize - the number of rows per batch.
+     * @param commitInterval - the number of rows per commit. Zero to commit only at the end.
+     */
+    BatchInserter(Connection connection, String table, List<String> columns, int batchSize, int commitInterval)
+            throws SQLException {
+        this.connection = connection;
+        this.batchSize = Math.max(batchSize, 1);
+        this.commitInterval = commitInterval;
+
+        List<String> tableColumns = new ArrayList<String>();
+        List<Integer> tableTypes = new ArrayList<Integer>();
+        readColumns(connection, table, tableColumns, tableTypes);
+        if (columns == null) {
+            columns = tableColumns;
+        }
+        columnNames = new ArrayList<String>(columns.size());
+        types = new int[columns.size()];
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            int inx = indexOfIgnoreCase(tableColumns, columns.get(i));
+            if (inx < 0) {
+                throw new IllegalArgumentException("Column " + columns.get(i) + " not found in table " + table);
+            }
+            types[i] = tableTypes.get(inx);
+            columnNames.add(tableColumns.get(inx));
+            sql.append(i == 0 ? "" : ", ").append(tableColumns.get(inx));
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        commit = connection.getAutoCommit();
+        if (commit) {
+            connection.setAutoCommit(false);
+        }
+        statement = connection.prepareStatement(sql.toString());
+    }
+
+    /**
+     * Get the columns of a table and their SQL types. If the table is not found and the
+     * database stores identifiers in upper case, the table name is tried in upper case.
+     */
+    private static void readColumns(Connection connection, String table, List<String> columns, List<Integer> types)
+            throws SQLException {
+        DatabaseMetaData dbMetadata = connection.getMetaData();
+        readColumns(dbMetadata, table, columns, types);
+        if (columns.isEmpty() && dbMetadata.storesUpperCaseIdentifiers()) {
+            readColumns(dbMetadata, table.toUpperCase(), columns, types);
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("Table " + table + " not found");
+        }
+    }
+
+    private static void readColumns(DatabaseMetaData dbMetadata, String table, List<String> columns,
+            List<Integer> types) throws SQLException {
+        ResultSet rs = dbMetadata.getColumns(null, null, table, "%");
+        try {
+            while (rs.next()) {
+                columns.add(rs.getString("COLUMN_NAME"));
+                types.add(rs.getInt("DATA_TYPE"));
+            }
+        } finally {
+            rs.close();
+        }
+    }
+
+    private static int indexOfIgnoreCase(List<String> names, String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of columns in a row.
+     */
+    int getColumnCount() {
+        return types.length;
+    }
+
+    /**
+     * The position of a column in a row.
+     *
+     * @param name - the column name. The case is ignored.
+     * @return the index from 0, or -1 if the column is not inserted.
+     */
+    int getColumnIndex(String name) {
+        return indexOfIgnoreCase(columnNames, name);
+    }
+
+    /**
+     * Add a row. Empty values and \N are inserted as NULL.
+     *
+     * @param values - the values in the order of the columns.
+     */
+    void addRow(String[] values) throws SQLException {
+        if (values.length != types.length) {
+            throw new IllegalArgumentException("Expected " + types.length + " values, found " + values.length);
+        }
+        for (int i = 0; i < types.length; i++) {
+            String value = values[i];
+            if (value == null || value.length() == 0 || "\\N".equals(value)) {
+                statement.setNull(i + 1, types[i]);
+            } else {
+                bind(i + 1, types[i], value);
+            }
+        }
+        addBatch();
+    }
+
+    /**
+     * The statement the parameters of a row are set on before addBatch().
+     */
+    PreparedStatement getStatement() {
+        return statement;
+    }
+
+    /**
+     * Add the row whose parameters have been set on the statement.
+     */
+    void addBatch() throws SQLException {
+        statement.addBatch();
+        rowCount++;
+        if (++rowsInBatch >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the rows added since the last batch.
+     */
+    void flush() throws SQLException {
+        if (rowsInBatch > 0) {
+            statement.executeBatch();
+            rowsSinceCommit += rowsInBatch;
+            rowsInBatch = 0;
+            if (commit && commitInterval > 0 && rowsSinceCommit >= commitInterval) {
+                connection.commit();
+                rowsSinceCommit = 0;
+            }
+        }
+    }
+
+    /**
+     * Convert a value to the column type and set it as a parameter.
+     */
+    private void bind(int parameter, int type, String value) throws SQLException {
+        try {
+            switch (type) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                    statement.setInt(parameter, Integer.parseInt(value.trim()));
+                    break;
+                case Types.BIGINT:
+                    statement.setLong(parameter, Long.parseLong(value.trim()));
+                    break;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    statement.setBigDecimal(parameter, new BigDecimal(value.trim()));
+                    break;
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    statement.setDouble(parameter, Double.parseDouble(value.trim()));
+                    break;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    statement.setBoolean(parameter, parseBoolean(value.trim()));
+                    break;
+                case Types.DATE:
+                    statement.setDate(parameter, Date.valueOf(value.trim()));
+                    break;
+                case Types.TIME:
+                    statement.setTime(parameter, Time.valueOf(value.trim()));
+                    break;
+                case Types.TIMESTAMP:
+                    statement.setTimestamp(parameter, parseTimestamp(value.trim()));
+                    break;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    statement.setBytes(parameter, value.getBytes(UTF8));
+                    break;
+                default:
+                    statement.setString(parameter, value);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Illegal value for column " + parameter + ": " + value);
+        }
+    }
+
+    /**
+     * Parse a boolean in one of the usual spellings.
+     */
+    private static boolean parseBoolean(String value) {
+        String lowerValue = value.toLowerCase(Locale.ROOT);
+        if ("true".equals(lowerValue) || "t".equals(lowerValue) || "yes".equals(lowerValue)
+                || "y".equals(lowerValue) || "on".equals(lowerValue) || "1".equals(lowerValue)) {
+            return true;
+        }
+        if ("false".equals(lowerValue) || "f".equals(lowerValue) || "no".equals(lowerValue)
+                || "n".equals(lowerValue) || "off".equals(lowerValue) || "0".equals(lowerValue)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Not a boolean: " + value);
+    }
+
+    /**
+     * Parse a timestamp. A date without a time is accepted.
+     */
+    private static Timestamp parseTimestamp(String value) {
+        if (value.length() == 10) {
+            return new Timestamp(Date.valueOf(value).getTime());
+        }
+        return Timestamp.valueOf(value);
+    }
+
+    /**
+     * Send the last batch and commit.
+     *
+     * @return the number of rows inserted.
+     */
+    long finish() throws SQLException {
+        flush();
+        if (commit) {
+            connection.commit();
+        }
+        return rowCount;
+    }
+
+    /**
+     * Close the statement. Rows not yet committed are rolled back if the inserter committed itself.
+     */
+    void close() throws SQLException {
+        try {
+            statement.close();
+        } finally {
+            if (commit) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * The binary dump format. It keeps the types of the values so that a dump
+ * can be loaded back without parsing text.
+ * <p>
+ * The file starts with a schema header: the magic bytes, the format version,
+ * the table name and for each column its name, value tag and SQL type.
+ * Each row follows as its length in bytes and then one tagged value per
+ * column. A value is its tag followed by the data, or the NULL tag alone.
+ * Numbers, dates and times are fixed-width big-endian primitives. Text and
+ * binary data are a length and the bytes. A row length of -1 ends the file.
+ */
+final class BinaryFormat {
+
+    /** Magic bytes at the start of a file. */
+    static final byte[] MAGIC = {'D', 'B', 'T', 'B'};
+
+    static final short VERSION = 1;
+
+    /** Row length that ends the rows. */
+    static final int END_OF_ROWS = -1;
+
+    static final byte NULL = 0;
+    static final byte BOOLEAN = 1;
+    /** 4-byte int. */
+    static final byte INT = 2;
+    /** 8-byte long. */
+    static final byte LONG = 3;
+    /** 8-byte IEEE double. */
+    static final byte DOUBLE = 4;
+    /** 4-byte scale, 4-byte length and the unscaled value in two's complement. */
+    static final byte DECIMAL = 5;
+    /** 8-byte milliseconds since the epoch. */
+    static final byte DATE = 6;
+    /** 8-byte milliseconds since the epoch. */
+    static final byte TIME = 7;
+    /** 8-byte milliseconds since the epoch and 4-byte nanoseconds. */
+    static final byte TIMESTAMP = 8;
+    /** 4-byte length and UTF-8 bytes. */
+    static final byte STRING = 9;
+    /** 4-byte length and the bytes. */
+    static final byte BYTES = 10;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryFormat() {
+    }
+
+    /**
+     * The tag that values of an SQL type are written with.
+     */
+    static byte tagOf(int sqlType) {
+        switch (sqlType) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.DATE:
+                return DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BYTES;
+            default:
+                return STRING;
+        }
+    }
+
+    /**
+     * Write the schema header.
+     *
+     * @return the tag of each column.
+     */
+    static byte[] writeHeader(ResultSetMetaData rsMd, DataOutputStream out) throws SQLException, IOException {
+        int columnCount = rsMd.getColumnCount();
+        String tableName = rsMd.getTableName(1);
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(tableName == null ? "" : tableName);
+        out.writeShort(columnCount);
+        byte[] tags = tags(rsMd);
+        for (int i = 0; i < columnCount; i++) {
+            out.writeUTF(rsMd.getColumnLabel(i + 1));
+            out.writeByte(tags[i]);
+            out.writeInt(rsMd.getColumnType(i + 1));
+        }
+        return tags;
+    }
+
+    /**
+     * The tag of each column.
+     */
+    static byte[] tags(ResultSetMetaData rsMd) throws SQLException {
+        byte[] tags = new byte[rsMd.getColumnCount()];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = tagOf(rsMd.getColumnType(i + 1));
+        }
+        return tags;
+    }
+
+    /**
+     * Write the rows of a result set.
+     *
+     * @param rs - the result set.
+     * @param tags - the tag of each column.
+     * @param out - where to write.
+     */
+    static void writeRows(ResultSet rs, byte[] tags, DataOutputStream out) throws SQLException, IOException {
+        ByteArrayOutputStream row = new ByteArrayOutputStream(256);
+        DataOutputStream rowOut = new DataOutputStream(row);
+        while (rs.next()) {
+            row.reset();
+            for (int i = 0; i < tags.length; i++) {
+                writeValue(rs, i + 1, tags[i], rowOut);
+            }
+            out.writeInt(row.size());
+            row.writeTo(out);
+        }
+    }
+
+    private static void writeValue(ResultSet rs, int column, byte tag, DataOutputStream out)
+            throws SQLException, IOException {
+        switch (tag) {
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeBoolean(value);
+                }
+                break;
+            }
+            case INT: {
+                int value = rs.getInt(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeInt(value);
+                }
+                break;
+            }
+            case LONG: {
+                long value = rs.getLong(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeLong(value);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeDouble(value);
+                }
+                break;
+            }
+            case DECIMAL: {
+                BigDecimal value = rs.getBigDecimal(column);
+                if (!writeNull(rs, out, tag)) {
+                    byte[] unscaled = value.unscaledValue().toByteArray();
+                    out.writeInt(value.scale());
+                    out.writeInt(unscaled.length);
+                    out.write(unscaled);
+                }
+                break;
+            }
+            case DATE: {
+                Date value = rs.getDate(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeLong(value.getTime());
+                }
+                break;
+            }
+            case TIME: {
+                Time value = rs.getTime(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeLong(value.getTime());
+                }
+                break;
+            }
+            case TIMESTAMP: {
+                Timestamp value = rs.getTimestamp(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeLong(value.getTime());
+                    out.writeInt(value.getNanos());
+                }
+                break;
+            }
+            case BYTES: {
+                byte[] value = rs.getBytes(column);
+                if (!writeNull(rs, out, tag)) {
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                break;
+            }
+            default: {
+                String value = rs.getString(column);
+                if (!writeNull(rs, out, tag)) {
+                    byte[] bytes = value.getBytes(UTF8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the tag of the value, or the NULL tag if the value read last was NULL.
+     *
+     * @return true if the value was NULL.
+     */
+    private static boolean writeNull(ResultSet rs, DataOutputStream out, byte tag) throws SQLException, IOException {
+        boolean isNull = rs.wasNull();
+        out.writeByte(isNull ? NULL : tag);
+        return isNull;
+    }
+
+    /**
+     * Mark the end of the rows.
+     */
+    static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeInt(END_OF_ROWS);
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads a file written by the BINARY output form into a table. The file is
+ * memory-mapped a window at a time and the values are bound straight from
+ * the mapped bytes to the parameters of the batched insert, so numbers and
+ * timestamps are never turned into text. The columns are matched to the
+ * table by the names in the schema header.
+ */
+class BinaryImport {
+
+    /** Size of the mapped window of the file. */
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    /** Minimum size of the first window, which holds the schema header. */
+    private static final long HEADER_WINDOW_SIZE = 1024 * 1024;
+
+    private final int batchSize;
+
+    private final int commitInterval;
+
+    private long windowSize = WINDOW_SIZE;
+
+    /**
+     * Constructor.
+     *
+     * @param batchSize - rows per batch.
+     * @param commitInterval - rows per commit. Zero to commit only at the end.
+     */
+    BinaryImport(int batchSize, int commitInterval) {
+        this.batchSize = batchSize;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Set the size of the mapped window. Only lowered in tests.
+     */
+    void setWindowSize(long windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Load a file.
+     *
+     * @param file - the file to load.
+     * @param table - the table to insert into. If null, the table name in the file is used.
+     * @param connection - the database connection.
+     * @return the number of rows loaded into the table.
+     */
+    Map<String, Long> load(File file, String table, Connection connection) throws Exception {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long size = channel.size();
+            // The header is read from the first window.
+            long headerWindow = Math.max(windowSize, HEADER_WINDOW_SIZE);
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(headerWindow, size));
+            byte[] magic = new byte[BinaryFormat.MAGIC.length];
+            if (buffer.remaining() < magic.length + 2) {
+                throw new IllegalArgumentException("Not a binary dump: " + file);
+            }
+            buffer.get(magic);
+            if (!Arrays.equals(magic, BinaryFormat.MAGIC)) {
+                throw new IllegalArgumentException("Not a binary dump: " + file);
+            }
+            short version = buffer.getShort();
+            if (version != BinaryFormat.VERSION) {
+                throw new IllegalArgumentException("Unsupported binary dump version " + version + " in " + file);
+            }
+            String tableName = readUTF(buffer);
+            if (table == null) {
+                table = tableName;
+            }
+            if (table.length() == 0) {
+                throw new IllegalArgumentException("You must enter a table name");
+            }
+            int columnCount = buffer.getShort() & 0xffff;
+            List<String> columns = new ArrayList<String>(columnCount);
+            int[] sqlTypes = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns.add(readUTF(buffer));
+                buffer.get();
+                sqlTypes[i] = buffer.getInt();
+            }
+
+            BatchInserter inserter = new BatchInserter(connection, table, columns, batchSize, commitInterval);
+            try {
+                PreparedStatement statement = inserter.getStatement();
+                long windowStart = 0;
+                long rowNumber = 0;
+                while (true) {
+                    if (buffer.remaining() < 4) {
+                        windowStart += buffer.position();
+                        buffer = map(channel, windowStart, 4);
+                    }
+                    int rowStart = buffer.position();
+                    int rowLength = buffer.getInt();
+                    if (rowLength == BinaryFormat.END_OF_ROWS) {
+                        break;
+                    }
+                    rowNumber++;
+                    if (buffer.remaining() < rowLength) {
+                        windowStart += rowStart;
+                        buffer = map(channel, windowStart, 4 + (long) rowLength);
+                        buffer.position(4);
+                        rowStart = 0;
+                    }
+                    for (int i = 0; i < columnCount; i++) {
+                        bindValue(statement, i + 1, sqlTypes[i], buffer);
+                    }
+                    if (buffer.position() != rowStart + 4 + rowLength) {
+                        throw new IllegalArgumentException("Row " + rowNumber + " in " + file + " is corrupt");
+                    }
+                    inserter.addBatch();
+                }
+                return Collections.singletonMap(table, inserter.finish());
+            } finally {
+                inserter.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Map a window of the file. The window is at least as long as the data
+     * that must fit in it, so a row larger than the window size still fits.
+     */
+    private MappedByteBuffer map(FileChannel channel, long start, long minLength) throws IOException {
+        long size = channel.size();
+        if (start + minLength > size) {
+            throw new IllegalArgumentException("Binary dump ends at byte " + size + " in the middle of a row");
+        }
+        long length = Math.min(Math.max(windowSize, minLength), size - start);
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+
+    /**
+     * Read a tagged value and set it as a parameter.
+     */
+    private static void bindValue(PreparedStatement st, int parameter, int sqlType, ByteBuffer buffer)
+            throws Exception {
+        byte tag = buffer.get();
+        switch (tag) {
+            case BinaryFormat.NULL:
+                st.setNull(parameter, sqlType);
+                break;
+            case BinaryFormat.BOOLEAN:
+                st.setBoolean(parameter, buffer.get() != 0);
+                break;
+            case BinaryFormat.INT:
+                st.setInt(parameter, buffer.getInt());
+                break;
+            case BinaryFormat.LONG:
+                st.setLong(parameter, buffer.getLong());
+                break;
+            case BinaryFormat.DOUBLE:
+                st.setDouble(parameter, buffer.getDouble());
+                break;
+            case BinaryFormat.DECIMAL: {
+                int scale = buffer.getInt();
+                byte[] unscaled = new byte[buffer.getInt()];
+                buffer.get(unscaled);
+                st.setBigDecimal(parameter, new BigDecimal(new BigInteger(unscaled), scale));
+                break;
+            }
+            case BinaryFormat.DATE:
+                st.setDate(parameter, new Date(buffer.getLong()));
+                break;
+            case BinaryFormat.TIME:
+                st.setTime(parameter, new Time(buffer.getLong()));
+                break;
+            case BinaryFormat.TIMESTAMP: {
+                Timestamp value = new Timestamp(buffer.getLong());
+                value.setNanos(buffer.getInt());
+                st.setTimestamp(parameter, value);
+                break;
+            }
+            case BinaryFormat.STRING: {
+                int length = buffer.getInt();
+                ByteBuffer slice = buffer.slice();
+                slice.limit(length);
+                st.setString(parameter, BinaryFormat.UTF8.decode(slice).toString());
+                buffer.position(buffer.position() + length);
+                break;
+            }
+            case BinaryFormat.BYTES: {
+                byte[] value = new byte[buffer.getInt()];
+                buffer.get(value);
+                st.setBytes(parameter, value);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag + " for column " + parameter);
+        }
+    }
+
+    /**
+     * Read a string written with DataOutput.writeUTF().
+     */
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length + 2];
+        buffer.position(buffer.position() - 2);
+        buffer.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+}
@@ -1,8 +1,9 @@
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.FileReader;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
@@ -10,14 +11,25 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.csv.CSVFormat;
 
 import jline.console.ConsoleReader;
 import jline.console.history.History;
@@ -25,6 +37,23 @@ import jline.TerminalFactory;
 
 public class CLI {
 
+    /** Default number of connections used by parallel operations. */
+    private static final int DEFAULT_THREADS = 4;
+
+    /** Default number of idle connections kept per profile. */
+    private static final int DEFAULT_POOL_SIZE = 4;
+
+    /** Default seconds between validations of idle pooled connections. */
+    private static final int DEFAULT_KEEP_ALIVE = 300;
+
+    /** Name of the session of the default profile. */
+    private static final String DEFAULT_SESSION = "default";
+
+    /** Settings that can also be given in the properties file. */
+    private static final String[] GLOBAL_SETTINGS = {"threads", "batchsize", "commitinterval", "scriptbatch", "stmtcache", "echo", "pipeline", "arrowbatch",
+        "binary", "exceltext", "xmlescape", "sqlrows", "sqldialect", "sqltable",
+        "timeout", "limit", "timing"};
+
     /** Buffer for current statement. */
     private StringBuilder stmtBuf;
 
@@ -37,6 +66,60 @@ public class CLI {
     /** Active database connection. */
     private Connection connection;
 
+    /** Profile of the active connection. Null for the default profile. */
+    private String profile;
+
+    /** Name of the active session. */
+    private String sessionName;
+
+    /** Open sessions by name, in the order they were opened. */
+    private Map<String, Session> sessions = new LinkedHashMap<String, Session>();
+
+    /** Connection pools by profile prefix. */
+    private Map<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+
+    /** Maximum number of connections used by parallel operations. */
+    private int threads = DEFAULT_THREADS;
+
+    /** Rows per batch when importing. */
+    private int batchSize = BatchInserter.DEFAULT_BATCH_SIZE;
+
+    /** Rows per commit when importing. */
+    private int commitInterval = BatchInserter.DEFAULT_COMMIT_INTERVAL;
+
+    /** DML statements per JDBC batch when reading a script. Zero turns batching off. */
+    private int scriptBatchSize;
+
+    /** Prepared statements kept when the literals of script DML are parameterized. Zero turns it off. */
+    private int stmtCacheSize;
+
+    /** Formatter threads for pipelined text output. Zero turns the pipeline off. */
+    private int pipelineThreads;
+
+    /** Seconds a query may run before the driver cancels it. Zero for no limit. */
+    private int queryTimeout;
+
+    /** Most rows a query returns. Zero for no limit. */
+    private int maxRows;
+
+    /** If set then the phases of each query are timed and reported. */
+    private boolean timing;
+
+    /** Encoding of the text of the output stream. Timed output is written in it too. */
+    private Charset outputCharset = Charset.defaultCharset();
+
+    /** Cancels the running query on Ctrl-C. Only set in interactive mode. */
+    private CancelHandler cancelHandler;
+
+    /** How LOB and binary values are written. */
+    private OutputSettings outputSettings = OutputSettings.DEFAULT;
+
+    /** If set then the statements of a script are printed as they are read. */
+    private boolean echo = true;
+
+    /** The batch of the script being read. Null if not batching. */
+    private ScriptBatch scriptBatch;
+
     /** File to send the output to. */
     private PrintStream outputStream;
 
@@ -48,6 +131,13 @@ public class CLI {
 
     /** If set then all statements are wrapped in one transation. */
     private boolean wrapInTransaction;
+
+    /** How result sets are fetched on the active connection. */
+    private FetchSettings fetchSettings = new FetchSettings();
+
+    /** Fetch size set by the user. Overrides the profile's setting. */
+    private String fetchSizeOverride;
+
     /**
      * Constructor.
      */
@@ -67,6 +157,7 @@ public class CLI {
         }
         String extraJars = props.getProperty("classpath");
         JarFileLoader.addPaths(extraJars);
+        loadSettings();
     }
 
     /**
@@ -78,6 +169,19 @@ public class CLI {
         props = properties;
         String extraJars = props.getProperty("classpath");
         JarFileLoader.addPaths(extraJars);
+        loadSettings();
+    }
+
+    /**
+     * Read the settings that are not specific to a profile.
+     */
+    private void loadSettings() {
+        for (String name : GLOBAL_SETTINGS) {
+            String value = props.getProperty(name);
+            if (value != null) {
+                setSetting(name, value.trim());
+            }
+        }
     }
 
     public void setOneTransaction() {
@@ -113,9 +217,61 @@ public class CLI {
         return getConnection(null);
     }
 
+    /**
+     * The prefix of the property keys of a profile.
+     *
+     * @param profile - the profile name. Null or empty for the default profile.
+     * @return the prefix.
+     */
+    private static String profilePrefix(String profile) {
+        return (profile == null || "".equals(profile)) ? "" : profile + ".";
+    }
+
+    /**
+     * Connections to the profile of the active connection. Used by the
+     * operations that run in parallel.
+     */
+    private ConnectionSource connectionSource() {
+        return getPool(profile);
+    }
+
+    /**
+     * Get the connection pool of a profile. It is created on first use and
+     * configured from the profile's db.poolSize, db.keepAlive and db.prewarm.
+     *
+     * @param profile - the profile name. Null for the default profile.
+     * @return the pool.
+     */
+    private ConnectionPool getPool(final String profile) {
+        String prefix = profilePrefix(profile);
+        ConnectionPool pool = pools.get(prefix);
+        if (pool == null) {
+            pool = new ConnectionPool(new Callable<Connection>() {
+                public Connection call() throws Exception {
+                    return getConnection(profile);
+                }
+            }, poolSetting(prefix, "db.poolSize", DEFAULT_POOL_SIZE));
+            int keepAlive = poolSetting(prefix, "db.keepAlive", DEFAULT_KEEP_ALIVE);
+            if (keepAlive > 0) {
+                pool.keepAlive(keepAlive);
+            }
+            int prewarm = poolSetting(prefix, "db.prewarm", 0);
+            if (prewarm > 0) {
+                pool.prewarm(prewarm);
+            }
+            pools.put(prefix, pool);
+        }
+        return pool;
+    }
+
+    private int poolSetting(String prefix, String key, int defaultValue) {
+        String value = getProfileProperty(prefix, key);
+        return value == null ? defaultValue : parseCount(value.trim(), key, 0);
+    }
+
     private Connection getConnection(String profile) throws Exception {
 
-        String prefix = (profile == null || "".equals(profile)) ? "" : profile + ".";
+        String prefix = profilePrefix(profile);
 
         String driver = props.getProperty(prefix + "db.driver");
         String connectionUrl = props.getProperty(prefix + "db.database");
@@ -125,7 +281,10 @@ public class CLI {
             throw new IllegalArgumentException("Incomplete profile in properties file");
         }
         Class driverClass = Class.forName(driver);
-        return DriverManager.getConnection(connectionUrl, username, password);
+        FlightEvents.Event connect = FlightEvents.CONNECT.begin();
+        Connection connection = DriverManager.getConnection(connectionUrl, username, password);
+        connect.set(0, profile == null ? DEFAULT_SESSION : profile).commit();
+        return connection;
     }
 
     /**
@@ -163,6 +322,181 @@ public class CLI {
         return lineState;
     }
 
+    /**
+     * Set the fetch size for the following queries. It overrides the setting
+     * in the profile, also after reconnecting.
+     *
+     * @param value - a number from 1 up, "auto", "stream" or "default".
+     */
+    void setFetchSize(String value) {
+        fetchSettings.setFetchSize(value);
+        fetchSizeOverride = value;
+    }
+
+    /**
+     * Set the maximum number of connections used by parallel operations.
+     *
+     * @param value - the number as text.
+     */
+    void setThreads(String value) {
+        threads = parseCount(value, "number of threads", 1);
+    }
+
+    /**
+     * Parse a number given by the user.
+     *
+     * @param value - the number as text.
+     * @param what - what the number is, for the error message.
+     * @param min - the lowest legal value.
+     * @return the number.
+     */
+    private static int parseCount(String value, String what, int min) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal " + what + ": " + value);
+        }
+        if (number < min) {
+            throw new IllegalArgumentException("Illegal " + what + ": " + value);
+        }
+        return number;
+    }
+
+    /**
+     * Parse an on/off value given by the user.
+     *
+     * @param value - on, off, true or false.
+     * @param what - what the value is for, for the error message.
+     * @return true for on.
+     */
+    private static boolean parseSwitch(String value, String what) {
+        if (value.equalsIgnoreCase("on") || value.equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.equalsIgnoreCase("off") || value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Illegal " + what + " value: " + value);
+    }
+
+    /**
+     * Parse a choice given by the user.
+     *
+     * @param type - the enum of the choices.
+     * @param value - the name of the choice in any case.
+     * @param what - what the value is for, for the error message.
+     * @return the choice.
+     */
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String value, String what) {
+        for (E choice : type.getEnumConstants()) {
+            if (choice.name().equalsIgnoreCase(value)) {
+                return choice;
+            }
+        }
+        throw new IllegalArgumentException("Illegal " + what + ": " + value);
+    }
+
+    /**
+     * Change a setting.
+     *
+     * @param name - the name of the setting in lower case.
+     * @param value - the new value.
+     */
+    void setSetting(String name, String value) {
+        if (name.equals("fetchsize")) {
+            setFetchSize(value);
+        } else if (name.equals("threads")) {
+            setThreads(value);
+        } else if (name.equals("batchsize")) {
+            batchSize = parseCount(value, "batch size", 1);
+        } else if (name.equals("commitinterval")) {
+            commitInterval = parseCount(value, "commit interval", 0);
+        } else if (name.equals("scriptbatch")) {
+            scriptBatchSize = parseCount(value, "script batch size", 0);
+        } else if (name.equals("stmtcache")) {
+            stmtCacheSize = parseCount(value, "statement cache size", 0);
+        } else if (name.equals("echo")) {
+            echo = parseSwitch(value, name);
+        } else if (name.equals("pipeline")) {
+            pipelineThreads = parseCount(value, "number of pipeline threads", 0);
+        } else if (name.equals("arrowbatch")) {
+            outputSettings = outputSettings.withArrowBatchRows(parseCount(value, "arrow batch size", 1));
+        } else if (name.equals("timing")) {
+            timing = parseSwitch(value, name);
+        } else if (name.equals("timeout")) {
+            queryTimeout = parseCount(value, "query timeout", 0);
+        } else if (name.equals("limit")) {
+            maxRows = parseCount(value, "row limit", 0);
+        } else if (name.equals("sqlrows")) {
+            outputSettings = outputSettings.withSqlStatementRows(
+                parseCount(value, "number of rows per INSERT statement", 1));
+        } else if (name.equals("sqldialect")) {
+            outputSettings = outputSettings.withSqlDialect(value.equalsIgnoreCase("auto") ? null
+                : parseEnum(SqlOutput.Dialect.class, value, "SQL dialect"));
+        } else if (name.equals("sqltable")) {
+            outputSettings = outputSettings.withSqlTable(value.equalsIgnoreCase("auto") ? null : value);
+        } else if (name.equals("binary")) {
+            outputSettings = outputSettings.withBinaryEncoding(
+                parseEnum(OutputSettings.BinaryEncoding.class, value, "binary encoding"));
+        } else if (name.equals("exceltext")) {
+            outputSettings = outputSettings.withExcelPolicy(
+                parseEnum(OutputSettings.ExcelPolicy.class, value, "Excel text policy"));
+        } else if (name.equals("xmlescape")) {
+            outputSettings = outputSettings.withXmlEscape(parseEnum(OutputSettings.XmlEscape.class, value, "XML escaping"));
+        } else {
+            throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+    }
+
+    /**
+     * The current value of a setting.
+     *
+     * @param name - the name of the setting in lower case.
+     * @return the value as text.
+     */
+    String getSetting(String name) {
+        if (name.equals("fetchsize")) {
+            return fetchSettings.toString();
+        } else if (name.equals("threads")) {
+            return Integer.toString(threads);
+        } else if (name.equals("batchsize")) {
+            return Integer.toString(batchSize);
+        } else if (name.equals("commitinterval")) {
+            return Integer.toString(commitInterval);
+        } else if (name.equals("scriptbatch")) {
+            return Integer.toString(scriptBatchSize);
+        } else if (name.equals("stmtcache")) {
+            return Integer.toString(stmtCacheSize);
+        } else if (name.equals("echo")) {
+            return echo ? "on" : "off";
+        } else if (name.equals("pipeline")) {
+            return Integer.toString(pipelineThreads);
+        } else if (name.equals("arrowbatch")) {
+            return Integer.toString(outputSettings.getArrowBatchRows());
+        } else if (name.equals("timing")) {
+            return timing ? "on" : "off";
+        } else if (name.equals("timeout")) {
+            return Integer.toString(queryTimeout);
+        } else if (name.equals("limit")) {
+            return Integer.toString(maxRows);
+        } else if (name.equals("sqlrows")) {
+            return Integer.toString(outputSettings.getSqlStatementRows());
+        } else if (name.equals("sqldialect")) {
+            return outputSettings.getSqlDialect() == null ? "auto"
+                : outputSettings.getSqlDialect().toString().toLowerCase();
+        } else if (name.equals("sqltable")) {
+            return outputSettings.getSqlTable() == null ? "auto" : outputSettings.getSqlTable();
+        } else if (name.equals("binary")) {
+            return outputSettings.getBinaryEncoding().toString().toLowerCase();
+        } else if (name.equals("exceltext")) {
+            return outputSettings.getExcelPolicy().toString().toLowerCase();
+        } else if (name.equals("xmlescape")) {
+            return outputSettings.getXmlEscape().toString().toLowerCase();
+        } else {
+            throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+    }
+
     public StmtState getState() {
         return lineState;
     }
@@ -175,8 +509,50 @@ public class CLI {
         stmtBuf = null;
     }
 
+    /**
+     * Set the output. Its text is taken to be in the platform's encoding, as
+     * for System.out and the files from openOutputFile().
+     *
+     * @param stream - the output.
+     */
     public void setOutputStream(PrintStream stream) {
+        setOutputStream(stream, Charset.defaultCharset());
+    }
+
+    /**
+     * Set the output.
+     *
+     * @param stream - the output.
+     * @param charset - the encoding the stream writes text in.
+     */
+    public void setOutputStream(PrintStream stream, Charset charset) {
         outputStream = stream;
+        outputCharset = charset;
+    }
+
+    /**
+     * Open a file for output. A file name ending in .gz selects gzip
+     * compression on all processors.
+     *
+     * @param fileName - the file name.
+     * @return the stream to write to.
+     */
+    static PrintStream openOutputFile(String fileName) throws IOException {
+        if (fileName.endsWith(".gz")) {
+            return new PrintStream(new ParallelGzipOutputStream(new FileOutputStream(fileName),
+                Runtime.getRuntime().availableProcessors()), false);
+        }
+        return new PrintStream(fileName);
+    }
+
+    /**
+     * Close the output stream if it is a file. A compressed file is only
+     * complete after this.
+     */
+    void closeOutputStream() {
+        if (outputStream != null && outputStream != System.out) {
+            outputStream.close();
+        }
     }
 
     /**
@@ -193,26 +569,83 @@ public class CLI {
         }
     }
 
+    /**
+     * Report statistics and the progress of scripts. Without a console they go
+     * to standard error so they don't end up in the output file.
+     *
+     * @param line - the message to output.
+     */
+    private void statsOutput(String line) throws IOException {
+        if (console != null) {
+            console.println(line);
+        } else {
+            System.err.println(line);
+        }
+    }
+
     /**
      * Send query to database.
      *
      * @param query - the input text from the user.
      */
     void executeSQLQuery(String query) throws Exception {
-        Statement st = connection.createStatement();
+        if (connection == null) {
+            throw new IllegalArgumentException("No connection to database");
+        }
+        Statement st = fetchSettings.createStatement(connection);
+        // The server stops early instead of the client throwing rows away.
+        if (queryTimeout > 0) {
+            st.setQueryTimeout(queryTimeout);
+        }
+        if (maxRows > 0) {
+            st.setMaxRows(maxRows);
+        }
         ResultSet rs = null;
+        if (cancelHandler != null) {
+            cancelHandler.start(st);
+        }
+        QueryStats stats = timing ? new QueryStats() : null;
         //FIXME: show number of records affected on updates. Check if there is more than one result set.
         try {
-            if (st.execute(query)) {
+            FlightEvents.Event execute = FlightEvents.STATEMENT.begin();
+            boolean hasResult = st.execute(query);
+            execute.set(0, query.hashCode()).set(1, profile == null ? DEFAULT_SESSION : profile).commit();
+            if (stats != null) {
+                stats.executed();
+            }
+            if (hasResult) {
                 rs = st.getResultSet();
-                outputFormat.output(rs, outputStream);
+                fetchSettings.apply(rs);
+                ResultSet rows = cancelHandler == null ? rs : cancelHandler.watch(rs);
+                rows = stats == null ? rows : stats.wrap(rows);
+                rows = FlightEvents.rowBatches(rows, outputFormat.name().toLowerCase(Locale.ROOT));
+                PrintStream out = stats == null ? outputStream : stats.wrap(outputStream, outputCharset);
+                if (pipelineThreads > 0 && PipelinedOutput.supports(outputFormat)
+                        && !new ColumnPlan(rs.getMetaData(), outputSettings).hasLobs()) {
+                    new PipelinedOutput(outputFormat, pipelineThreads, outputCharset).output(rows, out, true,
+                        outputSettings);
+                } else {
+                    outputFormat.output(rows, out, true, true, outputSettings);
+                }
+            }
+            if (stats != null) {
+                stats.finish();
+                statsOutput(stats.report());
             }
         } catch (SQLException e) {
-           controlOutput(e.getMessage());
+            if (cancelHandler != null && cancelHandler.finish()) {
+                controlOutput("Query cancelled");
+            } else {
+                controlOutput(e.getMessage());
+            }
         } finally {
+            if (cancelHandler != null) {
+                cancelHandler.finish();
+            }
             if (rs != null) {
                 rs.close();
             }
+            st.close();
         }
     }
 
@@ -225,6 +658,12 @@ public class CLI {
         String[] args = splitMetaLine(query);
         if (args[0].equals("\\c")) {
             metaConnect(args);
+        } else if (args[0].equals("\\copy")) {
+            metaCopy(args);
+        } else if (args[0].equals("\\sessions")) {
+            metaSessions(args);
+        } else if (args[0].equals("\\disconnect")) {
+            metaDisconnect(args);
         } else if (args[0].equals("\\.")) {
             metaSource(args);
         } else if (args[0].equals("\\dc")) {
@@ -243,10 +682,24 @@ public class CLI {
             metaTables(args);
         } else if (args[0].equals("\\dv")) {
             metaViews(args);
+        } else if (args[0].equals("\\dump")) {
+            metaDump(args);
+        } else if (args[0].equals("\\dumppart")) {
+            metaDumpPartitioned(args);
         } else if (args[0].equals("\\f")) {
             metaFormat(args);
+        } else if (args[0].equals("\\import")) {
+            metaImport(args);
         } else if (args[0].equals("\\o")) {
             metaOutput(args);
+        } else if (args[0].equals("\\set")) {
+            metaSet(args);
+        } else if (args[0].equals("\\timing")) {
+            metaTiming(args);
+        } else if (args[0].equals("\\timeout")) {
+            metaSetting("timeout", args);
+        } else if (args[0].equals("\\limit")) {
+            metaSetting("limit", args);
         } else if (args[0].equals("\\h")) {
             metaHelp(args);
         } else {
@@ -262,29 +715,100 @@ public class CLI {
     private void metaHelp(String[] args) throws Exception {
         controlOutput("Lines starting with \\ are meta commands. Anything else is sent as is to the database service");
         controlOutput("Meta commands:");
-        controlOutput("  \\c = connect");
+        controlOutput("  \\c = Connect or switch to a session. Arguments: [profile [session]]");
+        controlOutput("      The session is named after the profile if no name is given. Other sessions stay open.");
         controlOutput("  \\. = load statements from file.");
+        controlOutput("  \\copy = Copy the result of a query into a table of another profile.");
+        controlOutput("      Arguments: source-profile \"query\" target-profile table. Use default for the default profile.");
         controlOutput("  \\dc = List catalogs.");
         controlOutput("  \\dd = List table columns. Mandatory argument: table name.");
         controlOutput("  \\df = List functions.");
         controlOutput("  \\di = List indexes. Mandatory argument: table name.");
         controlOutput("  \\dn = List schemas a.k.a namespaces.");
         controlOutput("  \\dp = List procedures.");
+        controlOutput("  \\disconnect = End a session. Ending the active one switches to the default session. Arguments: [session]");
         controlOutput("  \\dt = List tables.");
         controlOutput("  \\dv = List views.");
-        controlOutput("  \\f = Format of output. Available arguments: accessxml, flatxml, excel, csv, tsv");
-        controlOutput("  \\o = Redirect output to file. No argument redirects to console");
+        controlOutput("  \\dump = Export tables to files in parallel. Arguments: directory [table ...]");
+        controlOutput("  \\dumppart = Export one table split on a numeric key in parallel. Arguments: table partitions file [parts]");
+        controlOutput("  \\f = Format of output. Available arguments: accessxml, flatxml, excel, csv, tsv, json, ndjson, sql, arrow, binary");
+        controlOutput("  \\import = Load a CSV, TSV, XML or binary file into a table. Arguments: file [table]");
+        controlOutput("      Empty values and \\N in CSV and TSV files are loaded as NULL.");
+        controlOutput("      Flat XML and Access XML rows go to the table named by the element if none is given.");
+        controlOutput("      Binary rows go to the table named in the file if none is given.");
+        controlOutput("  \\limit = Show or set the most rows a query returns. 0 for no limit. Arguments: [rows]");
+        controlOutput("  \\o = Redirect output to file. No argument redirects to console. A .gz file is compressed");
+        controlOutput("  \\sessions = List the open sessions.");
+        controlOutput("  \\set = Show or change a setting. Arguments: name value");
+        controlOutput("      fetchsize = rows per round trip: a number, auto, stream or default");
+        controlOutput("      threads = number of connections used by parallel operations");
+        controlOutput("      batchsize = rows per batch when importing");
+        controlOutput("      commitinterval = rows per commit when importing. 0 commits at the end");
+        controlOutput("      scriptbatch = DML statements per JDBC batch when reading a script. 0 turns it off");
+        controlOutput("      stmtcache = prepared statements kept when script DML is parameterized. 0 turns it off");
+        controlOutput("      echo = on or off. Print the statements of a script as they are read");
+        controlOutput("      pipeline = formatter threads for csv and tsv output on its own threads. 0 turns it off");
+        controlOutput("      arrowbatch = rows per record batch of arrow output");
+        controlOutput("      sqlrows = rows per INSERT statement of sql output");
+        controlOutput("      sqldialect = auto, ansi, mysql, postgresql, sqlserver or oracle. Literals of sql output");
+        controlOutput("      sqltable = auto or a table name. The table of sql output. \\dump uses the dumped table");
+        controlOutput("      binary = text, hex or base64. How binary values are written in text output");
+        controlOutput("      exceltext = fail or truncate. What to do with text too long for an Excel cell");
+        controlOutput("      xmlescape = minimal or legacy. Legacy writes all non-ASCII text as character references");
+        controlOutput("      timeout = seconds a query may run. 0 for no limit");
+        controlOutput("      limit = most rows a query returns. 0 for no limit");
+        controlOutput("      timing = on or off. Report the time of each phase of a query");
+        controlOutput("  \\timeout = Show or set the seconds a query may run. 0 for no limit. Arguments: [seconds]");
+        controlOutput("  \\timing = Report the execute, fetch, format and write time of each query. Arguments: [on|off]");
     }
 
     /**
-     * Split the meta query into components. We don't support quotes at
-     * the moment, so we can be naive and split on whitespace.
+     * Split the meta query into components. They are separated by whitespace.
+     * Text in double quotes is kept together and the quotes are removed.
+     * Two double quotes inside quotes stand for one.
      *
      * @param query The full line to split.
      * @return The split line.
      */
-    private String[] splitMetaLine(String query) {
-        return query.split("\\s+");
+    static String[] splitMetaLine(String query) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = null;
+        boolean inQuotes = false;
+        int length = query.length();
+        for (int inx = 0; inx < length; inx++) {
+            char c = query.charAt(inx);
+            if (inQuotes) {
+                if (c != '"') {
+                    arg.append(c);
+                } else if (inx + 1 < length && query.charAt(inx + 1) == '"') {
+                    arg.append(c);
+                    inx++;
+                } else {
+                    inQuotes = false;
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                if (c == '"') {
+                    inQuotes = true;
+                } else {
+                    arg.append(c);
+                }
+            }
+        }
+        if (inQuotes) {
+            throw new IllegalArgumentException("Missing closing quote");
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[args.size()]);
     }
 
     /**
@@ -302,6 +826,31 @@ public class CLI {
         }
     }
 
+    /**
+     * Execute a statement read from a script. DML statements are collected into
+     * the batch if batching is on. Anything else sends the batch first.
+     *
+     * @param query - the full statement with the semicolon.
+     * @param line - the line in the script the statement starts on.
+     */
+    private void evaluateScriptQuery(String query, int line) throws Exception {
+        query = query.trim();
+        if (scriptBatch != null && !query.startsWith("\\") && ScriptBatch.isBatchable(query)) {
+            reportBatch(scriptBatch.add(query.substring(0, query.length() - 1), line));
+        } else {
+            if (scriptBatch != null) {
+                reportBatch(scriptBatch.flush());
+            }
+            evaluateQuery(query);
+        }
+    }
+
+    private void reportBatch(List<String> report) throws IOException {
+        for (String text : report) {
+            statsOutput(text);
+        }
+    }
+
     /**
      * Get tables from database via metadata query.
      * @param args - unused.
@@ -436,11 +985,72 @@ public class CLI {
             outputFormat = OutputForms.EXCEL;
         } else if (format.equals("tsv")) {
             outputFormat = OutputForms.TSV;
+        } else if (format.equals("arrow")) {
+            outputFormat = OutputForms.ARROW;
+        } else if (format.equals("binary")) {
+            outputFormat = OutputForms.BINARY;
+        } else if (format.equals("sql")) {
+            outputFormat = OutputForms.SQL;
+        } else if (format.equals("json")) {
+            outputFormat = OutputForms.JSON;
+        } else if (format.equals("ndjson")) {
+            outputFormat = OutputForms.NDJSON;
         } else {
             throw new IllegalArgumentException("Unknown output format: " + format);
         }
     }
 
+    /**
+     * Meta command to show or change a setting. Without arguments all settings are shown.
+     *
+     * @param args - the arguments to the meta command.
+     */
+    private void metaSet(String[] args) throws Exception {
+        if (args.length == 1) {
+            controlOutput("fetchsize = " + getSetting("fetchsize"));
+            for (String name : GLOBAL_SETTINGS) {
+                controlOutput(name + " = " + getSetting(name));
+            }
+            return;
+        }
+        if (args.length != 3) {
+            throw new IllegalArgumentException("You must enter a setting and a value");
+        }
+        String name = args[1].toLowerCase();
+        setSetting(name, args[2]);
+        controlOutput(name + " = " + getSetting(name));
+    }
+
+    /**
+     * Meta command to turn timing on or off. Without an argument it is toggled.
+     *
+     * @param args - the meta command and optionally on or off.
+     */
+    private void metaTiming(String[] args) throws Exception {
+        if (args.length == 1) {
+            timing = !timing;
+            controlOutput("timing = " + getSetting("timing"));
+        } else {
+            metaSetting("timing", args);
+        }
+    }
+
+    /**
+     * Meta command to show or change one setting.
+     *
+     * @param name - the setting.
+     * @param args - the meta command and optionally the new value.
+     */
+    private void metaSetting(String name, String[] args) throws Exception {
+        if (args.length > 2) {
+            throw new IllegalArgumentException("Too many arguments");
+        }
+        if (args.length == 2) {
+            setSetting(name, args[1]);
+        }
+        controlOutput(name + " = " + getSetting(name));
+    }
+
     /**
      * Get column information of table
      *
@@ -466,11 +1076,12 @@ public class CLI {
      * @param args - the arguments to the meta command.
      */
     private void metaOutput(String[] args) throws Exception {
+        closeOutputStream();
         if (args.length > 1 && !"".equals(args[1])) {
             if ("-".equals(args[1])) {
                 setOutputStream(System.out);
             } else {
-                setOutputStream(new PrintStream(args[1]));
+                setOutputStream(openOutputFile(args[1]));
             }
             controlOutput("Output redirected to " + args[1]);
         } else {
@@ -479,6 +1090,150 @@ public class CLI {
         }
     }
 
+    /**
+     * Meta command to export tables to files.
+     *
+     * @param args - Arg 1 is the directory, the rest are optional table names.
+     */
+    private void metaDump(String[] args) throws Exception {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("You must enter a directory");
+        }
+        List<String> tables = null;
+        if (args.length > 2) {
+            tables = Arrays.asList(args).subList(2, args.length);
+        }
+        dump(args[1], tables);
+    }
+
+    /**
+     * Export tables to one file each in the current output format. The
+     * query for a table is taken from the property TABLE.query and defaults
+     * to selecting everything.
+     *
+     * @param directory - the directory to write the files to.
+     * @param tables - the tables to export. If null, the tables property is used.
+     */
+    void dump(String directory, List<String> tables) throws Exception {
+        if (connection == null) {
+            throw new IllegalArgumentException("No connection to database");
+        }
+        String prefix = profilePrefix(profile);
+        if (tables == null) {
+            String tablesValue = getProfileProperty(prefix, "tables");
+            if (tablesValue == null || "".equals(tablesValue.trim())) {
+                throw new IllegalArgumentException("No tables to dump. Set the tables property");
+            }
+            tables = Arrays.asList(tablesValue.trim().split("\\s+"));
+        }
+        List<String> queries = new ArrayList<String>(tables.size());
+        for (String table : tables) {
+            String query = getProfileProperty(prefix, table + ".query");
+            queries.add(query == null ? "SELECT * FROM " + table : query);
+        }
+        TableDump tableDump = new TableDump(connectionSource(), fetchSettings, outputFormat, threads);
+        tableDump.setOutputSettings(outputSettings);
+        for (String line : tableDump.dump(tables, queries, new File(directory))) {
+            controlOutput(line);
+        }
+    }
+
+    /**
+     * Meta command to export one table in key ranges in parallel.
+     *
+     * @param args - the table, the number of partitions, the output file and
+     *        optionally 'parts' to write one file per partition.
+     */
+    private void metaDumpPartitioned(String[] args) throws Exception {
+        if (args.length < 4 || args.length > 5 || (args.length == 5 && !"parts".equalsIgnoreCase(args[4]))) {
+            throw new IllegalArgumentException("Arguments: table partitions file [parts]");
+        }
+        if (connection == null) {
+            throw new IllegalArgumentException("No connection to database");
+        }
+        int partitions;
+        try {
+            partitions = Integer.parseInt(args[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal number of partitions: " + args[2]);
+        }
+        PartitionedExport export = new PartitionedExport(connectionSource(), fetchSettings, outputFormat, threads);
+        export.setOutputSettings(outputSettings);
+        controlOutput(export.export(args[1], partitions, new File(args[3]), args.length == 5));
+    }
+
+    /**
+     * Meta command to load a file into a table.
+     *
+     * @param args - Arg 1 is the file, arg 2 the table.
+     */
+    private void metaImport(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            throw new IllegalArgumentException("You must enter a file name and a table name");
+        }
+        importFile(args[1], args.length == 3 ? args[2] : null);
+    }
+
+    /**
+     * Load a file into a table. The format is taken from the file name
+     * extension, or else from the output format.
+     *
+     * @param fileName - the file to load.
+     * @param table - the table to insert into. Only optional for XML and binary files.
+     */
+    void importFile(String fileName, String table) throws Exception {
+        if (connection == null) {
+            throw new IllegalArgumentException("No connection to database");
+        }
+        File file = new File(fileName);
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("Failed to find file " + fileName);
+        }
+        String lowerName = fileName.toLowerCase();
+        OutputForms format = outputFormat;
+        if (lowerName.endsWith(".csv")) {
+            format = OutputForms.CSV;
+        } else if (lowerName.endsWith(".tsv")) {
+            format = OutputForms.TSV;
+        } else if (lowerName.endsWith(".xml") && format != OutputForms.ACCESSXML) {
+            format = OutputForms.FLATXML;
+        } else if (lowerName.endsWith(".bin")) {
+            format = OutputForms.BINARY;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Long> rowCounts;
+        if (format == OutputForms.FLATXML || format == OutputForms.ACCESSXML) {
+            rowCounts = new XmlImport(batchSize, commitInterval).load(file, table, connection);
+        } else if (format == OutputForms.BINARY) {
+            rowCounts = new BinaryImport(batchSize, commitInterval).load(file, table, connection);
+        } else if (table == null) {
+            throw new IllegalArgumentException("You must enter a table name");
+        } else if (format == OutputForms.CSV || format == OutputForms.TSV) {
+            CSVFormat csvFormat = format == OutputForms.CSV ? CSVFormat.DEFAULT : CSVFormat.TDF;
+            CsvImport csvImport = new CsvImport(csvFormat, batchSize, commitInterval, threads);
+            rowCounts = Collections.singletonMap(table, csvImport.load(file, table, connection, connectionSource()));
+        } else {
+            throw new IllegalArgumentException("Unable to import " + format.toString().toLowerCase() + " files");
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        for (Map.Entry<String, Long> rowCount : rowCounts.entrySet()) {
+            controlOutput("Imported " + rowCount.getValue() + " rows into " + rowCount.getKey());
+        }
+        controlOutput("Import took " + elapsed + " ms");
+    }
+
+    /**
+     * Look up a property of a profile, falling back to the property without a prefix.
+     *
+     * @param prefix - the profile prefix.
+     * @param key - the key without the prefix.
+     * @return the value or null.
+     */
+    private String getProfileProperty(String prefix, String key) {
+        String value = props.getProperty(prefix + key);
+        return value == null ? props.getProperty(key) : value;
+    }
+
     /**
      * Execute the 'connect' statement. If there is no argument, then connect
      * to the default profile.
@@ -486,14 +1241,85 @@ public class CLI {
      * @param args - Arg 1 contains the profile to connect to.
      */
     private void metaConnect(String[] args) throws Exception {
-        closeConnection();
         if (args.length < 2) {
             openConnection();
-        } else {
+        } else if (args.length < 3) {
             openConnection(args[1]);
+        } else {
+            openSession(args[1], args[2]);
         }
     }
 
+    /**
+     * Copy the result of a query into a table of another profile. The rows
+     * are streamed, so the size of the result doesn't matter.
+     *
+     * @param args - source profile, query, target profile and table.
+     */
+    private void metaCopy(String[] args) throws Exception {
+        if (args.length != 5) {
+            throw new IllegalArgumentException("Arguments: source-profile \"query\" target-profile table");
+        }
+        String sourceProfile = profileArgument(args[1]);
+        String targetProfile = profileArgument(args[3]);
+        TableCopy copy = new TableCopy(getPool(sourceProfile), fetchSettings(sourceProfile), getPool(targetProfile),
+            batchSize, commitInterval, TableCopy.DEFAULT_QUEUE_SIZE);
+        controlOutput(copy.copy(args[2], args[4]));
+    }
+
+    /**
+     * The profile given as a meta command argument. "default" is the default profile.
+     */
+    private static String profileArgument(String arg) {
+        return DEFAULT_SESSION.equals(arg) ? null : arg;
+    }
+
+    /**
+     * List the open sessions. The active one is marked with a star.
+     *
+     * @param args - unused.
+     */
+    private void metaSessions(String[] args) throws Exception {
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            String sessionProfile = entry.getValue().profile;
+            controlOutput((entry.getKey().equals(sessionName) ? "* " : "  ") + entry.getKey() + "\t"
+                + (sessionProfile == null ? DEFAULT_SESSION : sessionProfile));
+        }
+    }
+
+    /**
+     * End a session and give its connection back to the pool. Ending the
+     * active session switches to the default session, which is opened again
+     * if it was the one ended.
+     *
+     * @param args - Arg 1 contains the session name. Default is the active session.
+     */
+    private void metaDisconnect(String[] args) throws Exception {
+        String name = args.length < 2 ? sessionName : args[1];
+        Session session = name == null ? null : sessions.remove(name);
+        if (session == null) {
+            throw new IllegalArgumentException("No session named " + name);
+        }
+        endSession(session);
+        if (name.equals(sessionName)) {
+            connection = null;
+            sessionName = null;
+            openConnection();
+            controlOutput("Switched to session " + DEFAULT_SESSION);
+        }
+    }
+
+    /**
+     * Give the connection of a session back to its pool. It is committed first
+     * if all statements are wrapped in one transaction.
+     */
+    private void endSession(Session session) throws Exception {
+        if (wrapInTransaction) {
+            session.connection.commit();
+        }
+        getPool(session.profile).release(session.connection);
+    }
+
     /**
      * Meta command for source statement.
      *
@@ -519,19 +1345,90 @@ public class CLI {
      * @param profile - A profile to use.
      */
     void openConnection(String profile) throws Exception {
-        connection = getConnection(profile);
-        if (wrapInTransaction) {
-            connection.setAutoCommit(false);
+        openSession(profile, profile == null || "".equals(profile) ? DEFAULT_SESSION : profile);
+    }
+
+    /**
+     * Switch to a named session. If there is no session of that name, it is
+     * opened on a connection from the profile's pool. The other sessions stay open.
+     *
+     * @param profile - A profile to use.
+     * @param name - The session name.
+     */
+    void openSession(String profile, String name) throws Exception {
+        if ("".equals(profile)) {
+            profile = null;
+        }
+        Session session = sessions.get(name);
+        if (session != null && !equalProfiles(session.profile, profile)) {
+            throw new IllegalArgumentException("Session " + name + " is connected to another profile");
+        }
+        if (session != null && !session.connection.isValid(5)) {
+            // Dropped by the server while idle. A transaction in progress is lost.
+            controlOutput("Session " + name + " was disconnected. Reconnecting");
+            sessions.remove(name);
+            try {
+                session.connection.close();
+            } catch (SQLException e) {
+            }
+            session = null;
         }
+        if (session == null) {
+            Connection newConnection = getPool(profile).borrow();
+            if (wrapInTransaction) {
+                newConnection.setAutoCommit(false);
+            }
+            session = new Session(profile, newConnection);
+            sessions.put(name, session);
+        }
+        connection = session.connection;
+        sessionName = name;
+        this.profile = profile;
+        fetchSettings = fetchSettings(profile);
+    }
+
+    /**
+     * How result sets are fetched from a profile.
+     */
+    private FetchSettings fetchSettings(String profile) {
+        FetchSettings settings = FetchSettings.fromProperties(props, profilePrefix(profile));
+        if (fetchSizeOverride != null) {
+            settings.setFetchSize(fetchSizeOverride);
+        }
+        return settings;
+    }
+
+    private static boolean equalProfiles(String profile1, String profile2) {
+        return profile1 == null ? profile2 == null : profile1.equals(profile2);
     }
 
+    /**
+     * End all sessions and close the connection pools.
+     */
     void closeConnection() throws Exception {
-        if (connection != null) {
-            if (wrapInTransaction) {
-                connection.commit();
+        try {
+            for (Session session : sessions.values()) {
+                endSession(session);
             }
-            connection.close();
+        } finally {
+            sessions.clear();
             connection = null;
+            sessionName = null;
+            for (ConnectionPool pool : pools.values()) {
+                pool.close();
+            }
+            pools.clear();
+        }
+    }
+
+    /**
+     * Make Ctrl-C cancel the running query. It keeps ending the program where
+     * the JVM doesn't let SIGINT be handled.
+     */
+    private void installCancelHandler() {
+        CancelHandler handler = new CancelHandler();
+        if (handler.install()) {
+            cancelHandler = handler;
         }
     }
 
@@ -541,6 +1438,7 @@ public class CLI {
     private void interactive() {
         try {
             console = new ConsoleReader();
+            installCancelHandler();
             console.setPrompt("SQL> ");
             console.setHistoryEnabled(false);
             reset();
@@ -583,29 +1481,40 @@ public class CLI {
      * @param sourceFile - The file name to load from.
      */
     void readFromFile(String sourceFile) throws IOException {
-        FileReader inputStream = null;
+        ScriptBatch outerBatch = scriptBatch;
         try {
-            inputStream = new FileReader(sourceFile);
-            char[] line = new char[1000];
-            int size;
-            while ((size = inputStream.read(line)) != -1) {
-                controlOutput(String.valueOf(line));
-                for (int inx = 0; inx < size; inx++) {
-                    setNextState(line[inx]);
-                    if (lineState == StmtState.END) {
-                        evaluateQuery(stmtBuf.toString());
-                        reset();
+            File file = new File(sourceFile);
+            if (scriptBatchSize > 0 || stmtCacheSize > 0) {
+                scriptBatch = new ScriptBatch(connection, Math.max(scriptBatchSize, 1), stmtCacheSize);
+            }
+            ScriptReader reader = new ScriptReader(new ScriptReader.Handler() {
+                public void statement(String statement, int line) throws Exception {
+                    if (echo) {
+                        controlOutput(statement);
                     }
+                    evaluateScriptQuery(statement, line);
+                }
+            });
+            long start = System.currentTimeMillis();
+            long statements = reader.read(file, Charset.defaultCharset());
+            if (scriptBatch != null) {
+                reportBatch(scriptBatch.flush());
+                if (stmtCacheSize > 0) {
+                    statsOutput(scriptBatch.cacheStatistics());
                 }
             }
+            statsOutput(ScriptReader.throughput(file.length(), statements, System.currentTimeMillis() - start));
         } catch (Exception e) {
-            throw new IllegalArgumentException("Failed to load from source file at " + sourceFile);
+            throw new IllegalArgumentException("Failed to load from source file at " + sourceFile, e);
         } finally {
-            if (inputStream != null) {
-                inputStream.close();
+            if (scriptBatch != null) {
+                try {
+                    scriptBatch.close();
+                } catch (SQLException e) {
+                }
             }
+            scriptBatch = outerBatch;
         }
-
     }
 
     /**
@@ -617,6 +1526,13 @@ public class CLI {
         String profile = null;
         String queryArgument = null;
         String sourceFile = null;
+        String fetchSize = null;
+        String scriptBatchSize = null;
+        String stmtCacheSize = null;
+        boolean quiet = false;
+        boolean stats = false;
+        String dumpDirectory = null;
+        String[] importArguments = null;
         String program = CLI.class.getName().toLowerCase();
         boolean wrapInTransaction = false;
         PrintStream outputStream = System.out;
@@ -629,6 +1545,16 @@ public class CLI {
             options.addOption("F", "format", true, "Format of output");
             options.addOption("h", "help", false, "Print help with options");
             options.addOption("T", "transaction", false, "Wrap statements in one transaction");
+            options.addOption("d", "dump", true, "Export the tables in the tables property to this directory");
+            options.addOption(Option.builder("i").longOpt("import").numberOfArgs(2).optionalArg(true)
+                .argName("file [table]").desc("Load a CSV, TSV or XML file into a table").build());
+            options.addOption(null, "fetch-size", true, "Rows per round trip: a number, auto, stream or default");
+            options.addOption(null, "stats", false,
+                "Report the execute, fetch, format and write time of each query on standard error");
+            options.addOption("q", "quiet", false, "Don't print the statements of the file as they are read");
+            options.addOption(null, "batch", true, "Send DML statements from the file in JDBC batches of this size");
+            options.addOption(null, "stmt-cache", true,
+                "Run DML from the file as prepared statements with the literals as parameters, keeping this many");
 
             try {
                 CommandLineParser parser = new DefaultParser();
@@ -638,6 +1564,15 @@ public class CLI {
                 sourceFile = cmd.getOptionValue("f");
                 outputFile = cmd.getOptionValue("o");
                 outputFormat = cmd.getOptionValue("F");
+                fetchSize = cmd.getOptionValue("fetch-size");
+                scriptBatchSize = cmd.getOptionValue("batch");
+                stmtCacheSize = cmd.getOptionValue("stmt-cache");
+                dumpDirectory = cmd.getOptionValue("d");
+                importArguments = cmd.getOptionValues("i");
+                stats = cmd.hasOption("stats");
+                if(cmd.hasOption("q")) {
+                    quiet = true;
+                }
                 if(cmd.hasOption("T")) {
                     wrapInTransaction = true;
                 }
@@ -657,7 +1592,7 @@ public class CLI {
             engine.setOutputStream(System.out);
             if (outputFile != null) {
                 if (!"-".equals(outputFile)) {
-                    engine.setOutputStream(new PrintStream(outputFile));
+                    engine.setOutputStream(openOutputFile(outputFile));
                 }
             }
             if (outputFormat != null) {
@@ -666,18 +1601,53 @@ public class CLI {
             if (wrapInTransaction) {
                 engine.setOneTransaction();
             }
+            if (fetchSize != null) {
+                engine.setFetchSize(fetchSize);
+            }
+            if (quiet) {
+                engine.setSetting("echo", "off");
+            }
+            if (stats) {
+                engine.setSetting("timing", "on");
+            }
+            if (scriptBatchSize != null) {
+                engine.setSetting("scriptbatch", scriptBatchSize);
+            }
+            if (stmtCacheSize != null) {
+                engine.setSetting("stmtcache", stmtCacheSize);
+            }
 
             engine.openConnection(profile);
-            if (queryArgument == null && sourceFile == null) {
+            if (dumpDirectory != null) {
+                engine.dump(dumpDirectory, null);
+            } else if (importArguments != null) {
+                engine.importFile(importArguments[0], importArguments.length > 1 ? importArguments[1] : null);
+            } else if (queryArgument == null && sourceFile == null) {
                 engine.interactive();
             } else if (sourceFile != null) {
                 engine.readFromFile(sourceFile);
             } else {
                 engine.executeSQLQuery(queryArgument);
             }
+            engine.closeOutputStream();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * A named connection the user can switch to.
+     */
+    private static class Session {
+
+        /** The profile. Null for the default profile. */
+        private final String profile;
+
+        private final Connection connection;
+
+        Session(String profile, Connection connection) {
+            this.profile = profile;
+            this.connection = connection;
+        }
+    }
 }
@@ -0,0 +1,137 @@
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Cancels the running statement on Ctrl-C instead of ending the program.
+ * When no statement is running the signal goes to the handler that was there
+ * before, so Ctrl-C at the prompt still exits. The handler is installed with
+ * sun.misc.Signal through reflection, so the code builds without warnings
+ * about proprietary API and Ctrl-C keeps ending the program where the JVM
+ * doesn't have it.
+ */
+class CancelHandler {
+
+    /** Exit status of a program ended by SIGINT. */
+    private static final int SIGINT_STATUS = 130;
+
+    private static Constructor<?> newSignal;
+    private static Class<?> handlerClass;
+    private static Method setHandler;
+    private static Method callHandler;
+
+    static {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            handlerClass = Class.forName("sun.misc.SignalHandler");
+            newSignal = signalClass.getConstructor(String.class);
+            setHandler = signalClass.getMethod("handle", signalClass, handlerClass);
+            callHandler = handlerClass.getMethod("handle", signalClass);
+        } catch (Exception e) {
+            // No sun.misc.Signal in this JVM. Ctrl-C ends the program.
+            setHandler = null;
+        }
+    }
+
+    private volatile Statement running;
+
+    private volatile boolean cancelled;
+
+    private Object previous;
+
+    /**
+     * Handle SIGINT from now on.
+     *
+     * @return false if the JVM doesn't let the signal be handled.
+     */
+    boolean install() {
+        if (setHandler == null) {
+            return false;
+        }
+        Object handler = Proxy.newProxyInstance(CancelHandler.class.getClassLoader(), new Class<?>[] {handlerClass},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(this, args);
+                    }
+                    handle(args[0]);
+                    return null;
+                }
+            });
+        try {
+            previous = setHandler.invoke(null, newSignal.newInstance("INT"), handler);
+            return true;
+        } catch (Exception e) {
+            // The JVM keeps SIGINT for itself, e.g. with -Xrs.
+            return false;
+        }
+    }
+
+    /**
+     * Mark a statement as running. It is cancelled on the next Ctrl-C.
+     *
+     * @param statement - the statement.
+     */
+    void start(Statement statement) {
+        cancelled = false;
+        running = statement;
+    }
+
+    /**
+     * Wrap the result set of the running statement so the output stops at
+     * the next row after Ctrl-C. Cancelling the statement alone doesn't stop
+     * a driver that has already returned the rows.
+     *
+     * @param rs - the result set.
+     * @return the result set to read the rows from.
+     */
+    ResultSet watch(ResultSet rs) {
+        return new FilterResultSet(rs) {
+            @Override
+            public boolean next() throws SQLException {
+                if (cancelled) {
+                    throw new SQLException("Query cancelled");
+                }
+                return rs.next();
+            }
+        };
+    }
+
+    /**
+     * Mark the statement as done.
+     *
+     * @return true if it was cancelled.
+     */
+    boolean finish() {
+        running = null;
+        return cancelled;
+    }
+
+    /**
+     * Called on Ctrl-C.
+     *
+     * @param signal - the sun.misc.Signal, passed on to the previous handler.
+     */
+    void handle(Object signal) {
+        Statement statement = running;
+        if (statement == null) {
+            try {
+                callHandler.invoke(previous, signal);
+            } catch (Exception e) {
+                // The JVM's native handler can't be called from Java.
+                System.exit(SIGINT_STATUS);
+            }
+            return;
+        }
+        cancelled = true;
+        try {
+            statement.cancel();
+        } catch (SQLException e) {
+            // The statement finished or the driver can't cancel. Either way there is nothing more to do.
+        }
+    }
+}
@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * How the values of each column of a result set are read. The plan is made
+ * once per result set from the column types in the metadata, so each value
+ * is read once instead of through getObject() and a chain of instanceof
+ * checks. Typed outputs such as Excel, JSON and SQL use the getter of each
+ * kind. As text, only integers are read with their typed getter; dates,
+ * times, timestamps, floating point numbers and decimals are the driver's
+ * getString(), as its text for them can't be reproduced for every driver.
+ * CLOB and BLOB values can be read as a stream of characters so that they
+ * never have to be in memory whole.
+ */
+class ColumnPlan {
+
+    /**
+     * The getter a column is read with.
+     */
+    enum Kind {
+        BOOLEAN, INTEGER, LONG, DOUBLE, DECIMAL, DATE, TIME, TIMESTAMP, CLOB, BLOB, BYTES, TEXT
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final char[] BASE64_DIGITS =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final Kind[] kinds;
+
+    private final OutputSettings.BinaryEncoding binaryEncoding;
+
+    /**
+     * Make the plan of a result set. Binary values are decoded as UTF-8.
+     *
+     * @param rsMd - the metadata of the result set.
+     */
+    ColumnPlan(ResultSetMetaData rsMd) throws SQLException {
+        this(rsMd, OutputSettings.DEFAULT);
+    }
+
+    /**
+     * Make the plan of a result set.
+     *
+     * @param rsMd - the metadata of the result set.
+     * @param outputSettings - how binary values are written as text.
+     */
+    ColumnPlan(ResultSetMetaData rsMd, OutputSettings outputSettings) throws SQLException {
+        this(rsMd, outputSettings, false);
+    }
+
+    /**
+     * Make the plan of a result set.
+     *
+     * @param rsMd - the metadata of the result set.
+     * @param outputSettings - how binary values are written as text.
+     * @param driverBinaryText - if true, binary values are the driver's
+     *       getString() unless the settings ask for hex or base64.
+     */
+    ColumnPlan(ResultSetMetaData rsMd, OutputSettings outputSettings, boolean driverBinaryText) throws SQLException {
+        binaryEncoding = outputSettings.getBinaryEncoding();
+        boolean binaryAsText = driverBinaryText && binaryEncoding == OutputSettings.BinaryEncoding.TEXT;
+        kinds = new Kind[rsMd.getColumnCount()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = kindOf(rsMd.getColumnType(i + 1));
+            if (binaryAsText && (kinds[i] == Kind.BYTES || kinds[i] == Kind.BLOB)) {
+                kinds[i] = Kind.TEXT;
+            }
+        }
+    }
+
+    /**
+     * The getter for an SQL type.
+     */
+    static Kind kindOf(int sqlType) {
+        switch (sqlType) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Kind.BOOLEAN;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Kind.INTEGER;
+            case Types.BIGINT:
+                return Kind.LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Kind.DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return Kind.DECIMAL;
+            case Types.DATE:
+                return Kind.DATE;
+            case Types.TIME:
+                return Kind.TIME;
+            case Types.TIMESTAMP:
+                return Kind.TIMESTAMP;
+            case Types.CLOB:
+            case Types.NCLOB:
+                return Kind.CLOB;
+            case Types.BLOB:
+                return Kind.BLOB;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return Kind.BYTES;
+            default:
+                return Kind.TEXT;
+        }
+    }
+
+    int getColumnCount() {
+        return kinds.length;
+    }
+
+    /**
+     * The getter of a column.
+     *
+     * @param column - the column number from 1.
+     */
+    Kind getKind(int column) {
+        return kinds[column - 1];
+    }
+
+    /**
+     * Check if a column is a CLOB or BLOB, which should be read with openReader().
+     *
+     * @param column - the column number from 1.
+     */
+    boolean isLob(int column) {
+        Kind kind = kinds[column - 1];
+        return kind == Kind.CLOB || kind == Kind.BLOB;
+    }
+
+    /**
+     * Check if any column is a CLOB or BLOB.
+     */
+    boolean hasLobs() {
+        for (int i = 1; i <= kinds.length; i++) {
+            if (isLob(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Open a LOB value as a stream of characters. The characters are those
+     * getString() would return.
+     *
+     * @param rs - the result set at the right row.
+     * @param column - the column number from 1. It must be a CLOB or BLOB.
+     * @return the reader, or null if the value is null. The caller closes it.
+     */
+    Reader openReader(ResultSet rs, int column) throws SQLException {
+        if (kinds[column - 1] == Kind.CLOB) {
+            return rs.getCharacterStream(column);
+        }
+        InputStream value = rs.getBinaryStream(column);
+        if (value == null) {
+            return null;
+        }
+        if (binaryEncoding == OutputSettings.BinaryEncoding.TEXT) {
+            return new InputStreamReader(value, UTF8);
+        }
+        return new EncodingReader(value, binaryEncoding == OutputSettings.BinaryEncoding.BASE64);
+    }
+
+    /**
+     * Read from a reader until the buffer is full or the reader ends.
+     *
+     * @return the number of characters read.
+     */
+    static int fill(Reader reader, char[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int n = reader.read(buffer, count, buffer.length - count);
+            if (n < 0) {
+                break;
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * The value of a column as text. Integers are formatted here and binary
+     * data is decoded as UTF-8 or encoded as set in the output settings, as there
+     * is no guarantee what the driver's getString() does with it. LOBs are
+     * read in full. Other values, dates and decimals included, are the
+     * driver's text for them.
+     *
+     * @param rs - the result set at the right row.
+     * @param column - the column number from 1.
+     * @return the text or null.
+     */
+    String getString(ResultSet rs, int column) throws SQLException {
+        return getString(rs, column, kinds[column - 1]);
+    }
+
+    /**
+     * Append the value of a column as text to a buffer. The buffer can be
+     * reused for every value, and integers are appended without boxing.
+     * Other values are appended as getString() returns them.
+     *
+     * @param rs - the result set at the right row.
+     * @param column - the column number from 1.
+     * @param buffer - where to append the text.
+     * @return false if the value is null. Nothing is appended then.
+     */
+    boolean append(ResultSet rs, int column, StringBuilder buffer) throws SQLException {
+        Kind kind = kinds[column - 1];
+        if (kind == Kind.INTEGER || kind == Kind.LONG) {
+            long value = rs.getLong(column);
+            if (rs.wasNull()) {
+                return false;
+            }
+            buffer.append(value);
+            return true;
+        }
+        String value = getString(rs, column, kind);
+        if (value == null) {
+            return false;
+        }
+        buffer.append(value);
+        return true;
+    }
+
+    private String getString(ResultSet rs, int column, Kind kind) throws SQLException {
+        switch (kind) {
+            case INTEGER:
+            case LONG: {
+                long value = rs.getLong(column);
+                return rs.wasNull() ? null : Long.toString(value);
+            }
+            case CLOB:
+            case BLOB:
+                return readAll(rs, column);
+            case BYTES: {
+                byte[] value = rs.getBytes(column);
+                if (value == null) {
+                    return null;
+                }
+                switch (binaryEncoding) {
+                    case HEX:
+                        return new String(encodeHex(value, value.length));
+                    case BASE64:
+                        return new String(encodeBase64(value, value.length));
+                    default:
+                        return new String(value, UTF8);
+                }
+            }
+            default:
+                return rs.getString(column);
+        }
+    }
+
+    private String readAll(ResultSet rs, int column) throws SQLException {
+        Reader reader = openReader(rs, column);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            try {
+                StringBuilder value = new StringBuilder();
+                char[] chunk = new char[8192];
+                int n;
+                while ((n = reader.read(chunk)) > 0) {
+                    value.append(chunk, 0, n);
+                }
+                return value.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Failed to read column " + column + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static char[] encodeHex(byte[] bytes, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return chars;
+    }
+
+    /**
+     * Encode to base64 with padding.
+     */
+    private static char[] encodeBase64(byte[] bytes, int length) {
+        char[] chars = new char[(length + 2) / 3 * 4];
+        int c = 0;
+        for (int i = 0; i < length; i += 3) {
+            int group = (bytes[i] & 0xff) << 16;
+            if (i + 1 < length) {
+                group |= (bytes[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < length) {
+                group |= bytes[i + 2] & 0xff;
+            }
+            chars[c++] = BASE64_DIGITS[(group >> 18) & 0x3f];
+            chars[c++] = BASE64_DIGITS[(group >> 12) & 0x3f];
+            chars[c++] = i + 1 < length ? BASE64_DIGITS[(group >> 6) & 0x3f] : '=';
+            chars[c++] = i + 2 < length ? BASE64_DIGITS[group & 0x3f] : '=';
+        }
+        return chars;
+    }
+
+    /**
+     * Reads a binary stream as hex or base64 text. The bytes are encoded a
+     * block at a time. The block is a multiple of 3 bytes so that base64
+     * padding only comes at the end.
+     */
+    private static class EncodingReader extends Reader {
+
+        private final InputStream in;
+
+        private final boolean base64;
+
+        private final byte[] block = new byte[3 * 2048];
+
+        private char[] chars = new char[0];
+
+        private int position;
+
+        EncodingReader(InputStream in, boolean base64) {
+            this.in = in;
+            this.base64 = base64;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if (position == chars.length) {
+                int count = 0;
+                while (count < block.length) {
+                    int n = in.read(block, count, block.length - count);
+                    if (n < 0) {
+                        break;
+                    }
+                    count += n;
+                }
+                if (count == 0) {
+                    return -1;
+                }
+                chars = base64 ? encodeBase64(block, count) : encodeHex(block, count);
+                position = 0;
+            }
+            int n = Math.min(length, chars.length - position);
+            System.arraycopy(chars, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
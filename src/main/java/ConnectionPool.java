@@ -0,0 +1,225 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small pool of connections to one database profile. Released connections
+ * are kept idle up to a maximum and handed out again. A connection that has
+ * been idle for a while is validated before it is handed out, and a
+ * background task can validate the idle connections at an interval so that
+ * the server doesn't drop them. Connections can be opened in the background
+ * ahead of use.
+ */
+class ConnectionPool implements ConnectionSource {
+
+    /** Idle connections are validated before use when idle longer than this. */
+    static final long VALIDATE_AFTER_MILLIS = 10000;
+
+    /** Seconds to wait for a validation. */
+    private static final int VALIDATE_TIMEOUT = 5;
+
+    private final Callable<Connection> opener;
+
+    private final int maxIdle;
+
+    /** Idle connections, most recently released first. */
+    private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+
+    /** Runs the keep-alive and pre-warm tasks. Null if there are none. */
+    private ScheduledExecutorService background;
+
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param opener - opens a new connection.
+     * @param maxIdle - the number of idle connections to keep.
+     */
+    ConnectionPool(Callable<Connection> opener, int maxIdle) {
+        this.opener = opener;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Get an idle connection, or open a new one if there is none.
+     */
+    public Connection borrow() throws Exception {
+        while (true) {
+            IdleConnection candidate;
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The connection pool is closed");
+                }
+                candidate = idle.pollFirst();
+            }
+            if (candidate == null) {
+                return opener.call();
+            }
+            if (System.currentTimeMillis() - candidate.since < VALIDATE_AFTER_MILLIS
+                    || isValid(candidate.connection)) {
+                return candidate.connection;
+            }
+            closeQuietly(candidate.connection);
+        }
+    }
+
+    /**
+     * Give a connection back. An open transaction is rolled back. The connection
+     * is closed if the pool already has enough idle connections.
+     */
+    public void release(Connection connection) throws Exception {
+        try {
+            if (connection.isClosed()) {
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            return;
+        }
+        synchronized (this) {
+            if (!closed && idle.size() < maxIdle) {
+                idle.addFirst(new IdleConnection(connection));
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Open connections in the background and keep them idle.
+     *
+     * @param count - the number of connections to open.
+     */
+    void prewarm(int count) {
+        for (int i = 0; i < count; i++) {
+            background().submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    synchronized (ConnectionPool.this) {
+                        if (closed || idle.size() >= maxIdle) {
+                            return null;
+                        }
+                    }
+                    release(opener.call());
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Validate the idle connections at an interval. The ones that fail are closed.
+     *
+     * @param seconds - the interval.
+     */
+    void keepAlive(long seconds) {
+        background().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                validateIdle();
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Validate each idle connection. It is taken out of the pool while it is validated.
+     */
+    void validateIdle() {
+        List<IdleConnection> checked = new ArrayList<IdleConnection>();
+        synchronized (this) {
+            checked.addAll(idle);
+            idle.clear();
+        }
+        for (IdleConnection candidate : checked) {
+            if (isValid(candidate.connection)) {
+                synchronized (this) {
+                    if (!closed && idle.size() < maxIdle) {
+                        idle.addLast(new IdleConnection(candidate.connection));
+                        continue;
+                    }
+                }
+            }
+            closeQuietly(candidate.connection);
+        }
+    }
+
+    /**
+     * The number of idle connections.
+     */
+    synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Close the idle connections and stop the background tasks. Connections
+     * released after this are closed.
+     */
+    void close() {
+        List<IdleConnection> remaining;
+        synchronized (this) {
+            closed = true;
+            remaining = new ArrayList<IdleConnection>(idle);
+            idle.clear();
+            if (background != null) {
+                background.shutdownNow();
+            }
+        }
+        for (IdleConnection candidate : remaining) {
+            closeQuietly(candidate.connection);
+        }
+    }
+
+    private synchronized ScheduledExecutorService background() {
+        if (background == null) {
+            background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "connection-pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return background;
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATE_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+        }
+    }
+
+    /**
+     * A connection in the pool and the time it was released.
+     */
+    private static class IdleConnection {
+
+        private final Connection connection;
+
+        private final long since;
+
+        IdleConnection(Connection connection) {
+            this.connection = connection;
+            this.since = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import java.sql.Connection;
+
+/**
+ * Hands out connections to one database profile. Used by the operations
+ * that work on several connections in parallel.
+ */
+interface ConnectionSource {
+
+    /**
+     * Get a connection. It must be given back with {@link #release(Connection)}.
+     *
+     * @return an open connection.
+     */
+    Connection borrow() throws Exception;
+
+    /**
+     * Give a connection back when done with it.
+     *
+     * @param connection - the connection from {@link #borrow()}.
+     */
+    void release(Connection connection) throws Exception;
+}
@@ -0,0 +1,281 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Loads a CSV or TSV file with a header line into a table. The file is
+ * read as UTF-8. Large files are memory-mapped and split into chunks that
+ * end at record boundaries, and the chunks are loaded in parallel, each on
+ * its own connection. As each chunk commits on its own, a failed parallel
+ * load leaves the chunks loaded so far in the table.
+ */
+class CsvImport {
+
+    /** Files smaller than this are loaded on one connection. */
+    static final long PARALLEL_THRESHOLD = 64L * 1024 * 1024;
+
+    /** Target size of a chunk in parallel mode. */
+    static final long CHUNK_SIZE = 16L * 1024 * 1024;
+
+    /** Size of the file window scanned for record boundaries. */
+    private static final long SCAN_WINDOW = 64L * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final CSVFormat format;
+
+    private final int batchSize;
+
+    private final int commitInterval;
+
+    private final int threads;
+
+    private long parallelThreshold = PARALLEL_THRESHOLD;
+
+    private long chunkSize = CHUNK_SIZE;
+
+    /**
+     * Constructor.
+     *
+     * @param format - the CSV format without header settings.
+     * @param batchSize - rows per batch.
+     * @param commitInterval - rows per commit.
+     * @param threads - the number of connections for large files.
+     */
+    CsvImport(CSVFormat format, int batchSize, int commitInterval, int threads) {
+        this.format = format;
+        this.batchSize = batchSize;
+        this.commitInterval = commitInterval;
+        this.threads = threads;
+    }
+
+    /**
+     * Set the file size from which files are loaded in parallel, and the chunk size.
+     * Only lowered in tests.
+     *
+     * @param parallelThreshold - the file size in bytes.
+     * @param chunkSize - the minimum size of a chunk in bytes.
+     */
+    void setChunking(long parallelThreshold, long chunkSize) {
+        this.parallelThreshold = parallelThreshold;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Load a file on one connection.
+     *
+     * @param file - the file to load.
+     * @param table - the table to insert into.
+     * @param connection - the database connection.
+     * @return the number of rows loaded.
+     */
+    long load(File file, String table, Connection connection) throws Exception {
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8), 64 * 1024);
+        try {
+            CSVParser parser = format.withHeader().parse(reader);
+            List<String> columns = headerColumns(parser);
+            return loadRecords(parser.iterator(), table, columns, connection);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Load a file. If it is large and more than one thread is allowed, it is loaded
+     * in chunks in parallel. Each chunk is committed on its own, so this is only
+     * done if the connection is in auto-commit mode. Otherwise the file is loaded
+     * on the connection, in its transaction.
+     *
+     * @param file - the file to load.
+     * @param table - the table to insert into.
+     * @param connection - the database connection for small files and transactions.
+     * @param connections - where to get the connections for large files.
+     * @return the number of rows loaded.
+     */
+    long load(File file, String table, Connection connection, ConnectionSource connections) throws Exception {
+        if (threads < 2 || file.length() < parallelThreshold || !connection.getAutoCommit()) {
+            return load(file, table, connection);
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long headerEnd = nextRecordEnd(channel, 0, 0);
+            List<String> columns = readHeader(channel, headerEnd);
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            long start = headerEnd;
+            long size = channel.size();
+            while (start < size) {
+                long end = nextRecordEnd(channel, start, chunkSize);
+                results.add(pool.submit(chunkLoader(channel, start, end, table, columns, connections)));
+                start = end;
+            }
+            long rowCount = 0;
+            for (Future<Long> result : results) {
+                try {
+                    rowCount += result.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalArgumentException("Parallel load failed. Chunks already loaded stay committed: "
+                        + e.getCause().getMessage(), e.getCause());
+                }
+            }
+            return rowCount;
+        } finally {
+            pool.shutdownNow();
+            inputStream.close();
+        }
+    }
+
+    private Callable<Long> chunkLoader(final FileChannel channel, final long start, final long end,
+            final String table, final List<String> columns, final ConnectionSource connections) {
+        return new Callable<Long>() {
+            public Long call() throws Exception {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                Reader reader = new InputStreamReader(new ByteBufferInputStream(chunk), UTF8);
+                Connection connection = connections.borrow();
+                try {
+                    CSVParser parser = format.parse(reader);
+                    return loadRecords(parser.iterator(), table, columns, connection);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("In chunk at byte " + start + ": " + e.getMessage());
+                } finally {
+                    connections.release(connection);
+                }
+            }
+        };
+    }
+
+    /**
+     * Insert the records in batches.
+     */
+    private long loadRecords(Iterator<CSVRecord> records, String table, List<String> columns,
+            Connection connection) throws Exception {
+        BatchInserter inserter = new BatchInserter(connection, table, columns, batchSize, commitInterval);
+        try {
+            String[] values = new String[inserter.getColumnCount()];
+            while (records.hasNext()) {
+                CSVRecord record = records.next();
+                if (record.size() != values.length) {
+                    throw new IllegalArgumentException("Record " + record.getRecordNumber() + " has "
+                        + record.size() + " values, expected " + values.length);
+                }
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = record.get(i);
+                }
+                try {
+                    inserter.addRow(values);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Record " + record.getRecordNumber() + ": " + e.getMessage());
+                }
+            }
+            return inserter.finish();
+        } finally {
+            inserter.close();
+        }
+    }
+
+    /**
+     * The column names from the header line in the order they appear.
+     */
+    private static List<String> headerColumns(CSVParser parser) {
+        Map<String, Integer> headerMap = parser.getHeaderMap();
+        String[] columns = new String[headerMap.size()];
+        for (Map.Entry<String, Integer> entry : headerMap.entrySet()) {
+            columns[entry.getValue()] = entry.getKey();
+        }
+        return Arrays.asList(columns);
+    }
+
+    private List<String> readHeader(FileChannel channel, long headerEnd) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd);
+        byte[] bytes = new byte[(int) headerEnd];
+        header.get(bytes);
+        CSVParser parser = format.withHeader().parse(new StringReader(new String(bytes, UTF8)));
+        return headerColumns(parser);
+    }
+
+    /**
+     * Find the end of the record that contains the byte at a minimum distance from
+     * the start. The scan keeps track of quotes so that line breaks inside quoted
+     * values are skipped. Quotes and line breaks are single bytes in UTF-8, so the
+     * bytes don't need to be decoded.
+     *
+     * @param channel - the file.
+     * @param start - where a record starts.
+     * @param minLength - the minimum length of the chunk.
+     * @return the position after the line break that ends the record, or the file size.
+     */
+    long nextRecordEnd(FileChannel channel, long start, long minLength) throws IOException {
+        long size = channel.size();
+        Character quoteChar = format.getQuoteCharacter();
+        byte quote = quoteChar == null ? -1 : (byte) quoteChar.charValue();
+        boolean inQuotes = false;
+        long windowStart = start;
+        long searchFrom = start + minLength;
+        while (windowStart < size) {
+            long windowLength = Math.min(SCAN_WINDOW, size - windowStart);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+            for (int i = 0; i < windowLength; i++) {
+                byte b = window.get(i);
+                if (b == quote) {
+                    inQuotes = !inQuotes;
+                } else if (b == '\n' && !inQuotes && windowStart + i >= searchFrom) {
+                    return windowStart + i + 1;
+                }
+            }
+            windowStart += windowLength;
+        }
+        return size;
+    }
+
+    /**
+     * Reads a byte buffer as a stream.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -1,84 +1,238 @@
+import java.io.IOException;
 import java.io.PrintStream;
-import java.sql.Clob;
+import java.io.Reader;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Date;
 
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CreationHelper;
 import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFCell;
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
-import org.apache.poi.xssf.usermodel.XSSFTable;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
+/**
+ * Writes a result set as an Excel Open XML workbook. The workbook is streamed:
+ * only a window of rows is kept in memory, the rest is flushed to a temporary
+ * file, and strings are written inline instead of into a shared-strings table.
+ * When a sheet is full a new sheet is started with the same header line.
+ */
 class ExcelOutput {
 
+    /** Number of rows kept in memory before they are flushed to disk. */
+    static final int DEFAULT_ROW_WINDOW = 100;
+
+    /** Number of rows in an Excel 2007 sheet, including the header line. */
+    static final int MAX_SHEET_ROWS = SpreadsheetVersion.EXCEL2007.getMaxRows();
+
+    /** Maximum length of a sheet name. */
+    private static final int MAX_SHEET_NAME = 31;
+
     private CellStyle dateStyle;
 
     private CellStyle timeStyle;
 
+    private int rowWindow = DEFAULT_ROW_WINDOW;
+
+    private int maxSheetRows = MAX_SHEET_ROWS;
+
+    private OutputSettings outputSettings = OutputSettings.DEFAULT;
+
+    private char[] lobChunk;
+
+    /**
+     * Set the number of rows kept in memory.
+     *
+     * @param rowWindow - number of rows.
+     */
+    void setRowWindow(int rowWindow) {
+        this.rowWindow = rowWindow;
+    }
+
+    /**
+     * Set the number of rows in a sheet before rolling over to a new sheet.
+     * Only lowered in tests.
+     *
+     * @param maxSheetRows - number of rows including the header line.
+     */
+    void setMaxSheetRows(int maxSheetRows) {
+        if (maxSheetRows < 2) {
+            throw new IllegalArgumentException("A sheet must have room for the header and one row");
+        }
+        this.maxSheetRows = maxSheetRows;
+    }
+
+    /**
+     * Set how binary values are written and what is done with text longer
+     * than a cell can hold.
+     *
+     * @param outputSettings - the output settings.
+     */
+    void setOutputSettings(OutputSettings outputSettings) {
+        this.outputSettings = outputSettings;
+    }
+
     /**
      * Output the result set in Excel Open XML format.
      */
     void output(ResultSet rs, PrintStream console) throws Exception {
         ResultSetMetaData rsMd = rs.getMetaData();
         int columnCount = rsMd.getColumnCount();
-        Workbook wb = new XSSFWorkbook();
-        CreationHelper createHelper = wb.getCreationHelper();
-        XSSFSheet sheet = (XSSFSheet) wb.createSheet();
-        String tableName = rsMd.getTableName(1);
-        tableName = (tableName == null || "".equals(tableName)) ? "Output" : tableName;
-        wb.setSheetName(0, tableName);
-        dateStyle = wb.createCellStyle();
-        dateStyle.setDataFormat(createHelper.createDataFormat().getFormat("dd/MM/yyyy"));
-        timeStyle = wb.createCellStyle();
-        timeStyle.setDataFormat(createHelper.createDataFormat().getFormat("dd/MM/yyyy HH:mm:ss"));
-        // Make the header line
-        short rowNum = 0;
-        Row row = sheet.createRow(rowNum++);
+        ColumnPlan plan = new ColumnPlan(rsMd, outputSettings);
+        SXSSFWorkbook wb = new SXSSFWorkbook(null, rowWindow, true, false);
+        try {
+            CreationHelper createHelper = wb.getCreationHelper();
+            String tableName = rsMd.getTableName(1);
+            tableName = (tableName == null || "".equals(tableName)) ? "Output" : tableName;
+            dateStyle = wb.createCellStyle();
+            dateStyle.setDataFormat(createHelper.createDataFormat().getFormat("dd/MM/yyyy"));
+            timeStyle = wb.createCellStyle();
+            timeStyle.setDataFormat(createHelper.createDataFormat().getFormat("dd/MM/yyyy HH:mm:ss"));
+
+            int sheetNum = 1;
+            Sheet sheet = createSheet(wb, rsMd, sheetName(tableName, sheetNum));
+            int rowNum = 1;
+            long dataRow = 0;
+            while (rs.next()) {
+                dataRow++;
+                if (rowNum == maxSheetRows) {
+                    sheetNum++;
+                    sheet = createSheet(wb, rsMd, sheetName(tableName, sheetNum));
+                    rowNum = 1;
+                }
+                Row row = sheet.createRow(rowNum++);
+                for (int colNum = 1; colNum <= columnCount; colNum++) {
+                    writeCell(row.createCell(colNum - 1), rs, colNum, plan, dataRow);
+                }
+            }
+            FlightEvents.Event flush = FlightEvents.FLUSH.begin();
+            if (flush.isRecording()) {
+                MeteredOutputStream meter = new MeteredOutputStream(console);
+                wb.write(meter);
+                flush.set(0, "excel").set(1, meter.getBytes()).commit();
+            } else {
+                wb.write(console);
+            }
+        } finally {
+            wb.dispose();
+        }
+    }
+
+    /**
+     * Create a new sheet and write the header line.
+     */
+    private Sheet createSheet(SXSSFWorkbook wb, ResultSetMetaData rsMd, String name) throws SQLException {
+        Sheet sheet = wb.createSheet(name);
+        int columnCount = rsMd.getColumnCount();
+        Row row = sheet.createRow(0);
         for (int colNum = 1; colNum <= columnCount; colNum++) {
             String columnName = rsMd.getColumnName(colNum);
             Cell cell = row.createCell(colNum - 1);
             cell.setCellValue(columnName);
         }
-        // Data
-        while (rs.next()) {
-            row = sheet.createRow(rowNum++);
-            for (int colNum = 1; colNum <= columnCount; colNum++) {
-                Cell cell = row.createCell(colNum - 1);
-                Object rawValue = rs.getObject(colNum);
-                writeCell(cell, rawValue);
+        return sheet;
+    }
+
+    /**
+     * Name of the n'th sheet. The first sheet is named after the table,
+     * the next ones get a number appended.
+     */
+    private static String sheetName(String tableName, int sheetNum) {
+        if (sheetNum == 1) {
+            return tableName;
+        }
+        String suffix = " (" + sheetNum + ")";
+        if (tableName.length() + suffix.length() > MAX_SHEET_NAME) {
+            tableName = tableName.substring(0, MAX_SHEET_NAME - suffix.length());
+        }
+        return tableName + suffix;
+    }
+
+    /**
+     * Write a value with the getter the plan has for its column. Booleans,
+     * integers and floating point numbers become numeric cells, dates and
+     * timestamps become date cells, and the rest is written as text.
+     */
+    private void writeCell(Cell cell, ResultSet rs, int colNum, ColumnPlan plan, long dataRow)
+            throws SQLException, IOException {
+        switch (plan.getKind(colNum)) {
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(colNum);
+                if (!rs.wasNull()) {
+                    cell.setCellValue(value);
+                }
+                break;
+            }
+            case INTEGER: {
+                int value = rs.getInt(colNum);
+                if (!rs.wasNull()) {
+                    cell.setCellValue(value);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(colNum);
+                if (!rs.wasNull()) {
+                    cell.setCellValue(value);
+                }
+                break;
+            }
+            case TIMESTAMP: {
+                Timestamp value = rs.getTimestamp(colNum);
+                if (value != null) {
+                    cell.setCellValue(value);
+                    cell.setCellStyle(timeStyle);
+                }
+                break;
+            }
+            case DATE:
+            case TIME: {
+                Date value = plan.getKind(colNum) == ColumnPlan.Kind.DATE ? rs.getDate(colNum) : rs.getTime(colNum);
+                if (value != null) {
+                    cell.setCellValue(value);
+                    cell.setCellStyle(dateStyle);
+                }
+                break;
+            }
+            default: {
+                String value = plan.isLob(colNum) ? readLob(rs, colNum, plan) : plan.getString(rs, colNum);
+                if (value != null && value.length() > OutputSettings.EXCEL_MAX_TEXT) {
+                    if (outputSettings.getExcelPolicy() == OutputSettings.ExcelPolicy.FAIL) {
+                        throw new IllegalArgumentException("The value of column "
+                                + rs.getMetaData().getColumnName(colNum) + " in row " + dataRow
+                                + " is longer than the " + OutputSettings.EXCEL_MAX_TEXT
+                                + " characters an Excel cell can hold. Use \\set exceltext truncate to cut it.");
+                    }
+                    value = value.substring(0, OutputSettings.EXCEL_MAX_TEXT);
+                }
+                if (value != null) {
+                    cell.setCellValue(value);
+                }
             }
         }
-        wb.write(console);
     }
 
-    private void writeCell(Cell cell, Object rawValue) throws Exception {
-        if (rawValue == null) {
-            cell.setCellValue((String) null);
-        } else if (rawValue instanceof Boolean) {
-            cell.setCellValue(((Boolean) rawValue).booleanValue());
-        } else if (rawValue instanceof Double) {
-            cell.setCellValue(((Double) rawValue).doubleValue());
-        } else if (rawValue instanceof Integer) {
-            cell.setCellValue(((Integer) rawValue).intValue());
-        } else if (rawValue instanceof Timestamp) {
-            cell.setCellValue(((Timestamp) rawValue));
-            cell.setCellStyle(timeStyle);
-        } else if (rawValue instanceof Date) {
-            cell.setCellValue(((Date) rawValue));
-            cell.setCellStyle(dateStyle);
-        } else if (rawValue instanceof Clob) {
-            Clob tValue = (Clob) rawValue;
-            cell.setCellValue(tValue.getSubString(1, (int) tValue.length()));
-        } else {
-            cell.setCellValue(rawValue.toString());
+    /**
+     * Read a LOB, but no more than one character past what a cell can hold.
+     *
+     * @return the text or null.
+     */
+    private String readLob(ResultSet rs, int colNum, ColumnPlan plan) throws SQLException, IOException {
+        Reader lob = plan.openReader(rs, colNum);
+        if (lob == null) {
+            return null;
+        }
+        try {
+            if (lobChunk == null) {
+                lobChunk = new char[OutputSettings.EXCEL_MAX_TEXT + 1];
+            }
+            return new String(lobChunk, 0, ColumnPlan.fill(lob, lobChunk));
+        } finally {
+            lob.close();
         }
     }
 }
@@ -0,0 +1,199 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * Controls how rows are fetched from the database. Statements are always
+ * created forward-only and read-only so the driver can use a server-side cursor.
+ * The fetch size can be:
+ * <ul>
+ *  <li>a number - the number of rows per round trip,</li>
+ *  <li>"auto" - sized from the row width in the result set's metadata,</li>
+ *  <li>"stream" - the driver's row-by-row streaming mode,</li>
+ *  <li>"default" - whatever the driver does.</li>
+ * </ul>
+ */
+class FetchSettings {
+
+    /** Fetch size used for the first round trip in adaptive mode. */
+    static final int ADAPTIVE_FIRST_FETCH = 100;
+
+    /** Target number of bytes per round trip in adaptive mode. */
+    static final int DEFAULT_FETCH_BYTES = 1024 * 1024;
+
+    /** Fetch size for streaming with drivers that have no special mode. */
+    static final int DEFAULT_STREAM_FETCH = 1000;
+
+    /** Lower bound of the computed fetch size. */
+    private static final int MIN_ADAPTIVE = 10;
+
+    /** Upper bound of the computed fetch size. */
+    private static final int MAX_ADAPTIVE = 10000;
+
+    /** Columns such as LOBs report huge display sizes. Cap the estimate. */
+    private static final int MAX_COLUMN_WIDTH = 4096;
+
+    /** Rows per round trip. Zero means driver default. */
+    private int fetchSize;
+
+    private boolean adaptive;
+
+    private boolean streaming;
+
+    private int fetchBytes = DEFAULT_FETCH_BYTES;
+
+    /**
+     * Read the settings of a profile. The keys are db.fetchSize and db.fetchBytes.
+     *
+     * @param props - the configuration.
+     * @param prefix - the profile prefix including the dot, or empty.
+     * @return the settings.
+     */
+    static FetchSettings fromProperties(Properties props, String prefix) {
+        FetchSettings settings = new FetchSettings();
+        String fetchBytes = props.getProperty(prefix + "db.fetchBytes");
+        if (fetchBytes != null) {
+            settings.setFetchBytes(fetchBytes.trim());
+        }
+        String fetchSize = props.getProperty(prefix + "db.fetchSize");
+        if (fetchSize != null) {
+            settings.setFetchSize(fetchSize.trim());
+        }
+        return settings;
+    }
+
+    /**
+     * Set the fetch size.
+     *
+     * @param value - a number from 1 up, "auto", "stream" or "default".
+     */
+    void setFetchSize(String value) {
+        String lowerValue = value.toLowerCase();
+        if ("auto".equals(lowerValue)) {
+            fetchSize = ADAPTIVE_FIRST_FETCH;
+            adaptive = true;
+            streaming = false;
+        } else if ("stream".equals(lowerValue)) {
+            fetchSize = 0;
+            adaptive = false;
+            streaming = true;
+        } else if ("default".equals(lowerValue)) {
+            fetchSize = 0;
+            adaptive = false;
+            streaming = false;
+        } else {
+            fetchSize = parsePositive(value, "fetch size");
+            adaptive = false;
+            streaming = false;
+        }
+    }
+
+    /**
+     * Set the target number of bytes per round trip for adaptive mode.
+     *
+     * @param value - number of bytes.
+     */
+    void setFetchBytes(String value) {
+        fetchBytes = parsePositive(value, "fetch bytes");
+    }
+
+    private static int parsePositive(String value, String what) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal " + what + ": " + value);
+        }
+        if (number < 1) {
+            throw new IllegalArgumentException("Illegal " + what + ": " + value);
+        }
+        return number;
+    }
+
+    /**
+     * Create a statement set up according to the settings.
+     *
+     * @param connection - the database connection.
+     * @return the statement.
+     */
+    Statement createStatement(Connection connection) throws SQLException {
+        Statement st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        configure(st);
+        return st;
+    }
+
+    /**
+     * Set the fetch size of a statement according to the settings. The statement
+     * should have been created forward-only and read-only.
+     *
+     * @param st - the statement.
+     */
+    void configure(Statement st) throws SQLException {
+        if (streaming) {
+            st.setFetchSize(streamingFetchSize(st.getConnection()));
+        } else if (fetchSize > 0) {
+            st.setFetchSize(fetchSize);
+        }
+    }
+
+    /**
+     * MySQL Connector/J only streams rows when the fetch size is Integer.MIN_VALUE.
+     * Other drivers stream with an ordinary fetch size on a forward-only cursor.
+     */
+    private static int streamingFetchSize(Connection connection) throws SQLException {
+        String url = connection.getMetaData().getURL();
+        if (url != null && (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:"))) {
+            return Integer.MIN_VALUE;
+        }
+        return DEFAULT_STREAM_FETCH;
+    }
+
+    /**
+     * Adjust the fetch size of an open result set. Only does something in adaptive mode.
+     * The first round trip has already been made with a small fetch size so the first
+     * rows come back quickly.
+     *
+     * @param rs - the result set.
+     */
+    void apply(ResultSet rs) throws SQLException {
+        if (adaptive) {
+            rs.setFetchSize(adaptiveFetchSize(rs.getMetaData()));
+        }
+    }
+
+    /**
+     * Estimate the number of rows that fit in the target number of bytes.
+     *
+     * @param rsMd - metadata of the result set.
+     * @return the fetch size.
+     */
+    int adaptiveFetchSize(ResultSetMetaData rsMd) throws SQLException {
+        long rowWidth = 0;
+        int columnCount = rsMd.getColumnCount();
+        for (int i = 1; i <= columnCount; i++) {
+            int width = rsMd.getColumnDisplaySize(i);
+            if (width <= 0 || width > MAX_COLUMN_WIDTH) {
+                width = MAX_COLUMN_WIDTH;
+            }
+            rowWidth += width;
+        }
+        long rows = fetchBytes / Math.max(rowWidth, 1);
+        return (int) Math.max(MIN_ADAPTIVE, Math.min(MAX_ADAPTIVE, rows));
+    }
+
+    @Override
+    public String toString() {
+        if (adaptive) {
+            return "auto";
+        } else if (streaming) {
+            return "stream";
+        } else if (fetchSize == 0) {
+            return "default";
+        } else {
+            return Integer.toString(fetchSize);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Java Flight Recorder events for the phases of dbtools, so that a recording
+ * shows them next to the GC, allocation and socket events of the JVM. The
+ * event types are made at runtime with jdk.jfr.EventFactory through
+ * reflection, so the code builds for old Java versions and the events do
+ * nothing where there is no JFR. Whether a type is enabled is kept and
+ * checked again when a recording starts or stops, so while no recording has
+ * a type enabled its events cost no reflection and no object.
+ */
+final class FlightEvents {
+
+    /** Rows in a row batch event. */
+    static final int ROW_BATCH = 1000;
+
+    private static final String CATEGORY = "dbtools";
+
+    private static Constructor<?> annotationElement;
+    private static Constructor<?> valueDescriptor;
+    private static Method create;
+    private static Method newEvent;
+    private static Method getEventType;
+    private static Method typeEnabled;
+    private static Method isEnabled;
+    private static Method begin;
+    private static Method set;
+    private static Method commit;
+    private static Class<?> nameAnnotation;
+    private static Class<?> labelAnnotation;
+    private static Class<?> categoryAnnotation;
+    private static Class<?> stackTraceAnnotation;
+    private static Class<?> dataAmountAnnotation;
+    private static Class<?> timespanAnnotation;
+
+    static {
+        try {
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor")
+                .getConstructor(Class.class, String.class, List.class);
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            create = factoryClass.getMethod("create", List.class, List.class);
+            newEvent = factoryClass.getMethod("newEvent");
+            getEventType = factoryClass.getMethod("getEventType");
+            typeEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            isEnabled = eventClass.getMethod("isEnabled");
+            begin = eventClass.getMethod("begin");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+            nameAnnotation = Class.forName("jdk.jfr.Name");
+            labelAnnotation = Class.forName("jdk.jfr.Label");
+            categoryAnnotation = Class.forName("jdk.jfr.Category");
+            stackTraceAnnotation = Class.forName("jdk.jfr.StackTrace");
+            dataAmountAnnotation = Class.forName("jdk.jfr.DataAmount");
+            timespanAnnotation = Class.forName("jdk.jfr.Timespan");
+        } catch (Exception e) {
+            // No JFR or no EventFactory (before Java 12). The events do nothing.
+            create = null;
+        }
+    }
+
+    /** The types made, to check again when the recordings change. */
+    private static final List<Type> TYPES = new CopyOnWriteArrayList<Type>();
+
+    /** Execution of an SQL statement. */
+    static final Type STATEMENT = new Type("Statement", "Statement Execute",
+        new Field("sqlHash", "SQL Hash", int.class, null),
+        new Field("profile", "Profile", String.class, null));
+
+    /** A batch of rows fetched from a result set and written out. */
+    static final Type ROWS = new Type("RowBatch", "Row Batch",
+        new Field("format", "Output Format", String.class, null),
+        new Field("rows", "Rows", long.class, null),
+        new Field("fetchTime", "Fetch Time", long.class, timespanAnnotation),
+        new Field("outputTime", "Format and Write Time", long.class, timespanAnnotation));
+
+    /** Output flushed or written in one piece, such as an XML document or an Excel workbook. */
+    static final Type FLUSH = new Type("OutputFlush", "Output Flush",
+        new Field("output", "Output", String.class, null),
+        new Field("bytes", "Bytes", long.class, dataAmountAnnotation));
+
+    /** A database connection being opened. */
+    static final Type CONNECT = new Type("ConnectionOpen", "Connection Open",
+        new Field("profile", "Profile", String.class, null));
+
+    static {
+        if (create != null) {
+            listenToRecordings();
+        }
+    }
+
+    private FlightEvents() {
+    }
+
+    /**
+     * Check the types again whenever a recording changes state.
+     */
+    private static void listenToRecordings() {
+        try {
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            Object listener = Proxy.newProxyInstance(FlightEvents.class.getClassLoader(),
+                new Class<?>[] {listenerClass}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(this, args);
+                        }
+                        for (Type type : TYPES) {
+                            type.refresh();
+                        }
+                        return null;
+                    }
+                });
+            Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listenerClass).invoke(null, listener);
+        } catch (Exception e) {
+            // Without the listener a recording started later isn't seen. Nothing is recorded then.
+        }
+    }
+
+    /**
+     * A field of an event type.
+     */
+    private static class Field {
+        private final String name;
+        private final String label;
+        private final Class<?> type;
+        private final Class<?> unit;
+
+        /**
+         * @param unit - DataAmount for bytes, Timespan for nanoseconds or null.
+         */
+        Field(String name, String label, Class<?> type, Class<?> unit) {
+            this.name = name;
+            this.label = label;
+            this.type = type;
+            this.unit = unit;
+        }
+    }
+
+    /**
+     * An event type.
+     */
+    static final class Type {
+
+        private Object factory;
+
+        private Object eventType;
+
+        private volatile boolean enabled;
+
+        Type(String name, String label, Field... fields) {
+            if (create == null) {
+                return;
+            }
+            try {
+                List<Object> annotations = Arrays.asList(
+                    annotation(nameAnnotation, CATEGORY + "." + name),
+                    annotation(labelAnnotation, label),
+                    annotation(categoryAnnotation, new String[] {CATEGORY}),
+                    // The stack would only show the reflection that commits the event.
+                    annotation(stackTraceAnnotation, Boolean.FALSE));
+                List<Object> descriptors = new ArrayList<Object>(fields.length);
+                for (Field field : fields) {
+                    List<Object> fieldAnnotations = new ArrayList<Object>();
+                    fieldAnnotations.add(annotation(labelAnnotation, field.label));
+                    if (field.unit != null) {
+                        fieldAnnotations.add(annotation(field.unit,
+                            field.unit == dataAmountAnnotation ? "BYTES" : "NANOSECONDS"));
+                    }
+                    descriptors.add(valueDescriptor.newInstance(field.type, field.name, fieldAnnotations));
+                }
+                factory = create.invoke(null, annotations, descriptors);
+                eventType = getEventType.invoke(factory);
+            } catch (Exception e) {
+                factory = null;
+                return;
+            }
+            refresh();
+            TYPES.add(this);
+        }
+
+        /**
+         * Check again if a recording has the type enabled.
+         */
+        void refresh() {
+            try {
+                enabled = (Boolean) typeEnabled.invoke(eventType);
+            } catch (Exception e) {
+                enabled = false;
+            }
+        }
+
+        private static Object annotation(Class<?> type, Object value) throws Exception {
+            return annotationElement.newInstance(type.asSubclass(Annotation.class), value);
+        }
+
+        /**
+         * Start an event. Its duration runs until it is committed.
+         *
+         * @return the event. It does nothing if no recording has the type enabled.
+         */
+        Event begin() {
+            if (!enabled) {
+                return Event.NONE;
+            }
+            try {
+                Object event = newEvent.invoke(factory);
+                if (!(Boolean) isEnabled.invoke(event)) {
+                    return Event.NONE;
+                }
+                FlightEvents.begin.invoke(event);
+                return new Event(event);
+            } catch (Exception e) {
+                return Event.NONE;
+            }
+        }
+
+        /**
+         * Check if a recording has the type enabled.
+         */
+        boolean isEnabled() {
+            return enabled;
+        }
+    }
+
+    /**
+     * An event being recorded.
+     */
+    static class Event {
+
+        static final Event NONE = new Event(null);
+
+        private final Object event;
+
+        Event(Object event) {
+            this.event = event;
+        }
+
+        /**
+         * Check if the event is recorded. If not, setting fields does nothing.
+         */
+        boolean isRecording() {
+            return event != null;
+        }
+
+        /**
+         * Set a field.
+         *
+         * @param index - the position of the field in the type.
+         * @param value - the value, boxed.
+         * @return this event.
+         */
+        Event set(int index, Object value) {
+            if (event != null) {
+                try {
+                    FlightEvents.set.invoke(event, index, value);
+                } catch (Exception e) {
+                    // The event is still committed without the field.
+                }
+            }
+            return this;
+        }
+
+        /**
+         * End the event and write it to the recording.
+         */
+        void commit() {
+            if (event != null) {
+                try {
+                    FlightEvents.commit.invoke(event);
+                } catch (Exception e) {
+                    // Nothing to do. Recording must never break the program.
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap a result set to record a row batch event every ROW_BATCH rows.
+     * The result set is returned as it is unless a recording has the event
+     * enabled.
+     *
+     * @param rs - the result set.
+     * @param format - the output format, for the event.
+     * @return the result set to read the rows from.
+     */
+    static ResultSet rowBatches(ResultSet rs, final String format) {
+        if (!ROWS.isEnabled()) {
+            return rs;
+        }
+        return new FilterResultSet(rs) {
+            private Event batch;
+            private long rows;
+            private long fetchNanos;
+            private long batchStart;
+
+            @Override
+            public boolean next() throws SQLException {
+                if (batch == null) {
+                    batch = ROWS.begin();
+                    batchStart = System.nanoTime();
+                }
+                long before = System.nanoTime();
+                boolean more = rs.next();
+                fetchNanos += System.nanoTime() - before;
+                if (!more) {
+                    commitBatch();
+                } else if (++rows == ROW_BATCH) {
+                    commitBatch();
+                }
+                return more;
+            }
+
+            @Override
+            public void close() throws SQLException {
+                commitBatch();
+                rs.close();
+            }
+
+            private void commitBatch() {
+                if (batch != null) {
+                    long batchNanos = System.nanoTime() - batchStart;
+                    batch.set(0, format).set(1, rows).set(2, fetchNanos).set(3, batchNanos - fetchNanos).commit();
+                }
+                batch = null;
+                rows = 0;
+                fetchNanos = 0;
+            }
+        };
+    }
+}
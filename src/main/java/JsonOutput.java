@@ -0,0 +1,339 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Writes a result set as JSON, either as one array of objects or as one
+ * object per line (NDJSON). The text is encoded to UTF-8 straight into a
+ * byte buffer, so no String is made for a row, and the keys are encoded once
+ * per result set. Booleans and numbers are written as JSON booleans and
+ * numbers, everything else as strings. LOBs are written a chunk at a time,
+ * so the memory used doesn't depend on the size of the result.
+ */
+class JsonOutput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] NULL = ascii("null");
+
+    private static final byte[] TRUE = ascii("true");
+
+    private static final byte[] FALSE = ascii("false");
+
+    private static final byte[] LONG_MIN = ascii(Long.toString(Long.MIN_VALUE));
+
+    /** The escape of each ASCII character, or null if it is written as it is. */
+    private static final byte[][] ESCAPES = new byte[128][];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = ascii(String.format("\\u%04x", c));
+        }
+        ESCAPES['\b'] = ascii("\\b");
+        ESCAPES['\t'] = ascii("\\t");
+        ESCAPES['\n'] = ascii("\\n");
+        ESCAPES['\f'] = ascii("\\f");
+        ESCAPES['\r'] = ascii("\\r");
+        ESCAPES['"'] = ascii("\\\"");
+        ESCAPES['\\'] = ascii("\\\\");
+    }
+
+    private final OutputStream out;
+
+    private final boolean lines;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int count;
+
+    /** A high surrogate at the end of the last chunk of a string, or 0. */
+    private char pendingHigh;
+
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Constructor.
+     *
+     * @param out - where to write.
+     * @param lines - true for one object per line, false for an array.
+     */
+    JsonOutput(OutputStream out, boolean lines) {
+        this.out = out;
+        this.lines = lines;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(UTF8);
+    }
+
+    /**
+     * Output the result set. Pieces written in order with the first having
+     * the head and the last having the tail concatenate into one document,
+     * as long as the piece with the head has a row.
+     *
+     * @param rs - the result set.
+     * @param head - start the array.
+     * @param tail - end the array.
+     * @param settings - the output settings.
+     */
+    void output(ResultSet rs, boolean head, boolean tail, OutputSettings settings) throws SQLException, IOException {
+        ResultSetMetaData rsMd = rs.getMetaData();
+        ColumnPlan plan = new ColumnPlan(rsMd, settings);
+        int columnCount = plan.getColumnCount();
+        byte[][] keys = new byte[columnCount][];
+        for (int i = 0; i < columnCount; i++) {
+            keys[i] = encodeKey(i == 0 ? "{" : ",", rsMd.getColumnLabel(i + 1));
+        }
+        char[] chunk = plan.hasLobs() ? new char[OutputSettings.CHUNK_SIZE] : null;
+        if (head && !lines) {
+            write((byte) '[');
+        }
+        boolean first = head;
+        while (rs.next()) {
+            if (!lines) {
+                if (!first) {
+                    write((byte) ',');
+                }
+                write((byte) '\n');
+            }
+            first = false;
+            for (int i = 1; i <= columnCount; i++) {
+                write(keys[i - 1]);
+                writeValue(rs, i, plan, chunk);
+            }
+            write((byte) '}');
+            if (lines) {
+                write((byte) '\n');
+            }
+        }
+        if (tail && !lines) {
+            write((byte) '\n');
+            write((byte) ']');
+            write((byte) '\n');
+        }
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Encode a key with the text before it.
+     */
+    private static byte[] encodeKey(String prefix, String name) {
+        StringBuilder key = new StringBuilder(prefix).append('"');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x80 && ESCAPES[c] != null) {
+                key.append(new String(ESCAPES[c], UTF8));
+            } else {
+                key.append(c);
+            }
+        }
+        return key.append("\":").toString().getBytes(UTF8);
+    }
+
+    private void writeValue(ResultSet rs, int column, ColumnPlan plan, char[] chunk)
+            throws SQLException, IOException {
+        switch (plan.getKind(column)) {
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(column);
+                write(rs.wasNull() ? NULL : value ? TRUE : FALSE);
+                break;
+            }
+            case INTEGER:
+            case LONG: {
+                long value = rs.getLong(column);
+                if (rs.wasNull()) {
+                    write(NULL);
+                } else {
+                    writeLong(value);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(column);
+                if (rs.wasNull()) {
+                    write(NULL);
+                } else if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    // JSON has no numbers for these.
+                    writeString(Double.toString(value));
+                } else {
+                    writeAscii(Double.toString(value));
+                }
+                break;
+            }
+            case DECIMAL: {
+                BigDecimal value = rs.getBigDecimal(column);
+                if (value == null) {
+                    write(NULL);
+                } else {
+                    writeAscii(value.toString());
+                }
+                break;
+            }
+            case CLOB:
+            case BLOB: {
+                Reader lob = plan.openReader(rs, column);
+                if (lob == null) {
+                    write(NULL);
+                    break;
+                }
+                try {
+                    write((byte) '"');
+                    int n;
+                    while ((n = lob.read(chunk)) > 0) {
+                        writeChars(CharBuffer.wrap(chunk, 0, n));
+                    }
+                    endChars();
+                    write((byte) '"');
+                } finally {
+                    lob.close();
+                }
+                break;
+            }
+            default: {
+                String value = plan.getString(rs, column);
+                if (value == null) {
+                    write(NULL);
+                } else {
+                    writeString(value);
+                }
+            }
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        write((byte) '"');
+        writeChars(value);
+        endChars();
+        write((byte) '"');
+    }
+
+    /**
+     * Escape and encode text to UTF-8. A surrogate pair may be split between
+     * two calls. Unpaired surrogates are written as '?' like String.getBytes() does.
+     */
+    private void writeChars(CharSequence text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    ensure(4);
+                    buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                    continue;
+                }
+                write((byte) '?');
+            }
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    write((byte) c);
+                } else {
+                    write(escape);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isLowSurrogate(c)) {
+                write((byte) '?');
+            } else {
+                ensure(3);
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * End a string written with writeChars().
+     */
+    private void endChars() throws IOException {
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+            write((byte) '?');
+        }
+    }
+
+    /**
+     * Write a number without making a String of it.
+     */
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            write(LONG_MIN);
+            return;
+        }
+        if (value < 0) {
+            write((byte) '-');
+            value = -value;
+        }
+        int n = digits.length;
+        do {
+            digits[--n] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        ensure(digits.length - n);
+        System.arraycopy(digits, n, buffer, count, digits.length - n);
+        count += digits.length - n;
+    }
+
+    private void writeAscii(String text) throws IOException {
+        int length = text.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void write(byte b) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = b;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - count) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Make room for a number of bytes. Only used for short runs of bytes.
+     */
+    private void ensure(int length) throws IOException {
+        if (count + length > buffer.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it and the time the writes and flushes take.
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+    private long bytes;
+
+    private long nanos;
+
+    MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long before = System.nanoTime();
+        out.write(b);
+        nanos += System.nanoTime() - before;
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long before = System.nanoTime();
+        out.write(b, off, len);
+        nanos += System.nanoTime() - before;
+        bytes += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long before = System.nanoTime();
+        out.flush();
+        nanos += System.nanoTime() - before;
+    }
+
+    /**
+     * The number of bytes written.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The time spent writing and flushing in nanoseconds.
+     */
+    long getNanos() {
+        return nanos;
+    }
+}
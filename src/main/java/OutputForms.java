@@ -1,172 +1,375 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.charset.Charset;
-import java.sql.Blob;
-import java.sql.Clob;
+import java.io.Reader;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
 
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVFormat;
 
 enum OutputForms {
 
-    CSV {
+    CSV("csv") {
         /**
          * Output the result set in CSV format.
          */
-        void output(ResultSet rs, PrintStream console) throws Exception {
-            CSVPrinter printer = CSVFormat.DEFAULT.withHeader(rs).print(console);
-            final int columnCount = rs.getMetaData().getColumnCount();
-            while (rs.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    printer.print(getColumnValue(rs, i));
-                }
-                printer.println();
-            }
-            printer.flush();
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            printRecords(rs, console, head ? CSVFormat.DEFAULT.withHeader(rs) : CSVFormat.DEFAULT, settings);
         }
 
     },
-    TSV {
+    TSV("tsv") {
         /**
          * Output the result set in TSV format.
          */
-        void output(ResultSet rs, PrintStream console) throws Exception {
-            CSVPrinter printer = CSVFormat.TDF.withHeader(rs).print(console);
-            final int columnCount = rs.getMetaData().getColumnCount();
-            while (rs.next()) {
-                for (int i = 1; i <= columnCount; i++) {
-                    printer.print(getColumnValue(rs, i));
-                }
-                printer.println();
-            }
-            printer.flush();
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            printRecords(rs, console, head ? CSVFormat.TDF.withHeader(rs) : CSVFormat.TDF, settings);
         }
 
     },
-    OLDTSV {
+    OLDTSV("tsv") {
         /**
-         * Output the result set in TSV format with \N for nulls.
+         * Output the result set in TSV format with \N for nulls. Binary values
+         * are the driver's text for them unless hex or base64 is set.
          */
-        void output(ResultSet rs, PrintStream console) throws Exception {
-            ResultSetMetaData rsMd = rs.getMetaData();
-            int columnCount = rsMd.getColumnCount();
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            ColumnPlan plan = new ColumnPlan(rs.getMetaData(), settings, true);
+            int columnCount = plan.getColumnCount();
+            char[] chunk = new char[OutputSettings.CHUNK_SIZE];
+            StringBuilder line = new StringBuilder();
             while (rs.next()) {
+                line.setLength(0);
                 for (int i = 1; i <= columnCount; i++) {
-                    String value = rs.getString(i);
-                    console.print(value == null ? "\\N" : value);
-                    if (i == columnCount) {
-                        console.println();
-                    } else {
-                        console.print("\t");
+                    if (i > 1) {
+                        line.append('\t');
+                    }
+                    if (plan.isLob(i)) {
+                        Reader lob = plan.openReader(rs, i);
+                        if (lob == null) {
+                            line.append("\\N");
+                        } else {
+                            console.print(line);
+                            line.setLength(0);
+                            copy(lob, console, chunk);
+                        }
+                    } else if (!plan.append(rs, i, line)) {
+                        line.append("\\N");
                     }
                 }
+                console.println(line);
             }
         }
     },
-    EXCEL {
+    EXCEL("xlsx") {
         /**
-         * Output the result set in Excel Open XML format.
+         * Output the result set in Excel Open XML format. A workbook can't be split.
          */
-        void output(ResultSet rs, PrintStream console) throws Exception {
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            if (!head || !tail) {
+                throw new IllegalArgumentException("Excel output can't be written in pieces");
+            }
             ExcelOutput eo = new ExcelOutput();
+            eo.setOutputSettings(settings);
             eo.output(rs, console);
         }
     },
-    ACCESSXML {
+    BINARY("bin") {
+        /**
+         * Output the result set in the typed binary dump format. See BinaryFormat.
+         */
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(console, 64 * 1024));
+            ResultSetMetaData rsMd = rs.getMetaData();
+            byte[] tags = head ? BinaryFormat.writeHeader(rsMd, out) : BinaryFormat.tags(rsMd);
+            BinaryFormat.writeRows(rs, tags, out);
+            if (tail) {
+                BinaryFormat.writeEnd(out);
+            }
+            out.flush();
+        }
+    },
+    ARROW("arrow") {
+        /**
+         * Output the result set as an Apache Arrow IPC stream.
+         */
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            new ArrowOutput(console, settings.getArrowBatchRows()).output(rs, head, tail);
+        }
+    },
+    JSON("json") {
+        /**
+         * Output the result set as a JSON array of objects. See JsonOutput.
+         */
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            new JsonOutput(console, false).output(rs, head, tail, settings);
+        }
+    },
+    NDJSON("ndjson") {
+        /**
+         * Output the result set as newline-delimited JSON, one object per row.
+         */
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            new JsonOutput(console, true).output(rs, head, tail, settings);
+        }
+    },
+    SQL("sql") {
+        /**
+         * Output the result set as INSERT statements. See SqlOutput.
+         */
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
+            new SqlOutput(console, settings.getSqlStatementRows(), settings.getSqlDialect(), settings.getSqlTable())
+                .output(rs);
+        }
+    },
+    ACCESSXML("xml") {
         /**
          * Output the result in MS-Access compatible XML.
          * FIXME: Convert spaces in column names to _x0020_
          */
-        void output(ResultSet rs, PrintStream console) throws Exception {
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
             String dataSet = "dataroot";
             XmlWriter xmlWriter;
             xmlWriter = new XmlWriter(console, "UTF-8");
+            xmlWriter.setLegacyEscaping(settings.getXmlEscape() == OutputSettings.XmlEscape.LEGACY);
             xmlWriter.enablePrettyPrint(true);
-            xmlWriter.writeDeclaration();
-            xmlWriter.writeElement(dataSet);
+            if (head) {
+                xmlWriter.writeDeclaration();
+                xmlWriter.writeElement(dataSet);
+            } else {
+                xmlWriter.resumeElement(dataSet);
+            }
 
             ResultSetMetaData rsMd = rs.getMetaData();
+            ColumnPlan plan = new ColumnPlan(rsMd, settings);
             int columnCount = rsMd.getColumnCount();
             String tableName = rsMd.getTableName(1);
             tableName = (tableName == null || "".equals(tableName)) ? "row" : tableName;
+            char[] chunk = new char[OutputSettings.CHUNK_SIZE];
 
             while (rs.next()) {
                 xmlWriter.writeElement(tableName);
                 for (int columnNum = 1; columnNum <= columnCount; columnNum++) {
-                    String value = getColumnValue(rs, columnNum);
+                    String columnName = rsMd.getColumnName(columnNum);
+                    if (plan.isLob(columnNum)) {
+                        Reader lob = plan.openReader(rs, columnNum);
+                        if (lob == null) {
+                            continue;
+                        }
+                        try {
+                            xmlWriter.writeElement(columnName);
+                            xmlWriter.writeText(lob, chunk);
+                            xmlWriter.endElement();
+                        } finally {
+                            lob.close();
+                        }
+                        continue;
+                    }
+                    String value = plan.getString(rs, columnNum);
                     if (value == null) {
                         continue;
                     }
-                    String columnName = rsMd.getColumnName(columnNum);
                     xmlWriter.writeElementWithText(columnName, value);
                 }
                 xmlWriter.endElement();
             }
-            xmlWriter.endElement();
-            xmlWriter.close();
+            if (tail) {
+                xmlWriter.endElement();
+                xmlWriter.close();
+            } else {
+                xmlWriter.suspend();
+            }
         }
     },
-    FLATXML {
+    FLATXML("xml") {
         /**
          * Output the result in flat XML.
          */
-        void output(ResultSet rs, PrintStream console) throws Exception {
+        void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+                throws Exception {
             String dataSet = "dataset";
             XmlWriter xmlWriter;
             xmlWriter = new XmlWriter(console, "UTF-8");
+            xmlWriter.setLegacyEscaping(settings.getXmlEscape() == OutputSettings.XmlEscape.LEGACY);
             xmlWriter.enablePrettyPrint(true);
-            xmlWriter.writeDeclaration();
-            xmlWriter.writeElement(dataSet);
+            if (head) {
+                xmlWriter.writeDeclaration();
+                xmlWriter.writeElement(dataSet);
+            } else {
+                xmlWriter.resumeElement(dataSet);
+            }
 
             ResultSetMetaData rsMd = rs.getMetaData();
+            ColumnPlan plan = new ColumnPlan(rsMd, settings);
             int columnCount = rsMd.getColumnCount();
             String tableName = rsMd.getTableName(1);
             tableName = (tableName == null || "".equals(tableName)) ? "row" : tableName;
+            char[] chunk = new char[OutputSettings.CHUNK_SIZE];
 
             while (rs.next()) {
                 xmlWriter.writeElement(tableName);
                 for (int columnNum = 1; columnNum <= columnCount; columnNum++) {
-                    String value = getColumnValue(rs, columnNum);
+                    String columnName = rsMd.getColumnName(columnNum);
+                    if (plan.isLob(columnNum)) {
+                        Reader lob = plan.openReader(rs, columnNum);
+                        if (lob == null) {
+                            continue;
+                        }
+                        try {
+                            xmlWriter.writeAttribute(columnName, lob, chunk, true);
+                        } finally {
+                            lob.close();
+                        }
+                        continue;
+                    }
+                    String value = plan.getString(rs, columnNum);
                     if (value == null) {
                         continue;
                     }
-                    String columnName = rsMd.getColumnName(columnNum);
                     xmlWriter.writeAttribute(columnName, value, true);
                 }
                 xmlWriter.endElement();
             }
-            xmlWriter.endElement();
-            xmlWriter.close();
+            if (tail) {
+                xmlWriter.endElement();
+                xmlWriter.close();
+            } else {
+                xmlWriter.suspend();
+            }
         }
     };
 
+    /** File name extension for files in this format. */
+    private final String extension;
+
+    /**
+     * Constructor.
+     *
+     * @param extension - file name extension without the dot.
+     */
+    private OutputForms(String extension) {
+        this.extension = extension;
+    }
+
+    String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Output the result set as a complete document.
+     *
+     * @param rs - the result set.
+     * @param console - the stream to write to.
+     */
     void output(ResultSet rs, PrintStream console) throws Exception {
+        output(rs, console, true, true, OutputSettings.DEFAULT);
     }
 
     /**
-     * Convert column values to string as the library's getString() doesn't do the job well enough.
+     * Output the result set as a piece of a document. Pieces written in order
+     * with the first having the head and the last having the tail concatenate
+     * into one document.
      *
-     * @param rs - the result set at the right row.
-     * @param columnNum - the number of the column to get the value from.
+     * @param rs - the result set.
+     * @param console - the stream to write to.
+     * @param head - write what comes before the rows, such as the header line.
+     * @param tail - write what comes after the rows, such as the closing root element.
      */
-    private static String getColumnValue(ResultSet rs, int columnNum) throws SQLException {
-        Object value = rs.getObject(columnNum);
-        if (value == null) {
-            return null;
-        }
-        if (value instanceof Clob) {
-            Clob tValue = (Clob) value;
-            return tValue.getSubString(1, (int) tValue.length());
-        } else if (value instanceof Blob) {
-            // There is no guarantee that we'll get text data from a BLOB.
-            Blob tValue = (Blob) value;
-            return new String(tValue.getBytes(1, (int) tValue.length()), Charset.forName("UTF-8"));
-        } else if (value instanceof byte[]) {
-            return new String((byte[]) value, Charset.forName("UTF-8"));
+    void output(ResultSet rs, PrintStream console, boolean head, boolean tail) throws Exception {
+        output(rs, console, head, tail, OutputSettings.DEFAULT);
+    }
+
+    /**
+     * Output the result set as a piece of a document, with LOB and binary
+     * values written as the settings say.
+     *
+     * @param rs - the result set.
+     * @param console - the stream to write to.
+     * @param head - write what comes before the rows, such as the header line.
+     * @param tail - write what comes after the rows, such as the closing root element.
+     * @param settings - the output settings.
+     */
+    void output(ResultSet rs, PrintStream console, boolean head, boolean tail, OutputSettings settings)
+            throws Exception {
+    }
+
+    /**
+     * Print the rows with commons-csv. A LOB that fits in a chunk is printed
+     * like any other value. A longer one is written quoted, a chunk at a time,
+     * with the delimiter before it. The printer doesn't know about it, so a
+     * delimiter is also written here before the next value if the printer
+     * hasn't printed a value of the row yet.
+     */
+    private static void printRecords(ResultSet rs, PrintStream console, CSVFormat format, OutputSettings settings)
+            throws Exception {
+        CSVPrinter printer = format.print(console);
+        ColumnPlan plan = new ColumnPlan(rs.getMetaData(), settings);
+        final int columnCount = plan.getColumnCount();
+        char[] chunk = plan.hasLobs() ? new char[OutputSettings.CHUNK_SIZE] : null;
+        String quote = String.valueOf(format.getQuoteCharacter());
+        while (rs.next()) {
+            boolean printed = false;
+            for (int i = 1; i <= columnCount; i++) {
+                String value;
+                if (plan.isLob(i)) {
+                    Reader lob = plan.openReader(rs, i);
+                    value = null;
+                    if (lob != null) {
+                        try {
+                            int count = ColumnPlan.fill(lob, chunk);
+                            if (count < chunk.length) {
+                                value = new String(chunk, 0, count);
+                            } else {
+                                if (i > 1) {
+                                    console.print(format.getDelimiter());
+                                }
+                                console.print(quote);
+                                do {
+                                    console.print(new String(chunk, 0, count).replace(quote, quote + quote));
+                                } while ((count = lob.read(chunk)) > 0);
+                                console.print(quote);
+                                continue;
+                            }
+                        } finally {
+                            lob.close();
+                        }
+                    }
+                } else {
+                    value = plan.getString(rs, i);
+                }
+                if (i > 1 && !printed) {
+                    console.print(format.getDelimiter());
+                }
+                printer.print(value);
+                printed = true;
+            }
+            printer.println();
         }
+        printer.flush();
+    }
 
-        return rs.getString(columnNum); // Fallback
+    /**
+     * Copy a LOB to the output a chunk at a time and close it.
+     */
+    private static void copy(Reader lob, PrintStream console, char[] chunk) throws IOException {
+        try {
+            int count;
+            while ((count = lob.read(chunk)) > 0) {
+                console.print(new String(chunk, 0, count));
+            }
+        } finally {
+            lob.close();
+        }
     }
 }
@@ -0,0 +1,160 @@
+/**
+ * The settings of a session that change how the output forms write values:
+ * how binary values are written as text, what happens to text too long for
+ * Excel, how text is escaped in XML, the rows per Arrow record batch, and
+ * the rows per statement and the dialect of sql output. The settings don't change. The
+ * with methods return a copy with one setting changed.
+ * <p>
+ * LOBs are read and written in chunks of a fixed size, so the memory they
+ * take does not depend on their length.
+ */
+class OutputSettings {
+
+    /** Characters in a chunk of a LOB. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** The most characters an Excel cell can hold. */
+    static final int EXCEL_MAX_TEXT = 32767;
+
+    /**
+     * How binary values are written as text.
+     */
+    enum BinaryEncoding {
+        /** Decoded as UTF-8 text. */
+        TEXT,
+        /** Two lower-case hex digits per byte. */
+        HEX,
+        /** Base64 without line breaks. */
+        BASE64
+    }
+
+    /**
+     * What to do with text that doesn't fit in an Excel cell.
+     */
+    enum ExcelPolicy {
+        /** Stop the output with an error. */
+        FAIL,
+        /** Write as much as fits. */
+        TRUNCATE
+    }
+
+    /**
+     * Which characters are written as character references in XML.
+     */
+    enum XmlEscape {
+        /** Only those XML or the encoding can't have as they are. */
+        MINIMAL,
+        /** Also all non-ASCII characters, as earlier versions did. */
+        LEGACY
+    }
+
+    static final OutputSettings DEFAULT = new OutputSettings(BinaryEncoding.TEXT, ExcelPolicy.FAIL, XmlEscape.MINIMAL,
+        ArrowOutput.DEFAULT_BATCH_ROWS, SqlOutput.DEFAULT_STATEMENT_ROWS, null, null);
+
+    private final BinaryEncoding binaryEncoding;
+
+    private final ExcelPolicy excelPolicy;
+
+    private final XmlEscape xmlEscape;
+
+    private final int arrowBatchRows;
+
+    private final int sqlStatementRows;
+
+    /** Null to take the dialect from the connection. */
+    private final SqlOutput.Dialect sqlDialect;
+
+    /** Null to take the table from the metadata of the result. */
+    private final String sqlTable;
+
+    /**
+     * Constructor.
+     *
+     * @param binaryEncoding - how binary values are written as text.
+     * @param excelPolicy - what to do with text too long for an Excel cell.
+     * @param xmlEscape - which characters are escaped in XML.
+     * @param arrowBatchRows - rows per Arrow record batch.
+     * @param sqlStatementRows - rows per INSERT statement of sql output.
+     * @param sqlDialect - the dialect of sql output, or null to take it from the connection.
+     * @param sqlTable - the table of sql output, or null to take it from the result.
+     */
+    private OutputSettings(BinaryEncoding binaryEncoding, ExcelPolicy excelPolicy, XmlEscape xmlEscape,
+            int arrowBatchRows, int sqlStatementRows, SqlOutput.Dialect sqlDialect, String sqlTable) {
+        this.binaryEncoding = binaryEncoding;
+        this.excelPolicy = excelPolicy;
+        this.xmlEscape = xmlEscape;
+        this.arrowBatchRows = arrowBatchRows;
+        this.sqlStatementRows = sqlStatementRows;
+        this.sqlDialect = sqlDialect;
+        this.sqlTable = sqlTable;
+    }
+
+    BinaryEncoding getBinaryEncoding() {
+        return binaryEncoding;
+    }
+
+    ExcelPolicy getExcelPolicy() {
+        return excelPolicy;
+    }
+
+    XmlEscape getXmlEscape() {
+        return xmlEscape;
+    }
+
+    int getArrowBatchRows() {
+        return arrowBatchRows;
+    }
+
+    int getSqlStatementRows() {
+        return sqlStatementRows;
+    }
+
+    SqlOutput.Dialect getSqlDialect() {
+        return sqlDialect;
+    }
+
+    String getSqlTable() {
+        return sqlTable;
+    }
+
+    OutputSettings withBinaryEncoding(BinaryEncoding binaryEncoding) {
+        return new OutputSettings(binaryEncoding, excelPolicy, xmlEscape, arrowBatchRows, sqlStatementRows,
+            sqlDialect, sqlTable);
+    }
+
+    OutputSettings withExcelPolicy(ExcelPolicy excelPolicy) {
+        return new OutputSettings(binaryEncoding, excelPolicy, xmlEscape, arrowBatchRows, sqlStatementRows,
+            sqlDialect, sqlTable);
+    }
+
+    OutputSettings withXmlEscape(XmlEscape xmlEscape) {
+        return new OutputSettings(binaryEncoding, excelPolicy, xmlEscape, arrowBatchRows, sqlStatementRows,
+            sqlDialect, sqlTable);
+    }
+
+    OutputSettings withArrowBatchRows(int arrowBatchRows) {
+        return new OutputSettings(binaryEncoding, excelPolicy, xmlEscape, arrowBatchRows, sqlStatementRows,
+            sqlDialect, sqlTable);
+    }
+
+    OutputSettings withSqlStatementRows(int sqlStatementRows) {
+        return new OutputSettings(binaryEncoding, excelPolicy, xmlEscape, arrowBatchRows, sqlStatementRows,
+            sqlDialect, sqlTable);
+    }
+
+    /**
+     * @param sqlDialect - the dialect, or null to take it from the connection.
+     */
+    OutputSettings withSqlDialect(SqlOutput.Dialect sqlDialect) {
+        return new OutputSettings(binaryEncoding, excelPolicy, xmlEscape, arrowBatchRows, sqlStatementRows,
+            sqlDialect, sqlTable);
+    }
+
+    /**
+     * @param sqlTable - the table, or null to take it from the result.
+     */
+    OutputSettings withSqlTable(String sqlTable) {
+        return new OutputSettings(binaryEncoding, excelPolicy, xmlEscape, arrowBatchRows, sqlStatementRows,
+            sqlDialect, sqlTable);
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses to gzip on several threads. The output is split into blocks
+ * and each block is compressed on its own into a complete gzip member. The
+ * members are written in order. A file of concatenated members is a valid
+ * gzip file that gzip, zcat and pigz read as one stream. Blocks are
+ * compressed independently, so the output is a little larger than from a
+ * single-threaded gzip.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+
+    /** Default size of an uncompressed block. */
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /** Gzip member header: magic, deflate, no flags, no time, no extra flags, unknown OS. */
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final OutputStream out;
+
+    private final ExecutorService compressors;
+
+    /** Deflaters not in use. A compressing task takes one and gives it back. */
+    private final Queue<Deflater> idleDeflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    /** All deflaters made, to free their native memory on close. Guarded by itself. */
+    private final List<Deflater> deflaters = new ArrayList<Deflater>();
+
+    /** Blocks being compressed, in output order. */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    /** The number of blocks that can be compressed at a time. */
+    private final int maxPending;
+
+    private final int blockSize;
+
+    private byte[] block;
+
+    private int blockLength;
+
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param out - the stream to write the compressed data to.
+     * @param threads - the number of compressing threads.
+     */
+    ParallelGzipOutputStream(OutputStream out, int threads) {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param out - the stream to write the compressed data to.
+     * @param threads - the number of compressing threads.
+     * @param blockSize - the size of an uncompressed block.
+     */
+    ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+        threads = Math.max(threads, 1);
+        this.maxPending = threads * 2;
+        this.compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "gzip");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+            int count = Math.min(length, blockSize - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Compress what has been written so far and write it out. Each flush ends
+     * a gzip member, so frequent flushing makes the output larger.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeMember();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            compressors.shutdownNow();
+            try {
+                compressors.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (deflaters) {
+                for (Deflater deflater : deflaters) {
+                    deflater.end();
+                }
+                deflaters.clear();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Hand the current block to a compressing thread and start a new one.
+     * If enough blocks are pending, the oldest is waited for and written.
+     */
+    private void submitBlock() throws IOException {
+        while (pending.size() >= maxPending) {
+            writeMember();
+        }
+        final byte[] data = block;
+        final int length = blockLength;
+        pending.addLast(compressors.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return compress(data, length);
+            }
+        }));
+        block = new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void writeMember() throws IOException {
+        Future<byte[]> member = pending.removeFirst();
+        try {
+            out.write(member.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Compress a block into a complete gzip member.
+     */
+    private byte[] compress(byte[] data, int length) {
+        Deflater deflater = idleDeflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            synchronized (deflaters) {
+                deflaters.add(deflater);
+            }
+        }
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+        member.write(HEADER, 0, HEADER.length);
+        try {
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                member.write(buffer, 0, count);
+            }
+        } finally {
+            idleDeflaters.add(deflater);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeInt(member, (int) crc.getValue());
+        writeInt(member, length);
+        return member.toByteArray();
+    }
+
+    /**
+     * Write an int in little-endian order.
+     */
+    private static void writeInt(ByteArrayOutputStream stream, int value) {
+        stream.write(value & 0xff);
+        stream.write((value >> 8) & 0xff);
+        stream.write((value >> 16) & 0xff);
+        stream.write((value >> 24) & 0xff);
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports one table in parallel. The table is split into ranges of an indexed
+ * numeric column and each range is read and formatted on its own connection.
+ * The pieces are either concatenated in key order into one file or kept as
+ * separate part files.
+ */
+class PartitionedExport {
+
+    /** Size of the buffer between the formatter and the file. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ConnectionSource connections;
+
+    private final FetchSettings fetchSettings;
+
+    private final OutputForms outputFormat;
+
+    private final int threads;
+
+    private OutputSettings outputSettings = OutputSettings.DEFAULT;
+
+    /**
+     * Constructor.
+     *
+     * @param connections - where to get the connections from.
+     * @param fetchSettings - how to fetch the rows.
+     * @param outputFormat - the format of the output.
+     * @param threads - the maximum number of ranges to export at a time.
+     */
+    PartitionedExport(ConnectionSource connections, FetchSettings fetchSettings, OutputForms outputFormat,
+            int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1");
+        }
+        this.connections = connections;
+        this.fetchSettings = fetchSettings;
+        this.outputFormat = outputFormat;
+        this.threads = threads;
+    }
+
+    /**
+     * Set how LOB and binary values are written.
+     *
+     * @param outputSettings - the output settings.
+     */
+    void setOutputSettings(OutputSettings outputSettings) {
+        this.outputSettings = outputSettings;
+    }
+
+    /**
+     * Find the numeric column to split the table on. It is the first column of
+     * the primary key if that is numeric, then the first column of a unique
+     * index and then the first column of any index.
+     *
+     * @param connection - the database connection.
+     * @param table - the table name.
+     * @return the column name.
+     */
+    static String findKeyColumn(Connection connection, String table) throws Exception {
+        DatabaseMetaData dbMetadata = connection.getMetaData();
+        String column = findKeyColumn(dbMetadata, table);
+        if (column == null && dbMetadata.storesUpperCaseIdentifiers()) {
+            column = findKeyColumn(dbMetadata, table.toUpperCase());
+        }
+        if (column == null) {
+            throw new IllegalArgumentException("No index on a numeric column found on table " + table);
+        }
+        return column;
+    }
+
+    private static String findKeyColumn(DatabaseMetaData dbMetadata, String table) throws Exception {
+        Set<String> numeric = new HashSet<String>();
+        ResultSet rs = dbMetadata.getColumns(null, null, table, null);
+        try {
+            while (rs.next()) {
+                if (isNumeric(rs.getInt("DATA_TYPE"))) {
+                    numeric.add(rs.getString("COLUMN_NAME"));
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        if (numeric.isEmpty()) {
+            return null;
+        }
+        rs = dbMetadata.getPrimaryKeys(null, null, table);
+        try {
+            while (rs.next()) {
+                String column = rs.getString("COLUMN_NAME");
+                if (rs.getShort("KEY_SEQ") == 1 && numeric.contains(column)) {
+                    return column;
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        String anyIndexColumn = null;
+        rs = dbMetadata.getIndexInfo(null, null, table, false, true);
+        try {
+            while (rs.next()) {
+                String column = rs.getString("COLUMN_NAME");
+                if (rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic
+                        || rs.getShort("ORDINAL_POSITION") != 1 || !numeric.contains(column)) {
+                    continue;
+                }
+                if (!rs.getBoolean("NON_UNIQUE")) {
+                    return column;
+                }
+                if (anyIndexColumn == null) {
+                    anyIndexColumn = column;
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        return anyIndexColumn;
+    }
+
+    private static boolean isNumeric(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Split the key range into ranges of equal width.
+     *
+     * @param connection - the database connection.
+     * @param table - the table name.
+     * @param key - the column to split on.
+     * @param partitions - the number of ranges.
+     * @return partitions + 1 bounds. Null if the table is empty.
+     */
+    static BigDecimal[] findBounds(Connection connection, String table, String key, int partitions)
+            throws Exception {
+        BigDecimal min;
+        BigDecimal max;
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT MIN(" + key + "), MAX(" + key + ") FROM " + table);
+            rs.next();
+            if (rs.getObject(1) != null && !(rs.getObject(1) instanceof Number)) {
+                throw new IllegalArgumentException("The key column " + key + " is not numeric");
+            }
+            min = rs.getBigDecimal(1);
+            max = rs.getBigDecimal(2);
+            rs.close();
+        } finally {
+            st.close();
+        }
+        if (min == null) {
+            return null;
+        }
+        BigDecimal[] bounds = new BigDecimal[partitions + 1];
+        BigDecimal width = max.subtract(min);
+        bounds[0] = min;
+        for (int i = 1; i < partitions; i++) {
+            BigDecimal step = width.multiply(BigDecimal.valueOf(i))
+                .divide(BigDecimal.valueOf(partitions), Math.max(min.scale(), max.scale()), RoundingMode.FLOOR);
+            bounds[i] = min.add(step);
+        }
+        bounds[partitions] = max;
+        return bounds;
+    }
+
+    /**
+     * The name of a part file. The part number goes in front of the extension.
+     *
+     * @param file - the name of the whole export.
+     * @param part - the part number, starting from 1.
+     * @return the part file.
+     */
+    static File partFile(File file, int part) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String partName;
+        if (dot > 0) {
+            partName = name.substring(0, dot) + String.format(".part%03d", part) + name.substring(dot);
+        } else {
+            partName = name + String.format(".part%03d", part);
+        }
+        return new File(file.getAbsoluteFile().getParentFile(), partName);
+    }
+
+    /**
+     * Export the table.
+     *
+     * @param table - the table name.
+     * @param partitions - the number of key ranges.
+     * @param file - the file to write.
+     * @param partFiles - if true each range is written to its own complete file
+     *       instead of being concatenated into one.
+     * @return a line to report to the user.
+     */
+    String export(String table, int partitions, File file, boolean partFiles) throws Exception {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("The number of partitions must be at least 1");
+        }
+        if (!partFiles && partitions > 1 && outputFormat == OutputForms.EXCEL) {
+            throw new IllegalArgumentException("Excel output can only be split into part files");
+        }
+        if (!partFiles && partitions > 1 && outputFormat == OutputForms.JSON) {
+            // An empty first range would leave a comma before the first object.
+            throw new IllegalArgumentException("JSON output can only be split into part files. Use ndjson for one file");
+        }
+        long start = System.currentTimeMillis();
+        String key;
+        BigDecimal[] bounds;
+        Connection connection = connections.borrow();
+        try {
+            key = findKeyColumn(connection, table);
+            bounds = findBounds(connection, table, key, partitions);
+        } finally {
+            connections.release(connection);
+        }
+        if (bounds == null) {
+            partitions = 1;
+        }
+
+        List<File> files = new ArrayList<File>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            if (partFiles) {
+                files.add(partFile(file, i + 1));
+            } else if (partitions == 1) {
+                files.add(file);
+            } else {
+                files.add(File.createTempFile("dbtools", ".part", file.getAbsoluteFile().getParentFile()));
+            }
+        }
+
+        final OutputSettings settings = TableDump.tableSettings(outputSettings, table);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, partitions));
+        List<Future<Object>> results = new ArrayList<Future<Object>>(partitions);
+        try {
+            for (int i = 0; i < partitions; i++) {
+                final String query = rangeQuery(table, key, bounds, i);
+                final BigDecimal low = bounds == null ? null : bounds[i];
+                final BigDecimal high = bounds == null ? null : bounds[i + 1];
+                final File partFile = files.get(i);
+                final boolean head = partFiles || i == 0;
+                final boolean tail = partFiles || i == partitions - 1;
+                results.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        exportRange(query, low, high, partFile, head, tail, settings);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+            if (!partFiles && partitions > 1) {
+                concatenate(files, file);
+            }
+        } finally {
+            // JDBC calls don't notice the interrupt, so wait for the ranges still
+            // running. Until then they write to their files and hold their connections.
+            for (Future<Object> result : results) {
+                result.cancel(true);
+            }
+            pool.shutdownNow();
+            boolean stopped = awaitTermination(pool);
+            if (stopped && !partFiles && partitions > 1) {
+                for (File partFile : files) {
+                    partFile.delete();
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        String target = partFiles ? partitions + " part files of " + file : file.toString();
+        return table + ": " + target + " split on " + key + " in " + elapsed + " ms";
+    }
+
+    /**
+     * Wait for the threads of a pool to end.
+     *
+     * @return false if this thread was interrupted while waiting.
+     */
+    private static boolean awaitTermination(ExecutorService pool) {
+        try {
+            return pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The query for one range. The first range also gets the rows with no key
+     * and the last range includes the maximum.
+     */
+    private static String rangeQuery(String table, String key, BigDecimal[] bounds, int range) {
+        StringBuilder query = new StringBuilder("SELECT * FROM ").append(table);
+        if (bounds != null) {
+            int last = bounds.length - 2;
+            query.append(" WHERE ");
+            if (range == 0) {
+                query.append(key).append(" IS NULL OR (");
+            }
+            query.append(key).append(" >= ? AND ").append(key).append(range == last ? " <= ?" : " < ?");
+            if (range == 0) {
+                query.append(")");
+            }
+        }
+        return query.append(" ORDER BY ").append(key).toString();
+    }
+
+    private void exportRange(String query, BigDecimal low, BigDecimal high, File file, boolean head, boolean tail,
+            OutputSettings settings) throws Exception {
+        Connection connection = connections.borrow();
+        try {
+            PreparedStatement st = connection.prepareStatement(query,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            fetchSettings.configure(st);
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE),
+                false, "UTF-8");
+            try {
+                if (low != null) {
+                    st.setBigDecimal(1, low);
+                    st.setBigDecimal(2, high);
+                }
+                ResultSet rs = st.executeQuery();
+                fetchSettings.apply(rs);
+                outputFormat.output(FlightEvents.rowBatches(rs, outputFormat.name().toLowerCase(Locale.ROOT)), out, head, tail, settings);
+                rs.close();
+                out.flush();
+                if (out.checkError()) {
+                    throw new IOException("Failed to write " + file);
+                }
+            } finally {
+                out.close();
+                st.close();
+            }
+        } finally {
+            connections.release(connection);
+        }
+    }
+
+    /**
+     * Copy the pieces into one file in order.
+     */
+    private static void concatenate(List<File> pieces, File file) throws IOException {
+        FileChannel target = new FileOutputStream(file).getChannel();
+        try {
+            for (File piece : pieces) {
+                FileChannel source = new FileInputStream(piece).getChannel();
+                try {
+                    long position = 0;
+                    long size = source.size();
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                } finally {
+                    source.close();
+                }
+            }
+        } finally {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Writes a result set in one of the text formats with fetching, formatting
+ * and writing on different threads. The calling thread fetches the rows into
+ * a fixed set of pre-allocated slots. Formatter threads turn full slots into
+ * text and encode it into bytes, and a writer thread writes the bytes of the
+ * slots in fetch order and hands the slots back. When all slots are in use the fetching waits, so
+ * memory use is bounded by the number of slots.
+ */
+class PipelinedOutput {
+
+    /** Default number of rows in a slot. */
+    static final int DEFAULT_SLOT_ROWS = 512;
+
+    /** Slots per formatter thread. */
+    private static final int SLOTS_PER_THREAD = 4;
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final OutputForms outputFormat;
+
+    private final int threads;
+
+    private final Charset charset;
+
+    private int slotRows = DEFAULT_SLOT_ROWS;
+
+    /**
+     * Constructor.
+     *
+     * @param outputFormat - the format. Only CSV, TSV and OLDTSV are supported.
+     * @param threads - the number of formatter threads.
+     * @param charset - the encoding of the stream the output goes to.
+     */
+    PipelinedOutput(OutputForms outputFormat, int threads, Charset charset) {
+        if (!supports(outputFormat)) {
+            throw new IllegalArgumentException("Output format " + outputFormat + " can't be pipelined");
+        }
+        this.outputFormat = outputFormat;
+        this.threads = Math.max(threads, 1);
+        this.charset = charset;
+    }
+
+    /**
+     * Check if a format can be pipelined.
+     */
+    static boolean supports(OutputForms outputFormat) {
+        return outputFormat == OutputForms.CSV || outputFormat == OutputForms.TSV
+            || outputFormat == OutputForms.OLDTSV;
+    }
+
+    /**
+     * Set the number of rows in a slot. Only lowered in tests.
+     */
+    void setSlotRows(int slotRows) {
+        this.slotRows = slotRows;
+    }
+
+    /**
+     * Write the result set. The output is the same as from the format's own output.
+     *
+     * @param rs - the result set.
+     * @param console - the stream to write to.
+     * @param head - write the header line.
+     * @param settings - the output settings.
+     */
+    void output(ResultSet rs, PrintStream console, boolean head, OutputSettings settings) throws Exception {
+        ColumnPlan plan = new ColumnPlan(rs.getMetaData(), settings, outputFormat == OutputForms.OLDTSV);
+        final int columnCount = plan.getColumnCount();
+        CSVFormat format = csvFormat();
+        if (head && format != null) {
+            CSVPrinter printer = format.withHeader(rs).print(console);
+            printer.flush();
+        }
+
+        int slotCount = threads * SLOTS_PER_THREAD;
+        BlockingQueue<Slot> free = new ArrayBlockingQueue<Slot>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            free.add(new Slot(slotRows, columnCount, charset));
+        }
+        // Holds at most one future per slot and the end marker, so adding never blocks.
+        BlockingQueue<Future<Slot>> ordered = new ArrayBlockingQueue<Future<Slot>>(slotCount + 1);
+        ExecutorService formatters = Executors.newFixedThreadPool(threads);
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> writer = writerThread.submit(writer(ordered, free, console));
+            Slot slot = take(free, writer);
+            while (rs.next()) {
+                String[] row = slot.rows[slot.count++];
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = plan.getString(rs, i + 1);
+                }
+                if (slot.count == slotRows) {
+                    ordered.add(formatters.submit(formatter(slot)));
+                    slot = take(free, writer);
+                }
+            }
+            if (slot.count > 0) {
+                ordered.add(formatters.submit(formatter(slot)));
+            }
+            FutureTask<Slot> end = new FutureTask<Slot>(new Callable<Slot>() {
+                public Slot call() {
+                    return null;
+                }
+            });
+            end.run();
+            ordered.add(end);
+            result(writer);
+        } finally {
+            formatters.shutdownNow();
+            writerThread.shutdownNow();
+        }
+    }
+
+    /**
+     * The format of CSV and TSV. Null for OLDTSV.
+     */
+    private CSVFormat csvFormat() {
+        switch (outputFormat) {
+            case CSV:
+                return CSVFormat.DEFAULT;
+            case TSV:
+                return CSVFormat.TDF;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Take a free slot. If the writer has stopped, its failure is thrown.
+     */
+    private static Slot take(BlockingQueue<Slot> free, Future<Object> writer) throws Exception {
+        while (true) {
+            Slot slot = free.poll(100, TimeUnit.MILLISECONDS);
+            if (slot != null) {
+                return slot;
+            }
+            if (writer.isDone()) {
+                result(writer);
+                throw new IllegalStateException("The writer stopped before the end of the rows");
+            }
+        }
+    }
+
+    private static void result(Future<?> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Formats the rows of a slot into its text and encodes the text.
+     */
+    private Callable<Slot> formatter(final Slot slot) {
+        final CSVFormat format = csvFormat();
+        return new Callable<Slot>() {
+            public Slot call() throws Exception {
+                if (format != null) {
+                    CSVPrinter printer = new CSVPrinter(slot.text, format);
+                    for (int r = 0; r < slot.count; r++) {
+                        printer.printRecord((Object[]) slot.rows[r]);
+                    }
+                } else {
+                    for (int r = 0; r < slot.count; r++) {
+                        String[] row = slot.rows[r];
+                        for (int i = 0; i < row.length; i++) {
+                            slot.text.append(i == 0 ? "" : "\t").append(row[i] == null ? "\\N" : row[i]);
+                        }
+                        slot.text.append(LINE_SEPARATOR);
+                    }
+                }
+                slot.encode();
+                return slot;
+            }
+        };
+    }
+
+    /**
+     * Writes the bytes of the slots in order and hands the slots back.
+     */
+    private static Callable<Object> writer(final BlockingQueue<Future<Slot>> ordered, final BlockingQueue<Slot> free,
+            final PrintStream console) {
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                while (true) {
+                    Future<Slot> next = ordered.take();
+                    Slot slot;
+                    try {
+                        slot = next.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : e;
+                    }
+                    if (slot == null) {
+                        console.flush();
+                        return null;
+                    }
+                    console.write(slot.bytes.array(), 0, slot.bytes.position());
+                    slot.clear();
+                    free.add(slot);
+                }
+            }
+        };
+    }
+
+    /**
+     * A block of rows, their formatted text and its bytes. The arrays and
+     * buffers are reused.
+     */
+    private static class Slot {
+
+        private final String[][] rows;
+
+        private final StringBuilder text = new StringBuilder();
+
+        /** Replaces what the charset can't encode, like PrintStream does. */
+        private final CharsetEncoder encoder;
+
+        private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+        private int count;
+
+        Slot(int rowCount, int columnCount, Charset charset) {
+            rows = new String[rowCount][columnCount];
+            encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        /**
+         * Encode the text into the bytes. The buffer is made big enough for
+         * the worst case first, so the encoder never runs out of room.
+         */
+        void encode() {
+            int maxBytes = (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+            if (bytes.capacity() < maxBytes) {
+                bytes = ByteBuffer.allocate(maxBytes);
+            }
+            bytes.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(text), bytes, true);
+            encoder.flush(bytes);
+        }
+
+        void clear() {
+            for (int r = 0; r < count; r++) {
+                Arrays.fill(rows[r], null);
+            }
+            count = 0;
+            text.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * Times the phases of one query: executing it, fetching the rows with
+ * rs.next(), formatting them and writing them out. The result set and the
+ * output stream are wrapped to count the time spent in them, and formatting
+ * is what is left of the time of the output. Nothing is wrapped unless the
+ * statistics are asked for, so they cost nothing when they are off.
+ * <p>
+ * With pipelined output the phases run on their own threads and overlap, so
+ * the format time is then only a lower bound.
+ */
+class QueryStats {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final long start = System.nanoTime();
+
+    private long executed;
+
+    private long firstRow = -1;
+
+    private long fetchNanos;
+
+    private long rows;
+
+    /** True if the statement returned a result set. */
+    private boolean result;
+
+    private long outputStart;
+
+    private long end;
+
+    private MeteredOutputStream meter;
+
+    private PrintStream meteredOut;
+
+    /**
+     * Mark the end of the execution of the statement.
+     */
+    void executed() {
+        executed = System.nanoTime();
+    }
+
+    /**
+     * Wrap a result set to time its rs.next() calls and count the rows.
+     */
+    ResultSet wrap(ResultSet rs) {
+        result = true;
+        outputStart = System.nanoTime();
+        return new FilterResultSet(rs) {
+            @Override
+            public boolean next() throws SQLException {
+                long before = System.nanoTime();
+                boolean more = rs.next();
+                long after = System.nanoTime();
+                fetchNanos += after - before;
+                if (more) {
+                    rows++;
+                    if (firstRow < 0) {
+                        firstRow = after;
+                    }
+                }
+                return more;
+            }
+        };
+    }
+
+    /**
+     * Wrap the output to time the writes and count the bytes.
+     *
+     * @param out - the output.
+     * @param charset - the encoding of the output.
+     */
+    PrintStream wrap(PrintStream out, Charset charset) throws UnsupportedEncodingException {
+        meter = new MeteredOutputStream(out);
+        meteredOut = new PrintStream(meter, false, charset.name());
+        return meteredOut;
+    }
+
+    /**
+     * Mark the end of the query. The output is flushed first so all its bytes are counted.
+     */
+    void finish() {
+        if (meteredOut != null) {
+            meteredOut.flush();
+        }
+        end = System.nanoTime();
+    }
+
+    /**
+     * Describe the phases to the user.
+     *
+     * @return a line to report.
+     */
+    String report() {
+        long total = end - start;
+        StringBuilder line = new StringBuilder();
+        line.append("Execute ").append(millis(executed - start)).append(" ms");
+        if (!result) {
+            return line.append(", total ").append(millis(total)).append(" ms").toString();
+        }
+        long writeNanos = meter == null ? 0 : meter.getNanos();
+        long formatNanos = Math.max(0, end - outputStart - fetchNanos - writeNanos);
+        line.append(", first row ").append(firstRow < 0 ? "-" : Long.toString(millis(firstRow - start)))
+            .append(" ms, fetch ").append(millis(fetchNanos))
+            .append(" ms, format ").append(millis(formatNanos))
+            .append(" ms, write ").append(millis(writeNanos))
+            .append(" ms, ").append(rows).append(" rows, ")
+            .append(meter == null ? 0 : meter.getBytes()).append(" bytes in ").append(millis(total)).append(" ms")
+            .append(String.format(Locale.ROOT, " (%.0f rows/s)", rows * 1e9 / Math.max(total, 1)));
+        return line.toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
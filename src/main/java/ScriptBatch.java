@@ -0,0 +1,387 @@
+import java.sql.BatchUpdateException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects consecutive DML statements from a script and sends them to the
+ * database in JDBC batches. The line number of each statement is kept so
+ * that update counts and failures can be reported against the script.
+ * <p>
+ * If a statement cache is used, the literals are lifted out of each statement
+ * and the statement runs as a cached prepared statement of its shape. A run
+ * of statements with the same shape goes into one batch, and a change of
+ * shape sends the batch so that the statements run in script order.
+ * Some drivers only check the parameter types when the batch runs, so a
+ * parameterized batch that fails in auto-commit mode is run again as it is,
+ * and its shape is not parameterized again.
+ */
+class ScriptBatch {
+
+    /** Statements that can go into a batch. */
+    private static final String[] DML_KEYWORDS = {"INSERT", "UPDATE", "DELETE", "MERGE", "REPLACE"};
+
+    private final Connection connection;
+
+    /** Runs the statements that are not parameterized. */
+    private final Statement statement;
+
+    private final int size;
+
+    /** Prepared statements by shape, least recently used first. Null if there is no cache. */
+    private final Map<String, PreparedStatement> cache;
+
+    /** True if string literals have backslash escapes, as in MySQL. They are then not lifted. */
+    private final boolean backslashEscapes;
+
+    /** True if lifted strings are bound without a type, for the server to infer it as for a literal. */
+    private final boolean untypedStrings;
+
+    /** The statement the batch is collected on. */
+    private Statement current;
+
+    /** The shape of the statements in the batch. Null if they are not parameterized. */
+    private String currentShape;
+
+    private long cacheHits;
+
+    private long cacheMisses;
+
+    /** The line each statement in the batch starts on. */
+    private final int[] lines;
+
+    /** The text of each statement in the batch, to run it again without parameters. */
+    private final String[] statements;
+
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param connection - the database connection.
+     * @param size - the number of statements per batch.
+     */
+    ScriptBatch(Connection connection, int size) throws SQLException {
+        this(connection, size, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param connection - the database connection.
+     * @param size - the number of statements per batch.
+     * @param cacheSize - the number of prepared statements to keep. Zero to run the statements as they are.
+     */
+    ScriptBatch(Connection connection, int size, final int cacheSize) throws SQLException {
+        this.connection = connection;
+        this.statement = connection.createStatement();
+        this.current = statement;
+        this.size = size;
+        this.lines = new int[size];
+        this.statements = new String[size];
+        if (cacheSize > 0) {
+            SqlOutput.Dialect dialect = SqlOutput.Dialect.of(connection.getMetaData().getURL());
+            backslashEscapes = dialect == SqlOutput.Dialect.MYSQL;
+            // pgjdbc sends a string parameter as varchar, which doesn't convert to other types.
+            untypedStrings = dialect == SqlOutput.Dialect.POSTGRESQL;
+            cache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= cacheSize) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        } else {
+            cache = null;
+            backslashEscapes = false;
+            untypedStrings = false;
+        }
+    }
+
+    /**
+     * Check if a statement is DML that can be batched. Leading comments are skipped.
+     *
+     * @param sql - the statement.
+     * @return true if the statement starts with INSERT, UPDATE, DELETE, MERGE or REPLACE.
+     */
+    static boolean isBatchable(String sql) {
+        int start = skipComments(sql);
+        for (String keyword : DML_KEYWORDS) {
+            if (sql.regionMatches(true, start, keyword, 0, keyword.length())
+                    && (start + keyword.length() == sql.length()
+                        || !Character.isLetterOrDigit(sql.charAt(start + keyword.length())))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the first character that is not white space or part of a comment.
+     */
+    private static int skipComments(String sql) {
+        int inx = 0;
+        int length = sql.length();
+        while (inx < length) {
+            char c = sql.charAt(inx);
+            if (Character.isWhitespace(c)) {
+                inx++;
+            } else if (sql.startsWith("--", inx)) {
+                int end = sql.indexOf('\n', inx);
+                inx = end < 0 ? length : end + 1;
+            } else if (sql.startsWith("/*", inx)) {
+                int end = sql.indexOf("*/", inx + 2);
+                inx = end < 0 ? length : end + 2;
+            } else {
+                break;
+            }
+        }
+        return inx;
+    }
+
+    /**
+     * Add a statement. The batch is sent when it is full.
+     *
+     * @param sql - the statement without the semicolon.
+     * @param line - the line in the script the statement text starts on. Leading comments are skipped.
+     * @return the report if the batch was sent, otherwise an empty list.
+     */
+    List<String> add(String sql, int line) throws SQLException {
+        int start = skipComments(sql);
+        for (int i = 0; i < start; i++) {
+            if (sql.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        StatementShape shape = cache == null ? null : StatementShape.parse(sql, backslashEscapes);
+        String shapeSql = shape == null ? null : shape.getSql();
+        List<String> report = Collections.emptyList();
+        if (count > 0 && (shapeSql == null ? currentShape != null : !shapeSql.equals(currentShape))) {
+            report = flush();
+        }
+        PreparedStatement prepared = shape == null ? null : prepare(shapeSql);
+        currentShape = shapeSql;
+        if (prepared == null) {
+            current = statement;
+            statement.addBatch(sql);
+        } else {
+            current = prepared;
+            bind(prepared, shape.getValues());
+            prepared.addBatch();
+        }
+        statements[count] = sql;
+        lines[count++] = line;
+        if (count == size) {
+            List<String> sent = flush();
+            if (report.isEmpty()) {
+                return sent;
+            }
+            report = new ArrayList<String>(report);
+            report.addAll(sent);
+        }
+        return report;
+    }
+
+    /**
+     * Get the prepared statement of a shape from the cache, or prepare it.
+     *
+     * @return the statement, or null if the database can't prepare the shape.
+     */
+    private PreparedStatement prepare(String shapeSql) {
+        if (cache.containsKey(shapeSql)) {
+            cacheHits++;
+            return cache.get(shapeSql);
+        }
+        cacheMisses++;
+        PreparedStatement prepared;
+        try {
+            prepared = connection.prepareStatement(shapeSql);
+        } catch (SQLException e) {
+            // Some databases can't infer a parameter type. Remember to run the shape as it is.
+            prepared = null;
+        }
+        cache.put(shapeSql, prepared);
+        return prepared;
+    }
+
+    private void bind(PreparedStatement prepared, List<Object> values) throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            Object value = values.get(i);
+            if (value instanceof Long) {
+                prepared.setLong(i + 1, (Long) value);
+            } else if (value instanceof BigDecimal) {
+                prepared.setBigDecimal(i + 1, (BigDecimal) value);
+            } else if (untypedStrings) {
+                prepared.setObject(i + 1, value, Types.OTHER);
+            } else {
+                prepared.setString(i + 1, (String) value);
+            }
+        }
+    }
+
+    /**
+     * Describe how well the statement cache worked.
+     *
+     * @return a line to report to the user, or null if there is no cache.
+     */
+    String cacheStatistics() {
+        if (cache == null) {
+            return null;
+        }
+        long lookups = cacheHits + cacheMisses;
+        return String.format(Locale.ROOT, "Statement cache: %d hits, %d misses, %.1f%% hit rate",
+            cacheHits, cacheMisses, lookups == 0 ? 0.0 : 100.0 * cacheHits / lookups);
+    }
+
+    /**
+     * Send the collected statements.
+     *
+     * @return lines to report to the user: the update counts and any failures.
+     */
+    List<String> flush() throws SQLException {
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<String> report = new ArrayList<String>();
+        try {
+            int[] updateCounts = current.executeBatch();
+            report.add(summary(0, count, updateCounts));
+        } catch (SQLException e) {
+            if (current != statement && connection.getAutoCommit()) {
+                retryUnprepared(e, report);
+            } else if (e instanceof BatchUpdateException) {
+                reportFailures((BatchUpdateException) e, report);
+            } else {
+                throw e;
+            }
+        } finally {
+            current.clearBatch();
+            count = 0;
+        }
+        return report;
+    }
+
+    /**
+     * Report the failures of a batch.
+     */
+    private void reportFailures(BatchUpdateException e, List<String> report) {
+        int[] updateCounts = e.getUpdateCounts();
+        int done = updateCounts == null ? 0 : Math.min(updateCounts.length, count);
+        if (done < count) {
+            // The driver stopped at the first failure.
+            if (done > 0) {
+                report.add(summary(0, done, updateCounts));
+            }
+            report.add("Line " + lines[done] + ": " + e.getMessage());
+            if (done + 1 < count) {
+                report.add(linesText(done + 1, count) + ": not executed");
+            }
+        } else {
+            // The driver went on after the failures.
+            report.add(summary(0, count, updateCounts));
+            SQLException next = e;
+            for (int i = 0; i < count; i++) {
+                if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+                    report.add("Line " + lines[i] + ": " + (next == null ? "failed" : next.getMessage()));
+                    next = next == null ? null : next.getNextException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the statements of a failed parameterized batch one at a time as they
+     * are. Statements the driver reports as done are not run again. If that
+     * helps, the shape is run as it is from now on.
+     */
+    private void retryUnprepared(SQLException e, List<String> report) throws SQLException {
+        int[] updateCounts = e instanceof BatchUpdateException ? ((BatchUpdateException) e).getUpdateCounts() : null;
+        int done = updateCounts == null ? 0 : Math.min(updateCounts.length, count);
+        current.clearBatch();
+        current = statement;
+        boolean recovered = false;
+        int[] retried = new int[count];
+        List<String> failures = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if (i < done && updateCounts[i] != Statement.EXECUTE_FAILED) {
+                retried[i] = updateCounts[i];
+                continue;
+            }
+            try {
+                retried[i] = statement.executeUpdate(statements[i]);
+                // A statement the driver failed, rather than one after it, now works.
+                recovered |= i <= done;
+            } catch (SQLException failure) {
+                retried[i] = Statement.EXECUTE_FAILED;
+                failures.add("Line " + lines[i] + ": " + failure.getMessage());
+            }
+        }
+        if (recovered) {
+            closeQuietly(cache.put(currentShape, null));
+        }
+        report.add(summary(0, count, retried));
+        report.addAll(failures);
+    }
+
+    /**
+     * Describe the outcome of a range of statements in the batch.
+     */
+    private String summary(int from, int to, int[] updateCounts) {
+        long rows = 0;
+        int failed = 0;
+        for (int i = from; i < to; i++) {
+            if (updateCounts[i] >= 0) {
+                rows += updateCounts[i];
+            } else if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+                failed++;
+            }
+        }
+        StringBuilder text = new StringBuilder(linesText(from, to));
+        text.append(": ").append(to - from - failed).append(" statements, ").append(rows).append(" rows affected");
+        if (failed > 0) {
+            text.append(", ").append(failed).append(" failed");
+        }
+        return text.toString();
+    }
+
+    private String linesText(int from, int to) {
+        if (to - from == 1) {
+            return "Line " + lines[from];
+        }
+        return "Lines " + lines[from] + "-" + lines[to - 1];
+    }
+
+    /**
+     * Close the statements. Statements not yet sent are dropped.
+     */
+    void close() throws SQLException {
+        if (cache != null) {
+            for (PreparedStatement prepared : cache.values()) {
+                closeQuietly(prepared);
+            }
+            cache.clear();
+        }
+        statement.close();
+    }
+
+    private static void closeQuietly(Statement statement) {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
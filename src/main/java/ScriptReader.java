@@ -0,0 +1,207 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Splits a script file into statements. The file is decoded in large chunks
+ * and the statement boundaries are found by scanning the chunk with the same
+ * states as the interactive line scanner. Statements end at a semicolon
+ * outside quotes. A meta command starts with a backslash and ends at the end
+ * of the line. Each statement is copied out of the buffer once, so memory use
+ * depends on the longest statement, not on the size of the file.
+ */
+class ScriptReader {
+
+    /** Number of characters decoded at a time. */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Receives the statements.
+     */
+    interface Handler {
+
+        /**
+         * Called for each statement.
+         *
+         * @param statement - the statement with the semicolon, or the meta command.
+         * @param line - the line the statement starts on.
+         */
+        void statement(String statement, int line) throws Exception;
+    }
+
+    private final Handler handler;
+
+    private char[] buffer;
+
+    private StmtState state = StmtState.START;
+
+    /** True while reading a meta command. */
+    private boolean inMeta;
+
+    /** Line number at the scan position. */
+    private int line = 1;
+
+    /** Line number at the start of the current statement. */
+    private int startLine = 1;
+
+    private long statementCount;
+
+    /**
+     * Constructor.
+     *
+     * @param handler - receives the statements.
+     */
+    ScriptReader(Handler handler) {
+        this(handler, CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param handler - receives the statements.
+     * @param chunkSize - the number of characters decoded at a time. Only lowered in tests.
+     */
+    ScriptReader(Handler handler, int chunkSize) {
+        this.handler = handler;
+        this.buffer = new char[chunkSize];
+    }
+
+    /**
+     * Read a file.
+     *
+     * @param file - the script.
+     * @param charset - the encoding of the file.
+     * @return the number of statements read.
+     */
+    long read(File file, Charset charset) throws Exception {
+        Reader reader = new InputStreamReader(new FileInputStream(file), charset);
+        try {
+            return read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read a script. Text after the last statement is ignored.
+     *
+     * @param reader - the script.
+     * @return the number of statements read.
+     */
+    long read(Reader reader) throws Exception {
+        int start = 0;  // Start of the current statement in the buffer
+        int end = 0;    // End of the characters read
+        int scan = 0;   // Scan position
+        int size;
+        while ((size = reader.read(buffer, end, buffer.length - end)) != -1) {
+            end += size;
+            while (scan < end) {
+                int stop = scan(scan, end);
+                if (stop < 0) {
+                    scan = end;
+                } else {
+                    emit(start, stop);
+                    start = stop;
+                    scan = stop;
+                    startLine = line;
+                }
+            }
+            // Keep the unfinished statement and make room for the next chunk.
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scan -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                char[] larger = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, end);
+                buffer = larger;
+            }
+        }
+        if (inMeta) {
+            emit(start, end);
+        }
+        return statementCount;
+    }
+
+    /**
+     * Scan to the end of the current statement.
+     *
+     * @return the position after the statement, or -1 if the range ends first.
+     */
+    private int scan(int from, int to) {
+        char[] chars = buffer;
+        int inx = from;
+        while (inx < to) {
+            char c = chars[inx++];
+            if (c == '\n') {
+                line++;
+                if (inMeta) {
+                    inMeta = false;
+                    return inx;
+                }
+                continue;
+            }
+            if (inMeta) {
+                continue;
+            }
+            StmtState next = state.next(state, c);
+            if (next == StmtState.END) {
+                state = StmtState.START;
+                if (c == '\\') {
+                    inMeta = true;
+                    continue;
+                }
+                return inx;
+            }
+            state = next;
+            if (state == StmtState.START) {
+                // Skip the characters that can't change the state.
+                while (inx < to) {
+                    c = chars[inx];
+                    if (c == ';' || c == '\'' || c == '"' || c == '\\' || c == '\n') {
+                        break;
+                    }
+                    inx++;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hand a statement to the handler. Leading white space is skipped.
+     */
+    private void emit(int from, int to) throws Exception {
+        int statementLine = startLine;
+        while (from < to && Character.isWhitespace(buffer[from])) {
+            if (buffer[from] == '\n') {
+                statementLine++;
+            }
+            from++;
+        }
+        inMeta = false;
+        if (from < to) {
+            statementCount++;
+            handler.statement(new String(buffer, from, to - from), statementLine);
+        }
+    }
+
+    /**
+     * Describe the throughput of a load.
+     *
+     * @param bytes - the size of the script.
+     * @param statements - the number of statements.
+     * @param millis - the time it took.
+     * @return a line to report to the user.
+     */
+    static String throughput(long bytes, long statements, long millis) {
+        double seconds = Math.max(millis, 1) / 1000.0;
+        return String.format(Locale.ROOT, "Read %d bytes, %d statements in %d ms (%.1f MB/s, %.0f statements/s)",
+            bytes, statements, millis, bytes / seconds / (1024 * 1024), statements / seconds);
+    }
+}
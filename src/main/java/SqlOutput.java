@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.CharBuffer;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * Writes a result set as INSERT statements with several rows in each VALUES
+ * clause, which a script run with -f loads much faster than one statement
+ * per row. The table is the one the metadata names for the first column,
+ * unless another one is given. Some drivers, such as Oracle's, don't name it.
+ * Literals are written the way the dialect of the database reads them.
+ */
+class SqlOutput {
+
+    /** Default number of rows in an INSERT statement. */
+    static final int DEFAULT_STATEMENT_ROWS = 100;
+
+    /**
+     * How literals are written for a kind of database.
+     */
+    enum Dialect {
+        /** Standard SQL, which H2, Derby and HSQLDB read. */
+        ANSI,
+        MYSQL,
+        POSTGRESQL,
+        SQLSERVER,
+        ORACLE;
+
+        /**
+         * The dialect of a JDBC URL. ANSI if the database isn't known.
+         */
+        static Dialect of(String url) {
+            if (url == null) {
+                return ANSI;
+            } else if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:")) {
+                return MYSQL;
+            } else if (url.startsWith("jdbc:postgresql:")) {
+                return POSTGRESQL;
+            } else if (url.startsWith("jdbc:sqlserver:") || url.startsWith("jdbc:jtds:")) {
+                return SQLSERVER;
+            } else if (url.startsWith("jdbc:oracle:")) {
+                return ORACLE;
+            }
+            return ANSI;
+        }
+    }
+
+    /** Binary values are written as hex literals. */
+    private static final OutputSettings HEX_SETTINGS =
+        OutputSettings.DEFAULT.withBinaryEncoding(OutputSettings.BinaryEncoding.HEX);
+
+    private final PrintStream out;
+
+    private final int statementRows;
+
+    private final Dialect dialect;
+
+    private final String table;
+
+    /**
+     * Constructor.
+     *
+     * @param out - where to write.
+     * @param statementRows - rows in an INSERT statement. Oracle always gets one.
+     * @param dialect - the dialect. If null it is found from the URL of the connection.
+     * @param table - the table to insert into. If null it is the table of the first column.
+     */
+    SqlOutput(PrintStream out, int statementRows, Dialect dialect, String table) {
+        if (statementRows < 1) {
+            throw new IllegalArgumentException("An INSERT statement must have at least one row");
+        }
+        this.out = out;
+        this.statementRows = statementRows;
+        this.dialect = dialect;
+        this.table = table;
+    }
+
+    /**
+     * Output the result set.
+     *
+     * @param rs - the result set.
+     */
+    void output(ResultSet rs) throws SQLException, IOException {
+        ResultSetMetaData rsMd = rs.getMetaData();
+        String table = this.table == null ? rsMd.getTableName(1) : this.table;
+        if (table == null || table.length() == 0) {
+            throw new IllegalArgumentException("The result has no table to write INSERT statements for."
+                + " Name one with \\set sqltable");
+        }
+        Dialect dialect = this.dialect == null ? dialectOf(rs) : this.dialect;
+        // Oracle has no multi-row VALUES before 23c.
+        int rowsPerStatement = dialect == Dialect.ORACLE ? 1 : statementRows;
+        ColumnPlan plan = new ColumnPlan(rsMd, HEX_SETTINGS);
+        int columnCount = plan.getColumnCount();
+        StringBuilder insert = new StringBuilder("INSERT INTO ").append(identifier(table, dialect)).append(" (");
+        for (int i = 1; i <= columnCount; i++) {
+            if (i > 1) {
+                insert.append(", ");
+            }
+            insert.append(identifier(rsMd.getColumnName(i), dialect));
+        }
+        insert.append(") VALUES\n");
+
+        char[] chunk = plan.hasLobs() ? new char[OutputSettings.CHUNK_SIZE] : null;
+        StringBuilder line = new StringBuilder();
+        int rows = 0;
+        while (rs.next()) {
+            line.setLength(0);
+            if (rows == 0) {
+                line.append(insert);
+            } else {
+                line.append(",\n");
+            }
+            line.append('(');
+            for (int i = 1; i <= columnCount; i++) {
+                if (i > 1) {
+                    line.append(", ");
+                }
+                if (plan.isLob(i)) {
+                    writeLob(rs, i, plan, dialect, line, chunk);
+                } else {
+                    appendLiteral(rs, i, plan, dialect, line);
+                }
+            }
+            line.append(')');
+            if (++rows == rowsPerStatement) {
+                line.append(";\n");
+                rows = 0;
+            }
+            out.print(line);
+        }
+        if (rows > 0) {
+            out.print(";\n");
+        }
+        out.flush();
+    }
+
+    private static Dialect dialectOf(ResultSet rs) throws SQLException {
+        Statement st = rs.getStatement();
+        if (st == null) {
+            return Dialect.ANSI;
+        }
+        Connection connection = st.getConnection();
+        return Dialect.of(connection.getMetaData().getURL());
+    }
+
+    /**
+     * Quote a name unless it is a plain identifier.
+     */
+    private static String identifier(String name, Dialect dialect) {
+        boolean plain = name.length() > 0 && Character.isLetter(name.charAt(0));
+        for (int i = 0; plain && i < name.length(); i++) {
+            char c = name.charAt(i);
+            plain = c < 0x80 && (Character.isLetterOrDigit(c) || c == '_');
+        }
+        if (plain) {
+            return name;
+        }
+        if (dialect == Dialect.MYSQL) {
+            return "`" + name.replace("`", "``") + "`";
+        }
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    private static void appendLiteral(ResultSet rs, int column, ColumnPlan plan, Dialect dialect,
+            StringBuilder line) throws SQLException {
+        switch (plan.getKind(column)) {
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(column);
+                if (rs.wasNull()) {
+                    line.append("NULL");
+                } else if (dialect == Dialect.SQLSERVER || dialect == Dialect.ORACLE) {
+                    line.append(value ? '1' : '0');
+                } else {
+                    line.append(value ? "TRUE" : "FALSE");
+                }
+                break;
+            }
+            case INTEGER:
+            case LONG:
+                if (!plan.append(rs, column, line)) {
+                    line.append("NULL");
+                }
+                break;
+            case DOUBLE: {
+                double value = rs.getDouble(column);
+                if (rs.wasNull()) {
+                    line.append("NULL");
+                } else if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    appendString(Double.toString(value), dialect, line);
+                } else {
+                    line.append(value);
+                }
+                break;
+            }
+            case DECIMAL: {
+                BigDecimal value = rs.getBigDecimal(column);
+                line.append(value == null ? "NULL" : value.toPlainString());
+                break;
+            }
+            case DATE: {
+                Date value = rs.getDate(column);
+                appendTyped("DATE", value, dialect != Dialect.SQLSERVER, dialect, line);
+                break;
+            }
+            case TIME: {
+                Time value = rs.getTime(column);
+                appendTyped("TIME", value, dialect != Dialect.SQLSERVER && dialect != Dialect.ORACLE, dialect, line);
+                break;
+            }
+            case TIMESTAMP: {
+                Timestamp value = rs.getTimestamp(column);
+                appendTyped("TIMESTAMP", value, dialect != Dialect.SQLSERVER, dialect, line);
+                break;
+            }
+            case BYTES: {
+                String hex = plan.getString(rs, column);
+                if (hex == null) {
+                    line.append("NULL");
+                } else {
+                    line.append(binaryPrefix(dialect)).append(hex).append(binarySuffix(dialect));
+                }
+                break;
+            }
+            default: {
+                String value = rs.getString(column);
+                if (value == null) {
+                    line.append("NULL");
+                } else {
+                    line.append(textPrefix(dialect));
+                    appendEscaped(value, dialect, line);
+                    line.append('\'');
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a date or time as a typed literal such as DATE '2015-01-01', or
+     * as a plain string where the database has no such literal.
+     */
+    private static void appendTyped(String type, Object value, boolean typed, Dialect dialect, StringBuilder line) {
+        if (value == null) {
+            line.append("NULL");
+            return;
+        }
+        if (typed) {
+            line.append(type).append(' ');
+        }
+        appendString(value.toString(), dialect, line);
+    }
+
+    private static void appendString(String value, Dialect dialect, StringBuilder line) {
+        line.append('\'');
+        appendEscaped(value, dialect, line);
+        line.append('\'');
+    }
+
+    /**
+     * Append the text of a string literal. Quotes are doubled, and MySQL
+     * also needs its backslash escape doubled.
+     */
+    private static void appendEscaped(CharSequence value, Dialect dialect, StringBuilder line) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '\'') {
+                line.append('\'');
+            } else if (c == '\\' && dialect == Dialect.MYSQL) {
+                line.append('\\');
+            }
+            line.append(c);
+        }
+    }
+
+    /**
+     * Write a CLOB as a string literal or a BLOB as a binary literal, a chunk
+     * at a time. The line so far is written first.
+     */
+    private void writeLob(ResultSet rs, int column, ColumnPlan plan, Dialect dialect, StringBuilder line,
+            char[] chunk) throws SQLException, IOException {
+        Reader lob = plan.openReader(rs, column);
+        if (lob == null) {
+            line.append("NULL");
+            return;
+        }
+        boolean binary = plan.getKind(column) == ColumnPlan.Kind.BLOB;
+        try {
+            line.append(binary ? binaryPrefix(dialect) : textPrefix(dialect));
+            int count;
+            while ((count = lob.read(chunk)) > 0) {
+                if (binary) {
+                    line.append(chunk, 0, count);
+                } else {
+                    appendEscaped(CharBuffer.wrap(chunk, 0, count), dialect, line);
+                }
+                out.print(line);
+                line.setLength(0);
+            }
+            line.append(binary ? binarySuffix(dialect) : "'");
+        } finally {
+            lob.close();
+        }
+    }
+
+    /**
+     * The opening quote of a text literal. SQL Server reads a plain literal in
+     * the code page of the database, so text is written as a Unicode literal.
+     */
+    private static String textPrefix(Dialect dialect) {
+        return dialect == Dialect.SQLSERVER ? "N'" : "'";
+    }
+
+    private static String binaryPrefix(Dialect dialect) {
+        switch (dialect) {
+            case POSTGRESQL:
+                return "'\\x";
+            case SQLSERVER:
+                return "0x";
+            case ORACLE:
+                return "HEXTORAW('";
+            default:
+                return "X'";
+        }
+    }
+
+    private static String binarySuffix(Dialect dialect) {
+        switch (dialect) {
+            case POSTGRESQL:
+                return "'::bytea";
+            case SQLSERVER:
+                return "";
+            case ORACLE:
+                return "')";
+            default:
+                return "'";
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A statement with its literals replaced by parameter markers. Statements
+ * that differ only in their literals have the same shape and can run through
+ * the same prepared statement. String literals and unsigned numbers are lifted,
+ * except column positions after BY.
+ * Typed literals such as DATE '2015-01-01' and literals with a prefix such as
+ * N'text' or X'00' stay in the statement. So do string literals with a
+ * backslash, and all string literals where backslashes are escapes, as the
+ * meaning of the backslash depends on the database and its settings.
+ */
+class StatementShape {
+
+    /** Keywords that type the string literal after them. */
+    private static final String[] TYPE_KEYWORDS = {"DATE", "TIME", "TIMESTAMP", "INTERVAL"};
+
+    private final String sql;
+
+    private final List<Object> values;
+
+    private StatementShape(String sql, List<Object> values) {
+        this.sql = sql;
+        this.values = values;
+    }
+
+    /**
+     * The statement with parameter markers.
+     */
+    String getSql() {
+        return sql;
+    }
+
+    /**
+     * The lifted literals in the order of the markers. They are strings, longs or big decimals.
+     */
+    List<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Lift the literals out of a statement in standard SQL.
+     *
+     * @param sql - the statement.
+     * @return the shape, or null if the statement already has parameter markers
+     *      or a literal is not terminated.
+     */
+    static StatementShape parse(String sql) {
+        return parse(sql, false);
+    }
+
+    /**
+     * Lift the literals out of a statement.
+     *
+     * @param sql - the statement.
+     * @param backslashEscapes - true if a backslash escapes the next character in a quoted string, as in MySQL.
+     * @return the shape, or null if the statement already has parameter markers
+     *      or a literal is not terminated.
+     */
+    static StatementShape parse(String sql, boolean backslashEscapes) {
+        int length = sql.length();
+        StringBuilder shape = new StringBuilder(length);
+        List<Object> values = Collections.emptyList();
+        String lastWord = null;
+        int inx = 0;
+        while (inx < length) {
+            char c = sql.charAt(inx);
+            if (c == '\'') {
+                boolean prefixed = inx > 0 && isIdentifierPart(sql.charAt(inx - 1));
+                int end = findQuoteEnd(sql, inx, '\'', backslashEscapes);
+                if (end < 0) {
+                    return null;
+                }
+                String text = sql.substring(inx + 1, end - 1);
+                if (prefixed || isTypeKeyword(lastWord) || backslashEscapes || text.indexOf('\\') >= 0) {
+                    shape.append(sql, inx, end);
+                } else {
+                    values = add(values, text.replace("''", "'"));
+                    shape.append('?');
+                }
+                lastWord = null;
+                inx = end;
+            } else if (c == '"' || c == '`') {
+                int end = findQuoteEnd(sql, inx, c, backslashEscapes && c == '"');
+                if (end < 0) {
+                    return null;
+                }
+                shape.append(sql, inx, end);
+                lastWord = null;
+                inx = end;
+            } else if (c == '-' && sql.startsWith("--", inx)) {
+                int end = sql.indexOf('\n', inx);
+                end = end < 0 ? length : end + 1;
+                shape.append(sql, inx, end);
+                inx = end;
+            } else if (c == '/' && sql.startsWith("/*", inx)) {
+                int end = sql.indexOf("*/", inx + 2);
+                end = end < 0 ? length : end + 2;
+                shape.append(sql, inx, end);
+                inx = end;
+            } else if (c == '?') {
+                return null;
+            } else if (Character.isDigit(c) && (inx == 0 || !isIdentifierPart(sql.charAt(inx - 1))
+                    && sql.charAt(inx - 1) != '.')) {
+                int end = findNumberEnd(sql, inx);
+                if (end < length && isIdentifierPart(sql.charAt(end)) || "BY".equalsIgnoreCase(lastWord)) {
+                    // Not a number after all, e.g. 2x, or a column position in ORDER BY 1
+                    shape.append(c);
+                    inx++;
+                    continue;
+                }
+                values = add(values, toNumber(sql.substring(inx, end)));
+                shape.append('?');
+                lastWord = null;
+                inx = end;
+            } else if (isIdentifierPart(c)) {
+                int wordStart = inx;
+                while (inx < length && isIdentifierPart(sql.charAt(inx))) {
+                    inx++;
+                }
+                lastWord = sql.substring(wordStart, inx);
+                shape.append(lastWord);
+            } else {
+                if (!Character.isWhitespace(c)) {
+                    lastWord = null;
+                }
+                shape.append(c);
+                inx++;
+            }
+        }
+        return new StatementShape(shape.toString(), values);
+    }
+
+    private static List<Object> add(List<Object> values, Object value) {
+        if (values.isEmpty()) {
+            values = new ArrayList<Object>();
+        }
+        values.add(value);
+        return values;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static boolean isTypeKeyword(String word) {
+        if (word != null) {
+            for (String keyword : TYPE_KEYWORDS) {
+                if (keyword.equalsIgnoreCase(word)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the end of a quoted string. A doubled quote is part of the string.
+     *
+     * @param backslashEscapes - true if a backslash makes the next character part of the string.
+     * @return the position after the closing quote, or -1 if there is none.
+     */
+    private static int findQuoteEnd(String sql, int start, char quote, boolean backslashEscapes) {
+        int length = sql.length();
+        for (int inx = start + 1; inx < length; inx++) {
+            char c = sql.charAt(inx);
+            if (c == '\\' && backslashEscapes) {
+                inx++;
+            } else if (c == quote) {
+                if (inx + 1 < length && sql.charAt(inx + 1) == quote) {
+                    inx++;
+                } else {
+                    return inx + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the end of a number: digits, an optional fraction and an optional exponent.
+     */
+    private static int findNumberEnd(String sql, int start) {
+        int length = sql.length();
+        int inx = start;
+        while (inx < length && Character.isDigit(sql.charAt(inx))) {
+            inx++;
+        }
+        if (inx < length && sql.charAt(inx) == '.') {
+            inx++;
+            while (inx < length && Character.isDigit(sql.charAt(inx))) {
+                inx++;
+            }
+        }
+        if (inx + 1 < length && (sql.charAt(inx) == 'e' || sql.charAt(inx) == 'E')) {
+            int exponent = inx + 1;
+            if (sql.charAt(exponent) == '+' || sql.charAt(exponent) == '-') {
+                exponent++;
+            }
+            if (exponent < length && Character.isDigit(sql.charAt(exponent))) {
+                inx = exponent;
+                while (inx < length && Character.isDigit(sql.charAt(inx))) {
+                    inx++;
+                }
+            }
+        }
+        return inx;
+    }
+
+    private static Object toNumber(String text) {
+        if (text.length() < 19 && text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            return Long.valueOf(text);
+        }
+        return new BigDecimal(text);
+    }
+}
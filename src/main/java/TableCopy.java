@@ -0,0 +1,308 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the result of a query on one database into a table of another.
+ * The rows are read on the calling thread and handed through a bounded
+ * queue to a writer thread that inserts them in batches, so reading and
+ * writing overlap. The values are read and bound with the getters and
+ * setters that match the column types in the result set metadata. The
+ * columns of the table are matched to the query's column labels.
+ */
+class TableCopy {
+
+    /** Default number of rows the reader can be ahead of the writer. */
+    static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /** Marks the end of the rows in the queue. */
+    private static final Object[] END = new Object[0];
+
+    private final ConnectionSource source;
+
+    private final FetchSettings fetchSettings;
+
+    private final ConnectionSource target;
+
+    private final int batchSize;
+
+    private final int commitInterval;
+
+    private final int queueSize;
+
+    /**
+     * Constructor.
+     *
+     * @param source - connections to the database to read from.
+     * @param fetchSettings - how to fetch the rows from the source.
+     * @param target - connections to the database to write to.
+     * @param batchSize - rows per batch.
+     * @param commitInterval - rows per commit. Zero to commit only at the end.
+     * @param queueSize - the number of rows the reader can be ahead of the writer.
+     */
+    TableCopy(ConnectionSource source, FetchSettings fetchSettings, ConnectionSource target, int batchSize,
+            int commitInterval, int queueSize) {
+        this.source = source;
+        this.fetchSettings = fetchSettings;
+        this.target = target;
+        this.batchSize = Math.max(batchSize, 1);
+        this.commitInterval = commitInterval;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Copy the rows.
+     *
+     * @param query - the query on the source.
+     * @param table - the table in the target.
+     * @return a line to report to the user.
+     */
+    String copy(String query, String table) throws Exception {
+        long start = System.currentTimeMillis();
+        long rowCount;
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        Connection connection = source.borrow();
+        try {
+            Statement st = fetchSettings.createStatement(connection);
+            try {
+                ResultSet rs = st.executeQuery(query);
+                fetchSettings.apply(rs);
+                ResultSetMetaData metadata = rs.getMetaData();
+                int columnCount = metadata.getColumnCount();
+                int[] types = new int[columnCount];
+                StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+                for (int i = 0; i < columnCount; i++) {
+                    types[i] = bindType(metadata.getColumnType(i + 1));
+                    sql.append(i == 0 ? "" : ", ").append(metadata.getColumnLabel(i + 1));
+                }
+                sql.append(") VALUES (");
+                for (int i = 0; i < columnCount; i++) {
+                    sql.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(")");
+
+                BlockingQueue<Object[]> queue = new ArrayBlockingQueue<Object[]>(queueSize);
+                Future<Long> writer = writerThread.submit(writer(sql.toString(), types, queue));
+                while (rs.next()) {
+                    Object[] row = new Object[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        row[i] = readValue(rs, i + 1, types[i]);
+                    }
+                    put(queue, row, writer);
+                }
+                rs.close();
+                put(queue, END, writer);
+                rowCount = result(writer);
+            } finally {
+                st.close();
+            }
+        } finally {
+            writerThread.shutdownNow();
+            source.release(connection);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        return String.format(Locale.ROOT, "Copied %d rows into %s in %d ms (%.0f rows/s)",
+            rowCount, table, elapsed, rowCount * 1000.0 / Math.max(elapsed, 1));
+    }
+
+    /**
+     * Put a row in the queue. If the writer has stopped, its failure is thrown.
+     */
+    private static void put(BlockingQueue<Object[]> queue, Object[] row, Future<Long> writer) throws Exception {
+        while (!queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+            if (writer.isDone()) {
+                result(writer);
+                throw new IllegalStateException("The writer stopped before the end of the rows");
+            }
+        }
+    }
+
+    private static long result(Future<Long> writer) throws Exception {
+        try {
+            return writer.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Takes the rows from the queue and inserts them. The rows are committed
+     * at the commit interval and at the end. On failure the uncommitted rows
+     * are rolled back.
+     */
+    private Callable<Long> writer(final String sql, final int[] types, final BlockingQueue<Object[]> queue) {
+        return new Callable<Long>() {
+            public Long call() throws Exception {
+                Connection connection = target.borrow();
+                try {
+                    connection.setAutoCommit(false);
+                    PreparedStatement insert = connection.prepareStatement(sql);
+                    try {
+                        long rowCount = 0;
+                        int rowsInBatch = 0;
+                        long rowsSinceCommit = 0;
+                        Object[] row;
+                        while ((row = queue.take()) != END) {
+                            for (int i = 0; i < types.length; i++) {
+                                bindValue(insert, i + 1, types[i], row[i]);
+                            }
+                            insert.addBatch();
+                            rowCount++;
+                            if (++rowsInBatch >= batchSize) {
+                                insert.executeBatch();
+                                rowsSinceCommit += rowsInBatch;
+                                rowsInBatch = 0;
+                                if (commitInterval > 0 && rowsSinceCommit >= commitInterval) {
+                                    connection.commit();
+                                    rowsSinceCommit = 0;
+                                }
+                            }
+                        }
+                        if (rowsInBatch > 0) {
+                            insert.executeBatch();
+                        }
+                        connection.commit();
+                        return rowCount;
+                    } finally {
+                        insert.close();
+                    }
+                } finally {
+                    target.release(connection);
+                }
+            }
+        };
+    }
+
+    /**
+     * The type a value is carried and bound as.
+     */
+    private static int bindType(int type) {
+        switch (type) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Types.BOOLEAN;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Types.INTEGER;
+            case Types.BIGINT:
+                return Types.BIGINT;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Types.DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return Types.DECIMAL;
+            case Types.DATE:
+                return Types.DATE;
+            case Types.TIME:
+                return Types.TIME;
+            case Types.TIMESTAMP:
+                return Types.TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return Types.VARBINARY;
+            default:
+                return Types.VARCHAR;
+        }
+    }
+
+    /**
+     * Read a value with the getter of its type. LOBs are read into memory
+     * because they are not valid after the cursor moves on.
+     */
+    private static Object readValue(ResultSet rs, int column, int type) throws SQLException {
+        Object value;
+        switch (type) {
+            case Types.BOOLEAN:
+                value = rs.getBoolean(column);
+                break;
+            case Types.INTEGER:
+                value = rs.getInt(column);
+                break;
+            case Types.BIGINT:
+                value = rs.getLong(column);
+                break;
+            case Types.DOUBLE:
+                value = rs.getDouble(column);
+                break;
+            case Types.DECIMAL:
+                value = rs.getBigDecimal(column);
+                break;
+            case Types.DATE:
+                value = rs.getDate(column);
+                break;
+            case Types.TIME:
+                value = rs.getTime(column);
+                break;
+            case Types.TIMESTAMP:
+                value = rs.getTimestamp(column);
+                break;
+            case Types.VARBINARY:
+                value = rs.getBytes(column);
+                break;
+            default:
+                value = rs.getString(column);
+        }
+        return rs.wasNull() ? null : value;
+    }
+
+    private static void bindValue(PreparedStatement st, int parameter, int type, Object value) throws SQLException {
+        if (value == null) {
+            st.setNull(parameter, type);
+            return;
+        }
+        switch (type) {
+            case Types.BOOLEAN:
+                st.setBoolean(parameter, (Boolean) value);
+                break;
+            case Types.INTEGER:
+                st.setInt(parameter, (Integer) value);
+                break;
+            case Types.BIGINT:
+                st.setLong(parameter, (Long) value);
+                break;
+            case Types.DOUBLE:
+                st.setDouble(parameter, (Double) value);
+                break;
+            case Types.DECIMAL:
+                st.setBigDecimal(parameter, (BigDecimal) value);
+                break;
+            case Types.DATE:
+                st.setDate(parameter, (Date) value);
+                break;
+            case Types.TIME:
+                st.setTime(parameter, (Time) value);
+                break;
+            case Types.TIMESTAMP:
+                st.setTimestamp(parameter, (Timestamp) value);
+                break;
+            case Types.VARBINARY:
+                st.setBytes(parameter, (byte[]) value);
+                break;
+            default:
+                st.setString(parameter, (String) value);
+        }
+    }
+}
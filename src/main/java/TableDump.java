@@ -0,0 +1,155 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports a list of tables to one file each. The tables are exported
+ * concurrently, each on its own connection, with at most a fixed number
+ * of connections open at a time.
+ */
+class TableDump {
+
+    /** Size of the buffer between the formatter and the file. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ConnectionSource connections;
+
+    private final FetchSettings fetchSettings;
+
+    private final OutputForms outputFormat;
+
+    private final int threads;
+
+    private OutputSettings outputSettings = OutputSettings.DEFAULT;
+
+    /**
+     * Constructor.
+     *
+     * @param connections - where to get the connections from.
+     * @param fetchSettings - how to fetch the rows.
+     * @param outputFormat - the format of the files.
+     * @param threads - the maximum number of tables to export at a time.
+     */
+    TableDump(ConnectionSource connections, FetchSettings fetchSettings, OutputForms outputFormat, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1");
+        }
+        this.connections = connections;
+        this.fetchSettings = fetchSettings;
+        this.outputFormat = outputFormat;
+        this.threads = threads;
+    }
+
+    /**
+     * Set how LOB and binary values are written.
+     *
+     * @param outputSettings - the output settings.
+     */
+    void setOutputSettings(OutputSettings outputSettings) {
+        this.outputSettings = outputSettings;
+    }
+
+    /**
+     * The file a table is exported to.
+     *
+     * @param directory - the output directory.
+     * @param table - the table name.
+     * @return the file.
+     */
+    File outputFile(File directory, String table) {
+        return new File(directory, table + "." + outputFormat.getExtension());
+    }
+
+    /**
+     * Export the tables. All tables are attempted even if some of them fail.
+     *
+     * @param tables - table names.
+     * @param queries - the query to run for each table, in the same order.
+     * @param directory - the directory to write the files to.
+     * @return one result line per table, in the same order as the tables.
+     */
+    List<String> dump(List<String> tables, List<String> queries, File directory) throws InterruptedException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create directory " + directory);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(tables.size(), 1)));
+        List<Future<Long>> results = new ArrayList<Future<Long>>(tables.size());
+        try {
+            for (int i = 0; i < tables.size(); i++) {
+                final String query = queries.get(i);
+                final File file = outputFile(directory, tables.get(i));
+                final OutputSettings settings = tableSettings(outputSettings, tables.get(i));
+                results.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return dumpTable(query, file, settings);
+                    }
+                }));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        List<String> report = new ArrayList<String>(tables.size());
+        for (int i = 0; i < tables.size(); i++) {
+            String table = tables.get(i);
+            try {
+                long elapsed = results.get(i).get();
+                report.add(table + ": " + outputFile(directory, table) + " in " + elapsed + " ms");
+            } catch (ExecutionException e) {
+                report.add(table + ": FAILED " + e.getCause().getMessage());
+            }
+        }
+        return report;
+    }
+
+    /**
+     * The settings to export a table with. The sql output inserts into the
+     * exported table unless \set sqltable names another.
+     */
+    static OutputSettings tableSettings(OutputSettings outputSettings, String table) {
+        return outputSettings.getSqlTable() == null ? outputSettings.withSqlTable(table) : outputSettings;
+    }
+
+    /**
+     * Export one query to a file.
+     *
+     * @return the elapsed time in milliseconds.
+     */
+    private long dumpTable(String query, File file, OutputSettings settings) throws Exception {
+        long start = System.currentTimeMillis();
+        Connection connection = connections.borrow();
+        try {
+            Statement st = fetchSettings.createStatement(connection);
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE),
+                false, "UTF-8");
+            try {
+                ResultSet rs = st.executeQuery(query);
+                fetchSettings.apply(rs);
+                outputFormat.output(FlightEvents.rowBatches(rs, outputFormat.name().toLowerCase(Locale.ROOT)), out, true, true, settings);
+                rs.close();
+                out.flush();
+                if (out.checkError()) {
+                    throw new IOException("Failed to write " + file);
+                }
+            } finally {
+                out.close();
+                st.close();
+            }
+        } finally {
+            connections.release(connection);
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Loads a flat XML or MS-Access XML document into tables. These are the
+ * documents written by the FLATXML and ACCESSXML output forms. Every element
+ * below the root is a row in the table of the same name. The column values
+ * are the attributes of the row element (flat XML) or the text of its child
+ * elements (Access XML). Columns missing from a row are left out of its
+ * INSERT, so they get their default value.
+ * The document is read as a stream, so memory use does not depend on its size.
+ * <p>
+ * The pending rows of all tables are sent together, table by table in the
+ * order the tables first appear, so rows that refer to rows of an earlier
+ * table come after them in the database too.
+ */
+class XmlImport {
+
+    private final int batchSize;
+
+    private final int commitInterval;
+
+    /** The loader of each table, in the order the tables appear. */
+    private final Map<String, TableLoader> loaders = new LinkedHashMap<String, TableLoader>();
+
+    /**
+     * Constructor.
+     *
+     * @param batchSize - rows per batch.
+     * @param commitInterval - rows per commit. Zero to commit only at the end.
+     */
+    XmlImport(int batchSize, int commitInterval) {
+        this.batchSize = batchSize;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Load a file.
+     *
+     * @param file - the file to load.
+     * @param table - the table to load all rows into. If null, the element names are used.
+     * @param connection - the database connection.
+     * @return the number of rows loaded into each table.
+     */
+    Map<String, Long> load(File file, String table, Connection connection) throws Exception {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            return load(inputStream, table, connection);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Load a document. If the connection is in auto-commit mode, the rows are
+     * committed every commit interval and at the end, otherwise the caller commits.
+     *
+     * @param inputStream - the document.
+     * @param table - the table to load all rows into. If null, the element names are used.
+     * @param connection - the database connection.
+     * @return the number of rows loaded into each table.
+     */
+    Map<String, Long> load(InputStream inputStream, String table, Connection connection) throws Exception {
+        boolean commit = connection.getAutoCommit();
+        if (commit) {
+            connection.setAutoCommit(false);
+        }
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        // The file may come from anywhere. Don't let it read other files or expand entities.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+        try {
+            long rowsSinceCommit = 0;
+            int rowsInBatch = 0;
+            int depth = 0;
+            TableLoader loader = null;
+            String column = null;
+            StringBuilder text = new StringBuilder();
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2) {
+                            loader = getLoader(table == null ? reader.getLocalName() : table, connection);
+                            loader.startRow(reader.getLocation().getLineNumber());
+                            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                                loader.setValue(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                            }
+                        } else if (depth == 3) {
+                            column = reader.getLocalName();
+                            text.setLength(0);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (depth == 3) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 3) {
+                            loader.setValue(column, text.toString());
+                        } else if (depth == 2) {
+                            loader.endRow();
+                            rowsSinceCommit++;
+                            if (commit && commitInterval > 0 && rowsSinceCommit >= commitInterval) {
+                                flushAll();
+                                connection.commit();
+                                rowsSinceCommit = 0;
+                                rowsInBatch = 0;
+                            } else if (++rowsInBatch >= batchSize) {
+                                flushAll();
+                                rowsInBatch = 0;
+                            }
+                        }
+                        depth--;
+                        break;
+                    default:
+                }
+            }
+            flushAll();
+            if (commit) {
+                connection.commit();
+            }
+            Map<String, Long> rowCounts = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, TableLoader> entry : loaders.entrySet()) {
+                rowCounts.put(entry.getKey(), entry.getValue().finish());
+            }
+            return rowCounts;
+        } finally {
+            reader.close();
+            for (TableLoader tableLoader : loaders.values()) {
+                tableLoader.close();
+            }
+            loaders.clear();
+            if (commit) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Send the pending batches of all tables.
+     */
+    private void flushAll() throws Exception {
+        for (TableLoader tableLoader : loaders.values()) {
+            tableLoader.flush();
+        }
+    }
+
+    private TableLoader getLoader(String table, Connection connection) throws Exception {
+        TableLoader loader = loaders.get(table);
+        if (loader == null) {
+            loader = new TableLoader(connection, table);
+            loaders.put(table, loader);
+        }
+        return loader;
+    }
+
+    /**
+     * Collects the values of the current row of a table. Rows are inserted
+     * with one batch inserter for each set of columns they have values for.
+     * The inserters don't send batches on their own; flush() does.
+     */
+    private static class TableLoader {
+
+        private final Connection connection;
+
+        private final String table;
+
+        /** The inserter of each set of columns, in the order they appear. */
+        private final Map<String, BatchInserter> inserters = new LinkedHashMap<String, BatchInserter>();
+
+        private final List<String> columns = new ArrayList<String>();
+
+        private final List<String> values = new ArrayList<String>();
+
+        private final StringBuilder key = new StringBuilder();
+
+        private int lineNumber;
+
+        TableLoader(Connection connection, String table) {
+            this.connection = connection;
+            this.table = table;
+        }
+
+        void startRow(int lineNumber) {
+            this.lineNumber = lineNumber;
+            columns.clear();
+            values.clear();
+        }
+
+        void setValue(String column, String value) {
+            columns.add(column);
+            values.add(value);
+        }
+
+        void endRow() throws Exception {
+            if (columns.isEmpty()) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": no values in the row");
+            }
+            key.setLength(0);
+            for (String column : columns) {
+                key.append(column.toUpperCase(Locale.ROOT)).append(' ');
+            }
+            try {
+                BatchInserter inserter = inserters.get(key.toString());
+                if (inserter == null) {
+                    inserter = new BatchInserter(connection, table, new ArrayList<String>(columns), Integer.MAX_VALUE, 0);
+                    inserters.put(key.toString(), inserter);
+                }
+                inserter.addRow(values.toArray(new String[values.size()]));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        void flush() throws Exception {
+            for (BatchInserter inserter : inserters.values()) {
+                inserter.flush();
+            }
+        }
+
+        long finish() throws Exception {
+            long rowCount = 0;
+            for (BatchInserter inserter : inserters.values()) {
+                rowCount += inserter.finish();
+            }
+            return rowCount;
+        }
+
+        void close() throws Exception {
+            for (BatchInserter inserter : inserters.values()) {
+                inserter.close();
+            }
+        }
+    }
+}
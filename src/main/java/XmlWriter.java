@@ -2,12 +2,24 @@
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.util.Stack;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Makes writing XML much much easier.
+ * The XML is collected in a buffer and written to the underlying writer when
+ * the buffer is full and on {@link #close()} and {@link #suspend()}. Text is
+ * escaped straight into the buffer with lookup tables, and characters the
+ * encoding can hold are written as they are rather than as character
+ * references. See {@link #setLegacyEscaping(boolean)} for the old output.
  * Improved from
  * <a href="http://builder.com.com/article.jhtml?id=u00220020318yan01.htm&page=1&vf=tt">article</a>
  *
@@ -29,11 +41,43 @@ public class XmlWriter
      * Default encoding value which is {@value}
      */
     public static final String DEFAULT_ENCODING = "UTF-8";
-    
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The escape of each ASCII character, or null if it is written as it is. */
+    private static final char[][] ESCAPES = new char[128][];
+
+    /** The same, but newlines and carriage returns are escaped too. */
+    private static final char[][] LITERAL_ESCAPES = new char[128][];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            if (!isValidXmlChar((char) c)) {
+                ESCAPES[c] = ("&#" + c + ";").toCharArray();
+            }
+        }
+        ESCAPES['\t'] = "&#09;".toCharArray();
+        ESCAPES['&'] = "&amp;".toCharArray();
+        ESCAPES['<'] = "&lt;".toCharArray();
+        ESCAPES['>'] = "&gt;".toCharArray();
+        ESCAPES['\"'] = "&quot;".toCharArray();
+        ESCAPES['\''] = "&apos;".toCharArray();
+        System.arraycopy(ESCAPES, 0, LITERAL_ESCAPES, 0, ESCAPES.length);
+        LITERAL_ESCAPES['\n'] = "&#xA;".toCharArray();
+        LITERAL_ESCAPES['\r'] = "&#xD;".toCharArray();
+    }
+
+    /** The characters of the Basic Multilingual Plane each encoding can hold, by name. */
+    private static final Map<String, BitSet> ENCODABLE = new ConcurrentHashMap<String, BitSet>();
+
     private Writer out;      // underlying writer
     private String encoding; // the encoding to be written into the XML header/metatag
-    private Stack stack = new Stack();        // of xml element names
-    private StringBuffer attrs; // current attribute string
+    private final char[] buffer = new char[BUFFER_SIZE]; // XML not yet written to out
+    private int count;       // number of chars in the buffer
+    private boolean unicode; // can the encoding hold every character?
+    private BitSet encodable; // chars the encoding can hold, if not unicode. null if unknown
+    private boolean legacy;  // escape all non-ASCII as before?
+    private ArrayList<String> stack = new ArrayList<String>(); // of xml element names
     private boolean empty;      // is the current node empty
     private boolean closed = true;     // is the current node closed...
 
@@ -50,6 +94,11 @@ public class XmlWriter
      * output this to end a line when pretty printing.
      */
     private String newline = "\n";
+    /**
+     * counts the bytes written for flush events, when they are recorded.
+     */
+    private MeteredOutputStream meter;
+    private long flushedBytes;
 
     
     /**
@@ -80,11 +129,26 @@ public class XmlWriter
         if(encoding == null) {
             encoding = DEFAULT_ENCODING;            
         }
+        if (FlightEvents.FLUSH.isEnabled()) {
+            meter = new MeteredOutputStream(outputStream);
+            outputStream = meter;
+        }
         OutputStreamWriter writer = new OutputStreamWriter(outputStream, encoding);
         setWriter(writer, encoding);
     }
 
 
+    /**
+     * Write every character above 0x7F as a decimal character reference, the
+     * way earlier versions did, even when the encoding can hold it. The output
+     * is then byte for byte the same as theirs. Off by default.
+     *
+     * @param legacy true to escape all non-ASCII characters.
+     */
+    public void setLegacyEscaping(boolean legacy) {
+        this.legacy = legacy;
+    }
+
     /**
      * Turn pretty printing on or off.
      * Pretty printing is enabled by default, but it can be turned off
@@ -170,14 +234,14 @@ public class XmlWriter
             // level. This solves only part of the problem of pretty printing
             // entities which contain both text and child entities.
             if (!wasClosed || this.wroteText) {
-                this.out.write(newline);
+                write(newline);
             }
             for (int i = 0; i < this.stack.size(); i++) {
-                this.out.write(indent); // Indent opening tag to proper level
+                write(indent); // Indent opening tag to proper level
             }
         }
-        this.out.write("<");
-        this.out.write(name);
+        write('<');
+        write(name);
         stack.add(name);
         this.empty = true;
         this.wroteText = false;
@@ -187,18 +251,9 @@ public class XmlWriter
     // close off the opening tag
     private void closeOpeningTag() throws IOException {
         if (!this.closed) {
-            writeAttributes();
             this.closed = true;
-            this.out.write(">");
-        }
-    }
-
-    // write out all current attributes
-    private void writeAttributes() throws IOException {
-        if (this.attrs != null) {
-            this.out.write(this.attrs.toString());
-            this.attrs.setLength(0);
             this.empty = false;
+            write('>');
         }
     }
 
@@ -229,21 +284,41 @@ public class XmlWriter
      * Mainly preserves newlines and tabs.
      */
     public XmlWriter writeAttribute(String attr, String value, boolean literally) throws IOException {
+        startAttribute(attr);
+        escape(value, literally);
+        write('"');
+        return this;
+    }
+
+    /**
+     * Write an attribute whose value is read from a reader a chunk at a time,
+     * so that the value never has to be in memory whole. The attributes
+     * written so far are written out first.
+     *
+     * @param attr name of attribute.
+     * @param value reader of the value. It is read to the end but not closed.
+     * @param chunk buffer to read the value into.
+     * @param literally see {@link #writeAttribute(String, String, boolean)}.
+     */
+    public XmlWriter writeAttribute(String attr, Reader value, char[] chunk, boolean literally) throws IOException {
+        startAttribute(attr);
+        escape(value, chunk, literally);
+        write('"');
+        return this;
+    }
+
+    // write out the name of an attribute up to the opening quote of the value
+    private void startAttribute(String attr) throws IOException {
         if(this.wroteText == true) {
             throw new IllegalStateException("The text for the current element has already been written. Cannot add attributes afterwards.");
         }
-        // maintain API
-        if (false) throw new IOException();
-
-        if (this.attrs == null) {
-            this.attrs = new StringBuffer();
+        if (this.closed) {
+            throw new IllegalStateException("The start tag of the current element has already been written. Cannot add attributes afterwards.");
         }
-        this.attrs.append(" ");
-        this.attrs.append(attr);
-        this.attrs.append("=\"");
-        this.attrs.append(escapeXml(value, literally));
-        this.attrs.append("\"");
-        return this;
+        write(' ');
+        write(attr);
+        write('=');
+        write('"');
     }
 
     /**
@@ -252,26 +327,25 @@ public class XmlWriter
      * element.
      */
     public XmlWriter endElement() throws IOException {
-        if (this.stack.empty()) {
+        if (this.stack.isEmpty()) {
             throw new IOException("Called endElement too many times. ");
         }
-        String name = (String)this.stack.pop();
+        String name = this.stack.remove(this.stack.size() - 1);
         if (name != null) {
             if (this.empty) {
-                writeAttributes();
-                this.out.write("/>");
+                write("/>");
             } else {
                 if (this.pretty && !this.wroteText) {
                     for (int i = 0; i < this.stack.size(); i++) {
-                        this.out.write(indent); // Indent closing tag to proper level
+                        write(indent); // Indent closing tag to proper level
                     }
                 }
-                this.out.write("</");
-                this.out.write(name);
-                this.out.write(">");
+                write("</");
+                write(name);
+                write('>');
             }
             if (this.pretty)
-                this.out.write(newline); // Add a newline after the closing tag
+                write(newline); // Add a newline after the closing tag
             this.empty = false;
             this.closed = true;
             this.wroteText = false;
@@ -285,14 +359,59 @@ public class XmlWriter
      * as yet unclosed tags.
      */
     public void close() throws IOException {
-        this.out.flush();
+        flush();
 
-        if (!this.stack.empty()) {
+        if (!this.stack.isEmpty()) {
             throw new IOException("Tags are not all closed. "
-                + "Possibly, " + this.stack.pop() + " is unclosed. ");
+                + "Possibly, " + this.stack.get(this.stack.size() - 1) + " is unclosed. ");
         }
     }
 
+    /**
+     * Write out what has been written so far without requiring all tags to be
+     * closed. The start tag of the current element is completed so that the
+     * document can be continued by another writer with {@link #resumeElement(String)}.
+     */
+    public void suspend() throws IOException {
+        if (!this.closed) {
+            closeOpeningTag();
+            if (this.pretty) {
+                write(newline);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Write out the buffer, flush the underlying writer and record a flush
+     * event with the bytes written since the last one.
+     */
+    private void flush() throws IOException {
+        FlightEvents.Event event = FlightEvents.FLUSH.begin();
+        flushBuffer();
+        this.out.flush();
+        if (meter != null) {
+            event.set(1, meter.getBytes() - flushedBytes);
+            flushedBytes = meter.getBytes();
+        }
+        event.set(0, "xml").commit();
+    }
+
+    /**
+     * Continue inside an element whose start tag was written by another writer,
+     * which then called {@link #suspend()}. Nothing is written, but the element
+     * is open for child elements and must be ended with {@link #endElement()}.
+     *
+     * @param name name of the element.
+     */
+    public XmlWriter resumeElement(String name) {
+        stack.add(name);
+        this.closed = true;
+        this.empty = false;
+        this.wroteText = false;
+        return this;
+    }
+
     /**
      * Output body text. Any XML characters are escaped.
      * @param text The text to be written
@@ -318,7 +437,25 @@ public class XmlWriter
         this.empty = false;
         this.wroteText = true;
 
-        this.out.write(escapeXml(text, literally));
+        escape(text, literally);
+        return this;
+    }
+
+    /**
+     * Output body text read from a reader a chunk at a time, so that the text
+     * never has to be in memory whole. Any XML characters are escaped.
+     *
+     * @param text reader of the text. It is read to the end but not closed.
+     * @param chunk buffer to read the text into.
+     * @return This writer
+     * @throws IOException
+     */
+    public XmlWriter writeText(Reader text, char[] chunk) throws IOException {
+        closeOpeningTag();
+        this.empty = false;
+        this.wroteText = true;
+
+        escape(text, chunk, false);
         return this;
     }
 
@@ -346,10 +483,10 @@ public class XmlWriter
         this.empty = false;
         this.wroteText = true;
         if(!hasAlreadyEnclosingCdata)
-            this.out.write(CDATA_START);
-        this.out.write(cdata);
+            write(CDATA_START);
+        write(cdata);
         if(!hasAlreadyEnclosingCdata)
-            this.out.write(CDATA_END);
+            write(CDATA_END);
         return this;
     }
 
@@ -369,103 +506,139 @@ public class XmlWriter
         this.empty = false;
         if (this.pretty && !this.wroteText) {
             for (int i = 0; i < this.stack.size(); i++) {
-                this.out.write(indent);
+                write(indent);
             }
         }
 
-        this.out.write(data);
+        write(data);
 
         if (this.pretty) {
-            this.out.write(newline);
+            write(newline);
         }
     }
 
 
     /**
      * Escapes some meta characters like \n, \r that should be preserved in the XML
-     * so that a reader will not filter out those symbols.  This code is modified
-     * from xmlrpc:
-     * https://svn.apache.org/repos/asf/webservices/xmlrpc/branches/XMLRPC_1_2_BRANCH/src/java/org/apache/xmlrpc/XmlWriter.java
+     * so that a reader will not filter out those symbols. The escaped text
+     * goes straight into the buffer. Characters the encoding can't hold and
+     * characters XML doesn't allow are written as decimal character references.
      *
-     * @param str The string to be escaped
+     * @param text The text to be escaped
      * @param literally If the writer should be literally on the given value
      * which means that meta characters will also be preserved by escaping them. 
      * Mainly preserves newlines and carriage returns.
-     * @return The escaped string
      */
-    private String escapeXml(String str, boolean literally) {
-        char [] block = null;
-        int last = 0;
-        StringBuffer buffer = null;
-        int strLength = str.length();
-        int index = 0;
-
-        for (index = 0; index < strLength; index++) {
-            String entity = null;
-            char currentChar = str.charAt(index);
-            switch (currentChar) {
-                case '\t':
-                    entity = "&#09;";
-                    break;
-                case '\n':
-                    if (literally) { entity = "&#xA;"; }
-                    break;
-                case '\r':
-                    if (literally) { entity = "&#xD;"; }
-                    break;
-                case '&':
-                    entity = "&amp;";
-                    break;
-                case '<':
-                    entity = "&lt;";
-                    break;
-                case '>':
-                    entity = "&gt;";
-                    break;
-                case '\"':
-                    entity = "&quot;";
-                    break;
-                case '\'':
-                    entity = "&apos;";
-                    break;
-                default:
-                    if ((currentChar > 0x7f) || !isValidXmlChar(currentChar)) {
-                        entity = "&#" + String.valueOf((int) currentChar) + ";";
+    private void escape(CharSequence text, boolean literally) throws IOException {
+        char[][] escapes = literally ? LITERAL_ESCAPES : ESCAPES;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                char[] entity = escapes[c];
+                if (entity == null) {
+                    if (count == buffer.length) {
+                        flushBuffer();
                     }
-                    break;
-            }
-
-            // If we found something to substitute, then copy over previous
-            // data then do the substitution.
-            if (entity != null) {
-                if (block == null) {
-                    block = str.toCharArray();
+                    buffer[count++] = c;
+                } else {
+                    write(entity);
                 }
-                if (buffer == null) {
-                    buffer = new StringBuffer();
+            } else if (legacy) {
+                writeCharRef(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                char low = text.charAt(++i);
+                int codePoint = Character.toCodePoint(c, low);
+                if (unicode) {
+                    write(c);
+                    write(low);
+                } else {
+                    writeCharRef(codePoint);
                 }
-                buffer.append(block, last, index - last);
-                buffer.append(entity);
-                last = index + 1;
+            } else if (!isValidXmlChar(c)) {
+                writeCharRef(c);
+            } else if (unicode || encodable != null && encodable.get(c)) {
+                write(c);
+            } else {
+                writeCharRef(c);
+            }
+        }
+    }
+
+    /**
+     * Escape text read from a reader a chunk at a time. A surrogate pair is
+     * never split between two chunks.
+     */
+    private void escape(Reader text, char[] chunk, boolean literally) throws IOException {
+        int kept = 0;
+        int read;
+        while ((read = text.read(chunk, kept, chunk.length - kept)) > 0) {
+            int end = kept + read;
+            kept = end > 1 && Character.isHighSurrogate(chunk[end - 1]) ? 1 : 0;
+            escape(CharBuffer.wrap(chunk, 0, end - kept), literally);
+            if (kept > 0) {
+                chunk[0] = chunk[end - 1];
             }
         }
+        if (kept > 0) {
+            escape(CharBuffer.wrap(chunk, 0, kept), literally);
+        }
+    }
 
-        // nothing found, just return source
-        if (last == 0) {
-            return str;
+    // write a decimal character reference without making a String of it
+    private void writeCharRef(int c) throws IOException {
+        if (count + 10 > buffer.length) {
+            flushBuffer();
         }
+        buffer[count++] = '&';
+        buffer[count++] = '#';
+        int start = count;
+        do {
+            buffer[count++] = (char) ('0' + c % 10);
+            c /= 10;
+        } while (c != 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            char digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+        buffer[count++] = ';';
+    }
 
-        if (last < strLength) {
-            if (block == null) {
-                block = str.toCharArray();
-            }
-            if (buffer == null) {
-                buffer = new StringBuffer();
+    private void write(char c) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = c;
+    }
+
+    private void write(char[] chars) throws IOException {
+        if (chars.length > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(chars, 0, buffer, count, chars.length);
+        count += chars.length;
+    }
+
+    private void write(String str) throws IOException {
+        int length = str.length();
+        if (length > buffer.length - count) {
+            flushBuffer();
+            if (length > buffer.length) {
+                this.out.write(str);
+                return;
             }
-            buffer.append(block, last, index - last);
         }
+        str.getChars(0, length, buffer, count);
+        count += length;
+    }
 
-        return buffer.toString();
+    // write the buffer to the underlying writer
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            this.out.write(buffer, 0, count);
+            count = 0;
+        }
     }
 
     /**
@@ -562,6 +735,34 @@ public class XmlWriter
         }
 
         this.encoding = encoding;
+        this.unicode = encoding != null && encoding.startsWith("UTF-");
+        this.encodable = unicode || encoding == null ? null : encodable(encoding);
+    }
+
+    /**
+     * The characters of the Basic Multilingual Plane an encoding can hold.
+     *
+     * @return the set, or null if Java doesn't know the encoding.
+     */
+    private static BitSet encodable(String encoding) {
+        BitSet chars = ENCODABLE.get(encoding);
+        if (chars == null) {
+            CharsetEncoder encoder;
+            try {
+                encoder = Charset.forName(encoding).newEncoder();
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            chars = new BitSet(0x10000);
+            for (char c = 0x80; c < Character.MIN_SURROGATE; c++) {
+                chars.set(c, encoder.canEncode(c));
+            }
+            for (char c = (char) (Character.MAX_SURROGATE + 1); c != 0; c++) {
+                chars.set(c, encoder.canEncode(c));
+            }
+            ENCODABLE.put(encoding, chars);
+        }
+        return chars;
     }
 
 
@@ -582,16 +783,14 @@ public class XmlWriter
         this.out = writer;
         if (this.out != null)
             setEncoding(encoding);
-//        if (!(this.out instanceof BufferedWriter))
-//            this.out = new BufferedWriter(this.out);
     }
 
     public XmlWriter writeDeclaration() throws IOException {
         if (this.encoding != null) {
-            this.out.write("<?xml version='1.0'");
-            this.out.write(" encoding='" + this.encoding + "'");
-            this.out.write("?>");
-            this.out.write(this.newline);
+            write("<?xml version='1.0'");
+            write(" encoding='" + this.encoding + "'");
+            write("?>");
+            write(this.newline);
         }
 
         return this;
@@ -599,22 +798,22 @@ public class XmlWriter
 
     public XmlWriter writeDoctype(String systemId, String publicId) throws IOException {
         if (systemId != null || publicId != null) {
-            this.out.write("<!DOCTYPE dataset");
+            write("<!DOCTYPE dataset");
 
             if (systemId != null) {
-                this.out.write(" SYSTEM \"");
-                this.out.write(systemId);
-                this.out.write("\"");
+                write(" SYSTEM \"");
+                write(systemId);
+                write("\"");
             }
 
             if (publicId != null) {
-                this.out.write(" PUBLIC \"");
-                this.out.write(publicId);
-                this.out.write("\"");
+                write(" PUBLIC \"");
+                write(publicId);
+                write("\"");
             }
 
-            this.out.write(">");
-            this.out.write(this.newline);
+            write(">");
+            write(this.newline);
         }
 
         return this;
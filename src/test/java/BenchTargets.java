@@ -0,0 +1,53 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.util.Locale;
+
+/**
+ * The tool's side of the benchmarks in the bench package. See bench.Targets.
+ */
+public class BenchTargets implements bench.Targets {
+
+    private static final String UTF8_ENCODING = "UTF-8";
+
+    public void output(String form, ResultSet rs, OutputStream out) throws Exception {
+        PrintStream console = new PrintStream(out, false, UTF8_ENCODING);
+        OutputForms.valueOf(form.toUpperCase(Locale.ROOT)).output(rs, console, true, true, OutputSettings.DEFAULT);
+        console.flush();
+    }
+
+    public void excel(ResultSet rs, OutputStream out, int rowWindow) throws Exception {
+        ExcelOutput excel = new ExcelOutput();
+        excel.setRowWindow(rowWindow);
+        excel.output(rs, new PrintStream(out, false, UTF8_ENCODING));
+    }
+
+    public void writeAttributes(Writer out, String[] names, String[] values) throws Exception {
+        XmlWriter writer = new XmlWriter(out);
+        writer.writeElement("row");
+        for (int i = 0; i < values.length; i++) {
+            writer.writeAttribute(names[i], values[i]);
+        }
+        writer.endElement();
+        writer.close();
+    }
+
+    public void writeTexts(Writer out, String[] values) throws Exception {
+        XmlWriter writer = new XmlWriter(out);
+        writer.writeElement("rows");
+        for (String value : values) {
+            writer.writeElementWithText("value", value);
+        }
+        writer.endElement();
+        writer.close();
+    }
+
+    public long scanScript(Reader script) throws Exception {
+        return new ScriptReader(new ScriptReader.Handler() {
+            public void statement(String statement, int line) {
+            }
+        }).read(script);
+    }
+}
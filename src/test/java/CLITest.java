@@ -1,6 +1,12 @@
 
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.rules.ExpectedException;
@@ -66,4 +72,62 @@ public class CLITest {
         consoleDemo.readFromFile("nosuchfile");
     }
 
+    /**
+     * Statements and meta commands are split out of a script with their line
+     * numbers, also when they cross the chunks the script is read in.
+     */
+    @Test
+    public void scriptStatements() throws Exception {
+        final List<String> statements = new ArrayList<String>();
+        ScriptReader reader = new ScriptReader(new ScriptReader.Handler() {
+            public void statement(String statement, int line) {
+                statements.add(line + ":" + statement);
+            }
+        }, 8);
+        long count = reader.read(new StringReader("SELECT 'a;b' FROM X;\n"
+            + "\n  INSERT INTO X\n VALUES ('it''s');\\dt\n"
+            + "\\o out.txt\nSELECT 1; trailing"));
+        assertEquals(5, count);
+        assertEquals(Arrays.asList("1:SELECT 'a;b' FROM X;",
+            "3:INSERT INTO X\n VALUES ('it''s');",
+            "4:\\dt\n",
+            "5:\\o out.txt\n",
+            "6:SELECT 1;"), statements);
+    }
+
+    @Test
+    public void statementShape() throws Exception {
+        StatementShape shape = StatementShape.parse("INSERT INTO T2 (A, \"B 1\") VALUES (12, 'it''s', -1.5e3, "
+            + "DATE '2015-01-01', N'x') -- 7");
+        assertEquals("INSERT INTO T2 (A, \"B 1\") VALUES (?, ?, -?, DATE '2015-01-01', N'x') -- 7", shape.getSql());
+        assertEquals(Arrays.<Object>asList(12L, "it's", new BigDecimal("1.5e3")), shape.getValues());
+        assertNull(StatementShape.parse("UPDATE T SET A = ?"));
+        // A backslash may be an escape, so such strings stay in the statement.
+        shape = StatementShape.parse("INSERT INTO T VALUES ('C:\\dir', 'x', 1)");
+        assertEquals("INSERT INTO T VALUES ('C:\\dir', ?, ?)", shape.getSql());
+        shape = StatementShape.parse("INSERT INTO T VALUES ('it\\'s', \"a\\\"b\", 'x', 1)", true);
+        assertEquals("INSERT INTO T VALUES ('it\\'s', \"a\\\"b\", 'x', ?)", shape.getSql());
+        assertEquals(Arrays.<Object>asList(1L), shape.getValues());
+    }
+
+    @Test
+    public void splitQuotedMetaLine() throws Exception {
+        assertEquals(Arrays.asList("\\copy", "db", "SELECT \"A\" FROM T", "intern", "T"),
+            Arrays.asList(CLI.splitMetaLine("\\copy  db \"SELECT \"\"A\"\" FROM T\" intern T")));
+    }
+
+    @Test
+    public void badFetchSize() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Illegal fetch size: lots");
+        consoleDemo.setFetchSize("lots");
+    }
+
+    @Test
+    public void zeroFetchSize() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Illegal fetch size: 0");
+        consoleDemo.setFetchSize("0");
+    }
+
 }
@@ -1,18 +1,47 @@
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 //import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.PropertyConfigurator;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
 import org.dbunit.IDatabaseTester;
@@ -23,6 +52,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 
 public class DatabaseTest {
 
@@ -37,6 +68,9 @@ public class DatabaseTest {
     private Connection dbConn;
     private CLI engine;
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private void createSchema() throws Exception {
         Statement statement = dbConn.createStatement();
         statement.executeUpdate("create table if not exists PERSON ("
@@ -77,7 +111,7 @@ public class DatabaseTest {
         props.setProperty("db.user", USER);
         props.setProperty("db.password", PASSWORD);
         engine = new CLI(props);
-        engine.setOutputStream(new PrintStream(testOutput, false, UTF8_ENCODING));
+        engine.setOutputStream(new PrintStream(testOutput, false, UTF8_ENCODING), Charset.forName(UTF8_ENCODING));
         engine.openConnection();
     }
 
@@ -121,6 +155,22 @@ public class DatabaseTest {
         assertEquals(expected, actual);
     }
 
+    /**
+     * An adaptive fetch size must not change the output.
+     */
+    @Test
+    public void adaptiveFetchExport() throws Exception {
+        engine.setOutputFormat("tsv");
+        engine.setFetchSize("auto");
+        engine.executeSQLQuery("SELECT ID, NAME FROM PERSON ORDER BY ID");
+        String actual = testOutput.toString(UTF8_ENCODING);
+        String expected = "ID\tNAME\r\n"
+            + "182208\tΗλέκτρα\r\n"
+            + "533922\tAlice\r\n"
+            + "882911\tCharlie\r\n";
+        assertEquals(expected, actual);
+    }
+
    /**
      * Test correctness when the output type is binary.
      * The values are seen as sequences of hex.
@@ -167,12 +217,19 @@ public class DatabaseTest {
         //String expected = loadFile("rdf-person-base.xml");
         String expected = "<?xml version='1.0' encoding='UTF-8'?>\n"
             + "<dataset>\n"
-            + "  <PERSON ID=\"182208\" NAME=\"&#919;&#955;&#941;&#954;&#964;&#961;&#945;\" "
+            + "  <PERSON ID=\"182208\" NAME=\"Ηλέκτρα\" "
             + "LAST_NAME=\"el Greco\" BORN=\"1984-03-18 20:55:31.0\" STARTED=\"1999-09-09\"/>\n"
             + "  <PERSON ID=\"533922\" NAME=\"Alice\" LAST_NAME=\"Foo\" BORN=\"1980-11-02 00:00:00.0\" STARTED=\"2013-01-01\"/>\n"
             + "  <PERSON ID=\"882911\" NAME=\"Charlie\" LAST_NAME=\"Brown\" BORN=\"1970-04-30 00:00:00.0\" STARTED=\"2000-02-28\"/>\n"
             + "</dataset>\n";
         assertEquals(expected, actual);
+
+        // The legacy escaping writes non-ASCII text as character references.
+        testOutput.reset();
+        engine.setSetting("xmlescape", "legacy");
+        engine.executeSQLQuery("SELECT ID, NAME, LAST_NAME, BORN, STARTED FROM PERSON ORDER BY ID");
+        assertEquals(expected.replace("Ηλέκτρα", "&#919;&#955;&#941;&#954;&#964;&#961;&#945;"),
+            testOutput.toString(UTF8_ENCODING));
     }
 
     @Ignore @Test
@@ -201,7 +258,7 @@ public class DatabaseTest {
         String actual = testOutput.toString(UTF8_ENCODING);
         String expected = "<?xml version='1.0' encoding='UTF-8'?>\n"
             + "<dataset>\n"
-            + "  <row NAME=\"&#919;&#955;&#941;&#954;&#964;&#961;&#945;\"/>\n"
+            + "  <row NAME=\"Ηλέκτρα\"/>\n"
             + "</dataset>\n";
         assertEquals(expected, actual);
     }
@@ -216,10 +273,952 @@ public class DatabaseTest {
             + "<dataroot>\n"
             + "  <row>\n"
             + "    <ID>Elektra</ID>\n"
-            + "    <NAME>&#919;&#955;&#941;&#954;&#964;&#961;&#945;</NAME>\n"
+            + "    <NAME>Ηλέκτρα</NAME>\n"
             + "  </row>\n"
             + "</dataroot>\n";
         assertEquals(expected, actual);
     }
 
+    /**
+     * The Excel output must start a new sheet when the current one is full.
+     * NULL text leaves the cell empty.
+     */
+    @Test
+    public void excelSheetRollover() throws Exception {
+        Statement statement = dbConn.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT ID, NAME, BORN, CAST(NULL AS VARCHAR(10)) NOTE FROM PERSON ORDER BY ID");
+        ExcelOutput eo = new ExcelOutput();
+        eo.setMaxSheetRows(3);
+        ByteArrayOutputStream excelOutput = new ByteArrayOutputStream();
+        eo.output(rs, new PrintStream(excelOutput));
+        statement.close();
+
+        XSSFWorkbook wb = new XSSFWorkbook(new ByteArrayInputStream(excelOutput.toByteArray()));
+        assertEquals(2, wb.getNumberOfSheets());
+        Sheet first = wb.getSheetAt(0);
+        assertEquals("PERSON", first.getSheetName());
+        assertEquals(2, first.getLastRowNum());
+        assertEquals("NAME", first.getRow(0).getCell(1).getStringCellValue());
+        assertEquals("Ηλέκτρα", first.getRow(1).getCell(1).getStringCellValue());
+        Cell note = first.getRow(1).getCell(3);
+        assertTrue(note == null || "".equals(note.getStringCellValue()));
+        Sheet second = wb.getSheetAt(1);
+        assertEquals("PERSON (2)", second.getSheetName());
+        assertEquals(1, second.getLastRowNum());
+        assertEquals("ID", second.getRow(0).getCell(0).getStringCellValue());
+        assertEquals("Charlie", second.getRow(1).getCell(1).getStringCellValue());
+    }
+
+    /**
+     * Dump the tables in the tables property to one file each.
+     */
+    @Test
+    public void dumpTables() throws Exception {
+        props.setProperty("tables", "PERSON ALICE");
+        props.setProperty("ALICE.query", "SELECT ID, NAME FROM PERSON WHERE NAME = 'Alice'");
+        File directory = tempFolder.getRoot();
+        engine.setThreads("2");
+        engine.setOutputFormat("csv");
+        engine.dump(directory.getPath(), null);
+
+        String person = FileUtils.readFileToString(new File(directory, "PERSON.csv"));
+        assertEquals("ID,NAME,LAST_NAME,BORN,STARTED", person.substring(0, person.indexOf('\r')));
+        assertEquals(4, person.split("\r\n").length);
+        assertEquals("ID,NAME\r\n533922,Alice\r\n",
+            FileUtils.readFileToString(new File(directory, "ALICE.csv")));
+    }
+
+    /**
+     * An export split on the primary key must give the same document as
+     * a plain export ordered by the key.
+     */
+    @Test
+    public void partitionedExport() throws Exception {
+        File file = new File(tempFolder.getRoot(), "person.xml");
+        engine.setThreads("2");
+        engine.setOutputFormat("flatxml");
+        engine.executeSQLQuery("SELECT * FROM PERSON ORDER BY ID");
+        String expected = testOutput.toString(UTF8_ENCODING);
+        engine.executeMetaQuery("\\dumppart PERSON 3 " + file.getPath());
+        assertEquals(expected, FileUtils.readFileToString(file, UTF8_ENCODING));
+        assertEquals(1, tempFolder.getRoot().list().length);
+    }
+
+    /**
+     * Each part file is a complete document.
+     */
+    @Test
+    public void partitionedExportToParts() throws Exception {
+        File file = new File(tempFolder.getRoot(), "person.tsv");
+        engine.setOutputFormat("tsv");
+        engine.executeMetaQuery("\\dumppart PERSON 2 " + file.getPath() + " parts");
+        assertEquals("ID\tNAME\r\n182208\tΗλέκτρα\r\n",
+            readColumns(new File(tempFolder.getRoot(), "person.part001.tsv"), 2));
+        assertEquals("ID\tNAME\r\n533922\tAlice\r\n882911\tCharlie\r\n",
+            readColumns(new File(tempFolder.getRoot(), "person.part002.tsv"), 2));
+    }
+
+    /**
+     * The export is split on a numeric column, the primary key before a unique
+     * index on text and a unique index before any other.
+     */
+    @Test
+    public void partitionKeyColumn() throws Exception {
+        Statement statement = dbConn.createStatement();
+        statement.executeUpdate("CREATE TABLE KEYED (ID INT PRIMARY KEY, CODE VARCHAR(10), QTY INT, SEQ INT)");
+        statement.executeUpdate("CREATE UNIQUE INDEX A_CODE ON KEYED (CODE)");
+        assertEquals("ID", PartitionedExport.findKeyColumn(dbConn, "KEYED"));
+
+        statement.executeUpdate("CREATE TABLE UNKEYED (CODE VARCHAR(10), QTY INT, SEQ INT)");
+        statement.executeUpdate("CREATE UNIQUE INDEX A_CODE2 ON UNKEYED (CODE)");
+        statement.executeUpdate("CREATE INDEX B_QTY ON UNKEYED (QTY)");
+        assertEquals("QTY", PartitionedExport.findKeyColumn(dbConn, "UNKEYED"));
+        statement.executeUpdate("CREATE UNIQUE INDEX C_SEQ ON UNKEYED (SEQ)");
+        assertEquals("SEQ", PartitionedExport.findKeyColumn(dbConn, "UNKEYED"));
+        statement.close();
+    }
+
+    /**
+     * Read a TSV file keeping only the first columns.
+     */
+    private String readColumns(File file, int columns) throws Exception {
+        StringBuilder result = new StringBuilder();
+        for (String line : FileUtils.readLines(file, UTF8_ENCODING)) {
+            String[] values = line.split("\t");
+            for (int i = 0; i < columns; i++) {
+                result.append(i == 0 ? "" : "\t").append(values[i]);
+            }
+            result.append("\r\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Export to CSV and load the file back into an empty table.
+     */
+    @Test
+    public void csvRoundTrip() throws Exception {
+        File file = new File(tempFolder.getRoot(), "person.csv");
+        engine.setOutputFormat("csv");
+        engine.executeSQLQuery("SELECT ID, NAME, LAST_NAME, BORN, STARTED FROM PERSON ORDER BY ID");
+        String expected = testOutput.toString(UTF8_ENCODING);
+        FileUtils.writeStringToFile(file, expected, UTF8_ENCODING);
+
+        dbConn.createStatement().executeUpdate("DELETE FROM PERSON");
+        engine.importFile(file.getPath(), "person");
+        testOutput.reset();
+        engine.executeSQLQuery("SELECT ID, NAME, LAST_NAME, BORN, STARTED FROM PERSON ORDER BY ID");
+        assertEquals(expected, testOutput.toString(UTF8_ENCODING));
+    }
+
+    /**
+     * Booleans are loaded in the usual spellings and anything else fails with
+     * the record number.
+     */
+    @Test
+    public void csvBooleans() throws Exception {
+        dbConn.createStatement().executeUpdate("CREATE TABLE FLAGS (ID INT, F BOOLEAN)");
+        File file = new File(tempFolder.getRoot(), "flags.csv");
+        FileUtils.writeStringToFile(file, "ID,F\r\n1,yes\r\n2,Off\r\n3,t\r\n4,0\r\n5,\r\n", UTF8_ENCODING);
+        engine.importFile(file.getPath(), "FLAGS");
+        testOutput.reset();
+        engine.setOutputFormat("csv");
+        engine.executeSQLQuery("SELECT ID, F FROM FLAGS ORDER BY ID");
+        assertEquals("ID,F\r\n1,TRUE\r\n2,FALSE\r\n3,TRUE\r\n4,FALSE\r\n5,\r\n",
+            testOutput.toString(UTF8_ENCODING));
+
+        FileUtils.writeStringToFile(file, "ID,F\r\n6,true\r\n7,maybe\r\n", UTF8_ENCODING);
+        try {
+            engine.importFile(file.getPath(), "FLAGS");
+            fail("A value that is not a boolean should fail");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Record 2: Illegal value for column 2: maybe", e.getMessage());
+        }
+    }
+
+    /**
+     * Load a TSV file in chunks in parallel. A quoted value with a line break
+     * must not be split.
+     */
+    @Test
+    public void tsvParallelImport() throws Exception {
+        File file = new File(tempFolder.getRoot(), "person.tsv");
+        FileUtils.writeStringToFile(file, "ID\tNAME\tSTARTED\r\n"
+            + "1\t\"two\r\nlines\"\t2015-01-01\r\n"
+            + "2\tΗλέκτρα\t\r\n"
+            + "3\tBob\t2015-03-01\r\n", UTF8_ENCODING);
+        dbConn.createStatement().executeUpdate("DELETE FROM PERSON");
+
+        CsvImport csvImport = new CsvImport(CSVFormat.TDF, 2, 0, 3);
+        csvImport.setChunking(0, 1);
+        ConnectionSource connections = new ConnectionSource() {
+            public Connection borrow() throws Exception {
+                return DriverManager.getConnection(JDBC_URL, USER, PASSWORD);
+            }
+
+            public void release(Connection connection) throws Exception {
+                connection.close();
+            }
+        };
+        // In a transaction the file is loaded on the connection, and rolled back with it.
+        dbConn.setAutoCommit(false);
+        assertEquals(3, csvImport.load(file, "PERSON", dbConn, connections));
+        dbConn.rollback();
+        dbConn.setAutoCommit(true);
+
+        long rowCount = csvImport.load(file, "PERSON", dbConn, connections);
+        assertEquals(3, rowCount);
+        engine.setOutputFormat("tsv");
+        engine.executeSQLQuery("SELECT ID, NAME, STARTED FROM PERSON ORDER BY ID");
+        assertEquals("ID\tNAME\tSTARTED\r\n"
+            + "1\t\"two\r\nlines\"\t2015-01-01\r\n"
+            + "2\tΗλέκτρα\t\r\n"
+            + "3\tBob\t2015-03-01\r\n", testOutput.toString(UTF8_ENCODING));
+    }
+
+    /**
+     * The DBUnit seed file is a flat XML document and can be imported.
+     */
+    @Test
+    public void importSeedFile() throws Exception {
+        dbConn.createStatement().executeUpdate("DELETE FROM PERSON");
+        File seed = new File(DatabaseTest.class.getClassLoader().getResource("seed-person.xml").toURI());
+        engine.importFile(seed.getPath(), null);
+        testOutput.reset();
+        simplePersonExport();
+    }
+
+    /**
+     * Export to flat XML and Access XML and load the files back.
+     */
+    @Test
+    public void xmlRoundTrip() throws Exception {
+        for (String format : new String[] {"flatxml", "accessxml"}) {
+            File file = new File(tempFolder.getRoot(), format + ".xml");
+            engine.setOutputFormat(format);
+            engine.executeSQLQuery("SELECT * FROM PERSON ORDER BY ID");
+            String expected = testOutput.toString(UTF8_ENCODING);
+            FileUtils.writeStringToFile(file, expected, UTF8_ENCODING);
+
+            dbConn.createStatement().executeUpdate("DELETE FROM PERSON");
+            engine.importFile(file.getPath(), null);
+            testOutput.reset();
+            engine.executeSQLQuery("SELECT * FROM PERSON ORDER BY ID");
+            assertEquals(expected, testOutput.toString(UTF8_ENCODING));
+            testOutput.reset();
+        }
+    }
+
+    /**
+     * Columns missing from a row get their default, and the rows of a table
+     * are sent before the rows of later tables that refer to them.
+     */
+    @Test
+    public void xmlImportDefaultsAndOrder() throws Exception {
+        Statement statement = dbConn.createStatement();
+        statement.executeUpdate("CREATE TABLE PARENT (ID INT PRIMARY KEY, NAME VARCHAR(10) DEFAULT 'none' NOT NULL)");
+        statement.executeUpdate("CREATE TABLE CHILD (ID INT PRIMARY KEY, PARENT_ID INT REFERENCES PARENT (ID))");
+        String document = "<dataset><PARENT ID='1'/><CHILD ID='1' PARENT_ID='1'/><CHILD ID='2' PARENT_ID='1'/>"
+            + "<PARENT ID='2' NAME='two'/><CHILD ID='3' PARENT_ID='2'/></dataset>";
+        Map<String, Long> rowCounts = new XmlImport(2, 0).load(new ByteArrayInputStream(document.getBytes(UTF8_ENCODING)),
+            null, dbConn);
+        assertEquals(Long.valueOf(2), rowCounts.get("PARENT"));
+        assertEquals(Long.valueOf(3), rowCounts.get("CHILD"));
+        engine.setOutputFormat("tsv");
+        engine.executeSQLQuery("SELECT ID, NAME FROM PARENT ORDER BY ID");
+        assertEquals("ID\tNAME\r\n1\tnone\r\n2\ttwo\r\n", testOutput.toString(UTF8_ENCODING));
+        statement.close();
+    }
+
+    /**
+     * An XML file can't make the import read another file through an entity.
+     */
+    @Test
+    public void xmlExternalEntity() throws Exception {
+        File secret = tempFolder.newFile("secret.txt");
+        FileUtils.writeStringToFile(secret, "secret", UTF8_ENCODING);
+        File file = new File(tempFolder.getRoot(), "entity.xml");
+        FileUtils.writeStringToFile(file, "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<!DOCTYPE dataset [<!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">]>\n"
+            + "<dataset><PERSON><ID>1</ID><NAME>&xxe;</NAME></PERSON></dataset>\n", UTF8_ENCODING);
+        dbConn.createStatement().executeUpdate("DELETE FROM PERSON");
+        try {
+            engine.importFile(file.getPath(), null);
+        } catch (Exception e) {
+            // Refusing the entity is fine too.
+        }
+        ResultSet rs = dbConn.createStatement().executeQuery("SELECT COUNT(*) FROM PERSON WHERE NAME LIKE '%secret%'");
+        rs.next();
+        assertEquals(0, rs.getInt(1));
+        rs.close();
+    }
+
+    /**
+     * Run a script with DML in batches of two. The failure is reported with its line number.
+     */
+    @Test
+    public void batchedScript() throws Exception {
+        File script = tempFolder.newFile("script.sql");
+        FileUtils.writeStringToFile(script, "CREATE TABLE SCRIPTED (ID INT PRIMARY KEY, V VARCHAR(10));\n"
+            + "INSERT INTO SCRIPTED VALUES (1, 'a');\n"
+            + "INSERT INTO SCRIPTED VALUES (2, 'b');\n"
+            + "-- The same key again\n"
+            + "INSERT INTO SCRIPTED\n VALUES (2, 'c');\n"
+            + "UPDATE SCRIPTED SET V = 'd' WHERE ID = 1;\n"
+            + "SELECT V FROM SCRIPTED ORDER BY ID;\n"
+            + "DELETE FROM SCRIPTED;\n", UTF8_ENCODING);
+        engine.setSetting("scriptbatch", "2");
+        String reported = readReporting(script);
+        assertTrue(reported, reported.contains("Lines 2-3: 2 statements, 2 rows affected\n"));
+        assertTrue(reported, reported.contains("Lines 5-7: 1 statements, 1 rows affected, 1 failed\n"));
+        assertTrue(reported, reported.contains("Line 5: Unique index or primary key violation"));
+        assertTrue(reported, reported.contains("Line 9: 1 statements, 2 rows affected\n"));
+        String actual = testOutput.toString(UTF8_ENCODING);
+        assertTrue(actual, actual.contains("V\r\nd\r\nb\r\n"));
+    }
+
+    /**
+     * Run a script and return what it reported on standard error.
+     */
+    private String readReporting(File script) throws Exception {
+        PrintStream err = System.err;
+        ByteArrayOutputStream reported = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(reported, true, UTF8_ENCODING));
+        try {
+            engine.readFromFile(script.getPath());
+        } finally {
+            System.setErr(err);
+        }
+        return reported.toString(UTF8_ENCODING);
+    }
+
+    /**
+     * With the echo off, as with -q, a script writes only the query results to the output file.
+     */
+    @Test
+    public void scriptToOutputFile() throws Exception {
+        File script = tempFolder.newFile("script.sql");
+        FileUtils.writeStringToFile(script, "CREATE TABLE SCRIPTED (ID INT PRIMARY KEY, V VARCHAR(10));\n"
+            + "INSERT INTO SCRIPTED VALUES (1, 'a');\n"
+            + "INSERT INTO SCRIPTED VALUES (2, 'b');\n"
+            + "SELECT * FROM SCRIPTED ORDER BY ID;\n"
+            + "DROP TABLE SCRIPTED;\n", UTF8_ENCODING);
+        File file = new File(tempFolder.getRoot(), "result.json");
+        engine.setOutputStream(CLI.openOutputFile(file.getPath()));
+        engine.setOutputFormat("json");
+        engine.setSetting("echo", "off");
+        engine.setSetting("scriptbatch", "10");
+        engine.setSetting("stmtcache", "5");
+        String reported = readReporting(script);
+        engine.closeOutputStream();
+        assertTrue(reported, reported.contains("Lines 2-3: 2 statements, 2 rows affected\n"));
+        assertTrue(reported, reported.contains("Statement cache: "));
+        assertEquals("[\n{\"ID\":1,\"V\":\"a\"},\n{\"ID\":2,\"V\":\"b\"}\n]\n",
+            FileUtils.readFileToString(file, UTF8_ENCODING));
+    }
+
+    /**
+     * Run a script with the literals parameterized. Statements of the same shape share a prepared statement.
+     */
+    @Test
+    public void parameterizedScript() throws Exception {
+        File script = tempFolder.newFile("script.sql");
+        FileUtils.writeStringToFile(script, "CREATE TABLE SHAPED (ID INT PRIMARY KEY, V VARCHAR(10));\n"
+            + "INSERT INTO SHAPED VALUES (1, 'a');\n"
+            + "INSERT INTO SHAPED VALUES (2, 'b');\n"
+            + "UPDATE SHAPED SET V = 'c' WHERE ID = 1;\n"
+            + "INSERT INTO SHAPED VALUES (3, 'it''s');\n"
+            + "SELECT V FROM SHAPED ORDER BY ID;\n"
+            + "DROP TABLE SHAPED;\n", UTF8_ENCODING);
+        engine.setSetting("echo", "off");
+        engine.setSetting("scriptbatch", "10");
+        engine.setSetting("stmtcache", "1");
+        String reported = readReporting(script);
+        assertTrue(reported, reported.startsWith("Lines 2-3: 2 statements, 2 rows affected\n"
+            + "Line 4: 1 statements, 1 rows affected\n"
+            + "Line 5: 1 statements, 1 rows affected\n"
+            + "Statement cache: 1 hits, 3 misses, 25.0% hit rate\n"));
+        assertEquals("V\r\nc\r\nb\r\nit's\r\n", testOutput.toString(UTF8_ENCODING));
+    }
+
+    /**
+     * A parameterized batch that fails when it runs, as with pgjdbc and a
+     * string bound to a number column, is run again as it is.
+     */
+    @Test
+    public void parameterizedBatchRetry() throws Exception {
+        dbConn.createStatement().executeUpdate("CREATE TABLE LAZY (ID INT PRIMARY KEY, V VARCHAR(10))");
+        Connection lazy = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {Connection.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    Object result = call(dbConn, method, args);
+                    if (!"prepareStatement".equals(method.getName())) {
+                        return result;
+                    }
+                    final PreparedStatement prepared = (PreparedStatement) result;
+                    return Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                if ("executeBatch".equals(method.getName())) {
+                                    throw new BatchUpdateException("V is of type integer", new int[0]);
+                                }
+                                return call(prepared, method, args);
+                            }
+                        });
+                }
+            });
+        ScriptBatch batch = new ScriptBatch(lazy, 10, 5);
+        batch.add("INSERT INTO LAZY VALUES (1, 'a')", 1);
+        batch.add("INSERT INTO LAZY VALUES (2, 'b')", 2);
+        assertEquals(Arrays.asList("Lines 1-2: 2 statements, 2 rows affected"), batch.flush());
+        // The shape now runs as it is.
+        batch.add("INSERT INTO LAZY VALUES (3, 'c')", 3);
+        assertEquals(Arrays.asList("Line 3: 1 statements, 1 rows affected"), batch.flush());
+        batch.close();
+        ResultSet rs = dbConn.createStatement().executeQuery("SELECT COUNT(*) FROM LAZY");
+        rs.next();
+        assertEquals(3, rs.getInt(1));
+        rs.close();
+        dbConn.createStatement().executeUpdate("DROP TABLE LAZY");
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Sessions stay open when switching, and connections go back to the pool.
+     */
+    @Test
+    public void switchSessions() throws Exception {
+        props.setProperty("other.db.driver", JDBC_DRIVER);
+        props.setProperty("other.db.database", JDBC_URL);
+        props.setProperty("other.db.user", USER);
+        props.setProperty("other.db.password", PASSWORD);
+        engine.executeMetaQuery("\\c other");
+        engine.executeMetaQuery("\\c");
+        engine.executeMetaQuery("\\c other second");
+        engine.executeMetaQuery("\\disconnect other");
+        engine.executeMetaQuery("\\sessions");
+        assertEquals("  default\tdefault\n* second\tother\n", testOutput.toString(UTF8_ENCODING));
+        testOutput.reset();
+        engine.executeSQLQuery("SELECT COUNT(*) AS N FROM PERSON");
+        assertEquals("N\r\n3\r\n", testOutput.toString(UTF8_ENCODING));
+
+        // Ending the active session goes back to the default one.
+        engine.executeMetaQuery("\\disconnect");
+        testOutput.reset();
+        engine.executeMetaQuery("\\sessions");
+        assertEquals("* default\tdefault\n", testOutput.toString(UTF8_ENCODING));
+        testOutput.reset();
+        engine.executeSQLQuery("SELECT COUNT(*) AS N FROM PERSON");
+        assertEquals("N\r\n3\r\n", testOutput.toString(UTF8_ENCODING));
+    }
+
+    @Test
+    public void connectionPool() throws Exception {
+        ConnectionPool pool = new ConnectionPool(new Callable<Connection>() {
+            public Connection call() throws Exception {
+                return DriverManager.getConnection(JDBC_URL, USER, PASSWORD);
+            }
+        }, 1);
+        Connection first = pool.borrow();
+        first.setAutoCommit(false);
+        pool.release(first);
+        assertTrue(first.getAutoCommit());
+        assertSame(first, pool.borrow());
+        first.close();
+        pool.release(first);
+        assertEquals(0, pool.getIdleCount());
+
+        Connection second = pool.borrow();
+        Connection third = pool.borrow();
+        pool.release(second);
+        pool.release(third);
+        assertTrue(third.isClosed());
+        pool.validateIdle();
+        assertEquals(1, pool.getIdleCount());
+        pool.close();
+        assertTrue(second.isClosed());
+    }
+
+    @Test
+    public void copyBetweenProfiles() throws Exception {
+        props.setProperty("other.db.driver", JDBC_DRIVER);
+        props.setProperty("other.db.database", JDBC_URL);
+        props.setProperty("other.db.user", USER);
+        props.setProperty("other.db.password", PASSWORD);
+        dbConn.createStatement().executeUpdate("CREATE TABLE PERSON_COPY (ID INT, NAME VARCHAR(100), BORN TIMESTAMP)");
+        engine.executeMetaQuery("\\copy default \"SELECT ID, NAME, BORN FROM PERSON\" other PERSON_COPY");
+        String actual = testOutput.toString(UTF8_ENCODING);
+        assertTrue(actual, actual.startsWith("Copied 3 rows into PERSON_COPY in "));
+        testOutput.reset();
+        engine.executeSQLQuery("SELECT ID, NAME, BORN FROM PERSON ORDER BY ID");
+        String expected = testOutput.toString(UTF8_ENCODING);
+        testOutput.reset();
+        engine.executeSQLQuery("SELECT * FROM PERSON_COPY ORDER BY ID");
+        assertEquals(expected, testOutput.toString(UTF8_ENCODING));
+        dbConn.createStatement().executeUpdate("DROP TABLE PERSON_COPY");
+    }
+
+    /**
+     * Old TSV writes binary values as the driver's text for them, unless hex
+     * or base64 is asked for. The pipeline does the same.
+     */
+    @Test
+    public void oldTsvBinary() throws Exception {
+        Statement st = dbConn.createStatement();
+        String query = "SELECT ID, X'48c3a9' DATA FROM PERSON WHERE ID = 182208";
+        OutputSettings base64 = OutputSettings.DEFAULT.withBinaryEncoding(OutputSettings.BinaryEncoding.BASE64);
+        PrintStream out = new PrintStream(testOutput, false, UTF8_ENCODING);
+        OutputForms.OLDTSV.output(st.executeQuery(query), out, true, true, OutputSettings.DEFAULT);
+        OutputForms.OLDTSV.output(st.executeQuery(query), out, true, true, base64);
+        PipelinedOutput pipeline = new PipelinedOutput(OutputForms.OLDTSV, 1, Charset.forName(UTF8_ENCODING));
+        pipeline.output(st.executeQuery(query), out, true, OutputSettings.DEFAULT);
+        out.flush();
+        String lineEnd = System.getProperty("line.separator");
+        assertEquals("182208\t48c3a9" + lineEnd + "182208\tSMOp" + lineEnd + "182208\t48c3a9" + lineEnd,
+            testOutput.toString(UTF8_ENCODING));
+        st.close();
+    }
+
+    /**
+     * The pipelined output is the same as the normal output, also when the rows
+     * are spread over more slots than there are.
+     */
+    @Test
+    public void pipelinedOutput() throws Exception {
+        // The formatter threads encode the text in the encoding of the output.
+        String greek = "ISO-8859-7";
+        for (OutputForms format : new OutputForms[] {OutputForms.CSV, OutputForms.TSV, OutputForms.OLDTSV}) {
+            Statement st = dbConn.createStatement();
+            format.output(st.executeQuery("SELECT * FROM PERSON ORDER BY ID"),
+                new PrintStream(testOutput, false, greek));
+            String expected = testOutput.toString(greek);
+            assertTrue(expected, expected.contains("Ηλέκτρα"));
+            testOutput.reset();
+
+            PipelinedOutput pipeline = new PipelinedOutput(format, 1, Charset.forName(greek));
+            pipeline.setSlotRows(1);
+            PrintStream out = new PrintStream(testOutput, false, greek);
+            pipeline.output(st.executeQuery("SELECT * FROM PERSON ORDER BY ID"), out, true, OutputSettings.DEFAULT);
+            out.flush();
+            assertEquals(expected, testOutput.toString(greek));
+            testOutput.reset();
+            st.close();
+        }
+
+        // The session's output settings apply to the pipeline too.
+        engine.setOutputFormat("csv");
+        engine.setSetting("binary", "base64");
+        engine.setSetting("pipeline", "2");
+        engine.executeSQLQuery("SELECT ID, X'48c3a9' DATA FROM PERSON ORDER BY ID");
+        assertEquals("ID,DATA\r\n182208,SMOp\r\n533922,SMOp\r\n882911,SMOp\r\n",
+            testOutput.toString(UTF8_ENCODING));
+    }
+
+    /**
+     * Output to a .gz file is compressed in blocks. The blocks read back as one stream.
+     */
+    @Test
+    public void gzipOutput() throws Exception {
+        engine.setOutputFormat("excel");
+        File excelFile = new File(tempFolder.getRoot(), "person.xlsx.gz");
+        engine.setOutputStream(CLI.openOutputFile(excelFile.getPath()));
+        engine.executeSQLQuery("SELECT * FROM PERSON ORDER BY ID");
+        engine.closeOutputStream();
+        XSSFWorkbook workbook = new XSSFWorkbook(new GZIPInputStream(new FileInputStream(excelFile)));
+        assertEquals(4, workbook.getSheetAt(0).getPhysicalNumberOfRows());
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new ParallelGzipOutputStream(compressed, 3, 1000);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("Row ").append(i).append("\n");
+        }
+        out.write(text.toString().getBytes(UTF8_ENCODING));
+        out.close();
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        assertEquals(text.toString(), IOUtils.toString(in, UTF8_ENCODING));
+    }
+
+    /**
+     * Export to the binary format and load the file back with the types kept.
+     */
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        Statement statement = dbConn.createStatement();
+        statement.executeUpdate("CREATE TABLE TYPED (ID INT, BIG BIGINT, AMOUNT DECIMAL(12,3), RATIO DOUBLE,"
+            + " FLAG BOOLEAN, DAY DATE, STAMP TIMESTAMP, NAME VARCHAR(100), DATA VARBINARY(10))");
+        statement.executeUpdate("INSERT INTO TYPED VALUES (1, 9000000000, 12345.678, 0.5, TRUE, '2016-02-29',"
+            + " '2016-02-29 13:14:15.123456', 'Ηλέκτρα', X'00ff')");
+        statement.executeUpdate("INSERT INTO TYPED VALUES (2, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL)");
+        statement.executeUpdate("INSERT INTO TYPED SELECT ID + 2, BIG, AMOUNT, RATIO, FLAG, DAY, STAMP, NAME, DATA"
+            + " FROM TYPED");
+        engine.setOutputFormat("tsv");
+        engine.executeSQLQuery("SELECT * FROM TYPED ORDER BY ID");
+        String expected = testOutput.toString(UTF8_ENCODING);
+
+        File binFile = new File(tempFolder.getRoot(), "typed.bin");
+        engine.setOutputFormat("binary");
+        engine.setOutputStream(CLI.openOutputFile(binFile.getPath()));
+        engine.executeSQLQuery("SELECT * FROM TYPED");
+        engine.closeOutputStream();
+
+        statement.executeUpdate("DELETE FROM TYPED");
+        engine.setOutputStream(new PrintStream(testOutput, false, UTF8_ENCODING), Charset.forName(UTF8_ENCODING));
+        engine.importFile(binFile.getPath(), null);
+        assertTrue(testOutput.toString(UTF8_ENCODING).contains("Imported 4 rows into TYPED"));
+
+        // A window smaller than a row makes each row be mapped on its own.
+        statement.executeUpdate("DELETE FROM TYPED");
+        BinaryImport binaryImport = new BinaryImport(3, 0);
+        binaryImport.setWindowSize(40);
+        assertEquals(Long.valueOf(4), binaryImport.load(binFile, "typed", dbConn).get("typed"));
+
+        testOutput.reset();
+        engine.setOutputFormat("tsv");
+        engine.executeSQLQuery("SELECT * FROM TYPED ORDER BY ID");
+        assertEquals(expected, testOutput.toString(UTF8_ENCODING));
+    }
+
+    /**
+     * Arrow output is a schema message, a record batch per batch of rows and
+     * the end-of-stream marker.
+     */
+    @Test
+    public void arrowOutput() throws Exception {
+        engine.setOutputFormat("arrow");
+        engine.setSetting("arrowbatch", "2");
+        engine.executeSQLQuery("SELECT ID, NAME, BORN FROM PERSON ORDER BY ID");
+        byte[] stream = testOutput.toByteArray();
+        assertEquals("schema;batch 2;batch 1;", arrowMessages(stream));
+        assertTrue(new String(stream, UTF8_ENCODING).contains("Ηλέκτρα"));
+
+        // The table exports use the batch size too.
+        File file = new File(tempFolder.getRoot(), "person.arrow");
+        engine.executeMetaQuery("\\dumppart PERSON 1 " + file.getPath());
+        assertEquals("schema;batch 2;batch 1;", arrowMessages(FileUtils.readFileToByteArray(file)));
+    }
+
+    /**
+     * List the messages of an Arrow stream, with the rows of each record batch.
+     */
+    private static String arrowMessages(byte[] stream) {
+        ByteBuffer buffer = ByteBuffer.wrap(stream).order(ByteOrder.LITTLE_ENDIAN);
+        StringBuilder messages = new StringBuilder();
+        while (true) {
+            assertEquals(-1, buffer.getInt());
+            int length = buffer.getInt();
+            if (length == 0) {
+                break;
+            }
+            assertEquals(0, buffer.position() % 8);
+            int message = buffer.position() + buffer.getInt(buffer.position());
+            int headerType = buffer.get(message + tableField(buffer, message, 1));
+            long bodyLength = buffer.getLong(message + tableField(buffer, message, 3));
+            messages.append(headerType == 1 ? "schema" : "batch");
+            if (headerType == 3) {
+                int header = message + tableField(buffer, message, 2);
+                header += buffer.getInt(header);
+                messages.append(" ").append(buffer.getLong(header + tableField(buffer, header, 0)));
+            }
+            messages.append(";");
+            buffer.position(buffer.position() + length + (int) bodyLength);
+        }
+        assertEquals(stream.length, buffer.position());
+        return messages.toString();
+    }
+
+    /**
+     * The position of a field in a flatbuffer table relative to the table.
+     */
+    private static int tableField(ByteBuffer buffer, int table, int field) {
+        int vtable = table - buffer.getInt(table);
+        return buffer.getShort(vtable + 4 + field * 2);
+    }
+
+    /**
+     * Each column is read with the getter of its type.
+     */
+    @Test
+    public void columnPlan() throws Exception {
+        Statement statement = dbConn.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT ID, NAME, BORN, CAST(NULL AS BIGINT), X'48c3a9'"
+            + " FROM PERSON WHERE ID = 182208");
+        ColumnPlan plan = new ColumnPlan(rs.getMetaData());
+        assertSame(ColumnPlan.Kind.INTEGER, plan.getKind(1));
+        assertSame(ColumnPlan.Kind.TEXT, plan.getKind(2));
+        assertSame(ColumnPlan.Kind.TIMESTAMP, plan.getKind(3));
+        assertSame(ColumnPlan.Kind.LONG, plan.getKind(4));
+        assertSame(ColumnPlan.Kind.BYTES, plan.getKind(5));
+        assertTrue(rs.next());
+        StringBuilder buffer = new StringBuilder();
+        assertTrue(plan.append(rs, 1, buffer));
+        assertEquals(false, plan.append(rs, 4, buffer));
+        assertEquals("182208", buffer.toString());
+        assertEquals("Ηλέκτρα", plan.getString(rs, 2));
+        assertNull(plan.getString(rs, 4));
+        assertEquals("Hé", plan.getString(rs, 5));
+        rs.close();
+        statement.close();
+    }
+
+    /**
+     * LOBs longer than a chunk are streamed into the text and XML output.
+     */
+    @Test
+    public void lobOutput() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 2 * OutputSettings.CHUNK_SIZE + 100) {
+            body.append("He said \"a, b\" <and>\n");
+        }
+        Statement statement = dbConn.createStatement();
+        statement.execute("CREATE TABLE DOCS (ID INT, BODY CLOB, DATA BLOB)");
+        PreparedStatement insert = dbConn.prepareStatement("INSERT INTO DOCS VALUES (?, ?, ?)");
+        insert.setInt(1, 1);
+        insert.setString(2, body.toString());
+        insert.setBytes(3, new byte[] {0, (byte) 0xfb, 'a'});
+        insert.executeUpdate();
+        insert.close();
+
+        for (String query : new String[] {"SELECT ID, BODY FROM DOCS", "SELECT BODY, ID FROM DOCS"}) {
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            ResultSet rs = statement.executeQuery(query);
+            OutputForms.CSV.output(rs, new PrintStream(csv, false, UTF8_ENCODING));
+            CSVRecord record = CSVParser.parse(csv.toString(UTF8_ENCODING), CSVFormat.DEFAULT).getRecords().get(1);
+            assertEquals(2, record.size());
+            assertTrue(record.get(0).equals(body.toString()) || record.get(1).equals(body.toString()));
+        }
+
+        OutputSettings hex = OutputSettings.DEFAULT.withBinaryEncoding(OutputSettings.BinaryEncoding.HEX);
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        OutputForms.FLATXML.output(statement.executeQuery("SELECT * FROM DOCS"),
+            new PrintStream(xml, false, UTF8_ENCODING), true, true, hex);
+        String text = xml.toString(UTF8_ENCODING);
+        assertTrue(text.contains(" BODY=\"He said &quot;a, b&quot; &lt;and&gt;&#xA;He said"));
+        assertTrue(text.contains(" DATA=\"00fb61\""));
+
+        ResultSet rs = statement.executeQuery("SELECT DATA FROM DOCS");
+        assertTrue(rs.next());
+        assertEquals("00fb61", new ColumnPlan(rs.getMetaData(), hex).getString(rs, 1));
+        assertEquals("APth", new ColumnPlan(rs.getMetaData(),
+            OutputSettings.DEFAULT.withBinaryEncoding(OutputSettings.BinaryEncoding.BASE64)).getString(rs, 1));
+        rs.close();
+
+        ExcelOutput eo = new ExcelOutput();
+        try {
+            eo.output(statement.executeQuery("SELECT BODY FROM DOCS"), new PrintStream(new ByteArrayOutputStream()));
+            fail("Text longer than a cell should fail");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("BODY in row 1"));
+        }
+        eo.setOutputSettings(OutputSettings.DEFAULT.withExcelPolicy(OutputSettings.ExcelPolicy.TRUNCATE));
+        ByteArrayOutputStream excelOutput = new ByteArrayOutputStream();
+        eo.output(statement.executeQuery("SELECT BODY FROM DOCS"), new PrintStream(excelOutput));
+        Sheet sheet = new XSSFWorkbook(new ByteArrayInputStream(excelOutput.toByteArray())).getSheetAt(0);
+        assertEquals(body.substring(0, OutputSettings.EXCEL_MAX_TEXT), sheet.getRow(1).getCell(0).getStringCellValue());
+        statement.close();
+    }
+
+    /**
+     * JSON values are typed and the strings escaped.
+     */
+    @Test
+    public void jsonOutput() throws Exception {
+        Statement statement = dbConn.createStatement();
+        ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+        OutputForms.NDJSON.output(statement.executeQuery("SELECT ID, NAME, CAST(1.5 AS DOUBLE) D, CAST(2.5 AS REAL) R, TRUE B,"
+            + " CAST(NULL AS INT) N, 'a\"b\\' || CHAR(10) || CHAR(1) S FROM PERSON WHERE ID = 182208"),
+            new PrintStream(ndjson, false, UTF8_ENCODING));
+        assertEquals("{\"ID\":182208,\"NAME\":\"Ηλέκτρα\",\"D\":1.5,\"R\":2.5,\"B\":true,\"N\":null,"
+            + "\"S\":\"a\\\"b\\\\\\n\\u0001\"}\n", ndjson.toString(UTF8_ENCODING));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        OutputForms.JSON.output(statement.executeQuery("SELECT ID FROM PERSON ORDER BY ID"),
+            new PrintStream(json, false, UTF8_ENCODING));
+        assertEquals("[\n{\"ID\":182208},\n{\"ID\":533922},\n{\"ID\":882911}\n]\n", json.toString(UTF8_ENCODING));
+        statement.close();
+    }
+
+    /**
+     * INSERT statements with several rows each load back with the script reader.
+     */
+    @Test
+    public void sqlRoundTrip() throws Exception {
+        Statement statement = dbConn.createStatement();
+        statement.executeUpdate("CREATE TABLE TYPED (ID INT, AMOUNT DECIMAL(12,3), FLAG BOOLEAN, DAY DATE,"
+            + " STAMP TIMESTAMP, NAME VARCHAR(100), DATA VARBINARY(10), NOTE CLOB)");
+        statement.executeUpdate("INSERT INTO TYPED VALUES (1, 12345.678, TRUE, '2016-02-29',"
+            + " '2016-02-29 13:14:15.123456', 'It''s; Elektra', X'00ff', 'a\\b')");
+        statement.executeUpdate("INSERT INTO TYPED VALUES (2, NULL, NULL, NULL, NULL, NULL, NULL, NULL)");
+        statement.executeUpdate("INSERT INTO TYPED SELECT ID + 2, AMOUNT, FLAG, DAY, STAMP, NAME, DATA, NOTE"
+            + " FROM TYPED");
+        engine.setOutputFormat("tsv");
+        engine.executeSQLQuery("SELECT * FROM TYPED ORDER BY ID");
+        String expected = testOutput.toString(UTF8_ENCODING);
+
+        File script = new File(tempFolder.getRoot(), "typed.sql");
+        engine.setOutputFormat("sql");
+        engine.setSetting("sqlrows", "3");
+        engine.setOutputStream(CLI.openOutputFile(script.getPath()));
+        engine.executeSQLQuery("SELECT * FROM TYPED ORDER BY ID");
+        engine.closeOutputStream();
+        String dump = FileUtils.readFileToString(script);
+        assertTrue(dump.startsWith("INSERT INTO TYPED (ID, AMOUNT, FLAG, DAY, STAMP, NAME, DATA, NOTE) VALUES\n"
+            + "(1, 12345.678, TRUE, DATE '2016-02-29', TIMESTAMP '2016-02-29 13:14:15.123456',"
+            + " 'It''s; Elektra', X'00ff', 'a\\b'),\n(2, NULL, NULL, NULL, NULL, NULL, NULL, NULL),\n"));
+        assertEquals(2, dump.split("INSERT INTO").length - 1);
+
+        // The table exports use the settings too.
+        File directory = tempFolder.newFolder("dump");
+        engine.setSetting("sqldialect", "mysql");
+        engine.executeMetaQuery("\\dump " + directory.getPath() + " TYPED");
+        engine.setSetting("sqldialect", "auto");
+        String tableDump = FileUtils.readFileToString(new File(directory, "TYPED.sql"), UTF8_ENCODING);
+        assertEquals(2, tableDump.split("INSERT INTO").length - 1);
+        assertTrue(tableDump, tableDump.contains("'a\\\\b'"));
+
+        statement.executeUpdate("DELETE FROM TYPED");
+        engine.setOutputStream(new PrintStream(testOutput, false, UTF8_ENCODING), Charset.forName(UTF8_ENCODING));
+        engine.readFromFile(script.getPath());
+        testOutput.reset();
+        engine.setOutputFormat("tsv");
+        engine.executeSQLQuery("SELECT * FROM TYPED ORDER BY ID");
+        assertEquals(expected, testOutput.toString(UTF8_ENCODING));
+    }
+
+    /**
+     * Sql output of a result without a table inserts into the table \set sqltable names,
+     * and SQL Server gets its text as Unicode literals.
+     */
+    @Test
+    public void sqlTable() throws Exception {
+        Statement statement = dbConn.createStatement();
+        statement.executeUpdate("CREATE TABLE COPIED (ID INT, NAME VARCHAR(100))");
+        engine.setOutputFormat("sql");
+        try {
+            engine.executeSQLQuery("SELECT 1 + 1 AS ID, 'Two' AS NAME");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("sqltable"));
+        }
+        testOutput.reset();
+        engine.setSetting("sqltable", "COPIED");
+        assertEquals("COPIED", engine.getSetting("sqltable"));
+        engine.executeSQLQuery("SELECT 1 + 1 AS ID, 'Two' AS NAME");
+        assertEquals("INSERT INTO COPIED (ID, NAME) VALUES\n(2, 'Two');\n", testOutput.toString(UTF8_ENCODING));
+        testOutput.reset();
+        engine.setSetting("sqldialect", "sqlserver");
+        engine.executeSQLQuery("SELECT 1 + 1 AS ID, 'Two''s' AS NAME");
+        assertEquals("INSERT INTO COPIED (ID, NAME) VALUES\n(2, N'Two''s');\n", testOutput.toString(UTF8_ENCODING));
+        engine.setSetting("sqldialect", "auto");
+        engine.setSetting("sqltable", "auto");
+        assertEquals("auto", engine.getSetting("sqltable"));
+    }
+
+    /**
+     * The row limit is applied to the statement and Ctrl-C cancels the running statement.
+     */
+    @Test
+    public void limitAndCancel() throws Exception {
+        engine.executeMetaQuery("\\limit 2");
+        engine.executeMetaQuery("\\timeout 30");
+        testOutput.reset();
+        engine.setOutputFormat("tsv");
+        engine.executeSQLQuery("SELECT ID FROM PERSON ORDER BY ID");
+        assertEquals("ID\n182208\n533922\n", testOutput.toString(UTF8_ENCODING).replace("\r\n", "\n"));
+        assertEquals("30", engine.getSetting("timeout"));
+
+        CancelHandler handler = new CancelHandler();
+        Statement statement = dbConn.createStatement();
+        handler.start(statement);
+        handler.handle(null);
+        assertTrue(handler.finish());
+        handler.start(statement);
+        assertEquals(false, handler.finish());
+
+        // The output stops at the next row even when the driver has already returned the rows.
+        handler.start(statement);
+        ResultSet rows = handler.watch(statement.executeQuery("SELECT ID FROM PERSON"));
+        assertTrue(rows.next());
+        handler.handle(null);
+        try {
+            rows.next();
+            fail("Rows should stop after Ctrl-C");
+        } catch (SQLException e) {
+            assertEquals("Query cancelled", e.getMessage());
+        }
+        assertTrue(handler.finish());
+        rows.close();
+        statement.close();
+    }
+
+    /**
+     * Timing counts the rows and the bytes written, and leaves the output as it is.
+     */
+    @Test
+    public void queryStats() throws Exception {
+        // Timed output keeps the encoding of the output, also when it isn't the platform's.
+        String greek = "ISO-8859-7";
+        engine.setOutputStream(new PrintStream(testOutput, false, greek), Charset.forName(greek));
+        engine.setOutputFormat("csv");
+        engine.executeSQLQuery("SELECT ID, NAME, LAST_NAME FROM PERSON ORDER BY ID");
+        String expected = testOutput.toString(greek);
+        assertTrue(expected, expected.contains("Ηλέκτρα"));
+        testOutput.reset();
+        engine.setSetting("timing", "on");
+        engine.executeSQLQuery("SELECT ID, NAME, LAST_NAME FROM PERSON ORDER BY ID");
+        assertEquals(expected, testOutput.toString(greek));
+
+        Statement statement = dbConn.createStatement();
+        QueryStats stats = new QueryStats();
+        ResultSet rs = statement.executeQuery("SELECT ID, NAME FROM PERSON");
+        stats.executed();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputForms.CSV.output(stats.wrap(rs), stats.wrap(new PrintStream(bytes), Charset.forName("UTF-8")));
+        stats.finish();
+        String report = stats.report();
+        assertTrue(report, report.startsWith("Execute "));
+        assertTrue(report, report.contains(" ms, 3 rows, " + bytes.size() + " bytes in "));
+        assertTrue(new String(bytes.toByteArray(), UTF8_ENCODING).contains("Ηλέκτρα"));
+        statement.close();
+    }
+
+    @Test
+    public void flightEvents() throws Exception {
+        Statement statement = dbConn.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT ID, LAST_NAME FROM PERSON ORDER BY ID");
+        // Nothing is recording, so the result set is used as it is.
+        assertSame(rs, FlightEvents.rowBatches(rs, "csv"));
+        assertTrue(!FlightEvents.STATEMENT.begin().isRecording());
+        Class<?> recordingClass;
+        try {
+            Class.forName("jdk.jfr.EventFactory");
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            statement.close();
+            return;
+        }
+        Object recording = recordingClass.getConstructor().newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, "dbtools.RowBatch");
+        recordingClass.getMethod("start").invoke(recording);
+        try {
+            ResultSet rows = FlightEvents.rowBatches(rs, "csv");
+            assertTrue(rows != rs);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputForms.CSV.output(rows, new PrintStream(bytes, false, UTF8_ENCODING));
+            assertEquals(4, bytes.toString(UTF8_ENCODING).split("\n").length);
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+        }
+        // The event is off again once the recording is closed.
+        assertSame(rs, FlightEvents.rowBatches(rs, "csv"));
+        statement.close();
+    }
+
 }
@@ -0,0 +1,297 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * End-to-end throughput of exports and reloads on a file based H2 database,
+ * as the nightly jobs run them. Only run in the perf profile:
+ *
+ * <pre>
+ * mvn -Pperf test -Dperf.rows=10000000
+ * </pre>
+ *
+ * Each phase records rows per second, peak heap and output size in
+ * target/perf/perf-report.properties. If the baseline file exists, the test
+ * fails when a phase is slower or uses more heap than the baseline allows.
+ * Run with -Dperf.save=true to make the report the new baseline.
+ */
+public class PerformanceTest {
+
+    private static final String JDBC_DRIVER = org.h2.Driver.class.getName();
+    private static final String USER = "sa";
+    private static final String PASSWORD = "";
+
+    /** Rows inserted per statement while filling the table. */
+    private static final int FILL_CHUNK = 100000;
+
+    private static final String CREATE_TABLE = "CREATE TABLE PERF ("
+        + "ID BIGINT PRIMARY KEY,"
+        + "NAME VARCHAR(100),"
+        + "CITY VARCHAR(50),"
+        + "AMOUNT DECIMAL(12,2),"
+        + "RATIO DOUBLE,"
+        + "BORN DATE,"
+        + "UPDATED TIMESTAMP,"
+        + "ACTIVE BOOLEAN,"
+        + "NOTE CLOB)";
+
+    /** Mostly short values, with Greek and quotes, and now and then a long CLOB or a NULL. */
+    private static final String FILL = "INSERT INTO PERF SELECT X,"
+        + " CASE MOD(X, 3) WHEN 0 THEN 'Ηλέκτρα ' || X WHEN 1 THEN 'Charlie ' || X"
+        + " ELSE 'O''Brien, \"Jr.\" ' || X END,"
+        + " CASE MOD(X, 4) WHEN 0 THEN 'Θεσσαλονίκη' WHEN 1 THEN 'København' WHEN 2 THEN NULL ELSE 'Paris' END,"
+        + " MOD(X * 7919, 10000000) / 100.0,"
+        + " CAST(X AS DOUBLE) / 7,"
+        + " DATEADD('DAY', MOD(X, 20000), DATE '1950-01-01'),"
+        + " DATEADD('SECOND', X, TIMESTAMP '2015-01-01 00:00:00'),"
+        + " MOD(X, 2) = 0,"
+        + " CASE WHEN MOD(X, 1000) = 0 THEN REPEAT('Ηλέκτρα λέει; γεια σου.' || CHAR(10), 400)"
+        + " WHEN MOD(X, 10) = 0 THEN NULL ELSE 'Σημείωση ' || X END"
+        + " FROM SYSTEM_RANGE(?, ?)";
+
+    /** The forms -F takes. */
+    private static final String[] FORMS = {
+        "csv", "tsv", "excel", "binary", "arrow", "json", "ndjson", "sql", "accessxml", "flatxml"
+    };
+
+    /** Forms that can be loaded back, with the file name extension importFile() knows them by. */
+    private static final String[][] RELOADS = {
+        {"csv", "csv"}, {"tsv", "tsv"}, {"binary", "bin"}, {"flatxml", "xml"}, {"accessxml", "xml"}, {"sql", "sql"}
+    };
+
+    private final long rows = Long.getLong("perf.rows", 1000000L);
+
+    private final File directory = new File(System.getProperty("perf.directory", "target/perf"));
+
+    private final File baselineFile = new File(System.getProperty("perf.baseline", "perf-baseline.properties"));
+
+    /** Allowed fraction of slowdown or heap growth before a phase counts as a regression. */
+    private final double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.25"));
+
+    private final Map<String, String> report = new TreeMap<String, String>();
+
+    private CLI source;
+
+    private CLI target;
+
+    private static Properties profile(String url) {
+        Properties props = new Properties();
+        props.setProperty("db.driver", JDBC_DRIVER);
+        props.setProperty("db.database", url);
+        props.setProperty("db.user", USER);
+        props.setProperty("db.password", PASSWORD);
+        return props;
+    }
+
+    private String url(String name) {
+        return "jdbc:h2:file:" + new File(directory, name).getAbsolutePath();
+    }
+
+    @Before
+    public void createDatabases() throws Exception {
+        FileUtils.deleteDirectory(directory);
+        assertTrue(directory.mkdirs());
+        source = new CLI(profile(url("source")));
+        source.openConnection();
+        target = new CLI(profile(url("target")));
+        target.setOutputStream(new PrintStream(new File(directory, "reload.log"), "UTF-8"));
+        target.setSetting("echo", "off");
+        target.openConnection();
+    }
+
+    @After
+    public void closeAll() throws Exception {
+        source.closeConnection();
+        target.closeConnection();
+        target.closeOutputStream();
+    }
+
+    @Test
+    public void exportAndReload() throws Exception {
+        report.put("rows", Long.toString(rows));
+        report.put("java.version", System.getProperty("java.version"));
+        fill();
+        for (String form : FORMS) {
+            export(form);
+        }
+        for (String[] reload : RELOADS) {
+            reload(reload[0], reload[1]);
+        }
+        writeReport(new File(directory, "perf-report.properties"));
+        if (Boolean.getBoolean("perf.save")) {
+            writeReport(baselineFile);
+        } else if (baselineFile.isFile()) {
+            compareWithBaseline();
+        }
+    }
+
+    private void fill() throws Exception {
+        Connection connection = DriverManager.getConnection(url("source"), USER, PASSWORD);
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute(CREATE_TABLE);
+            statement.close();
+            Phase phase = new Phase("fill");
+            PreparedStatement insert = connection.prepareStatement(FILL);
+            for (long from = 1; from <= rows; from += FILL_CHUNK) {
+                insert.setLong(1, from);
+                insert.setLong(2, Math.min(from + FILL_CHUNK - 1, rows));
+                insert.executeUpdate();
+            }
+            insert.close();
+            phase.end(rows, 0);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Export the table with the -e path in a form.
+     */
+    private void export(String form) throws Exception {
+        File file = exportFile(form);
+        source.setOutputFormat(form);
+        source.setOutputStream(CLI.openOutputFile(file.getPath()));
+        Phase phase = new Phase("export." + form);
+        source.executeSQLQuery("SELECT * FROM PERF ORDER BY ID");
+        source.closeOutputStream();
+        phase.end(rows, file.length());
+    }
+
+    /**
+     * Load an export into an empty table of the target database. The sql
+     * form is run as a script with the -f path.
+     */
+    private void reload(String form, String extension) throws Exception {
+        File file = new File(directory, form + "." + extension);
+        assertTrue(exportFile(form).renameTo(file));
+        Connection connection = DriverManager.getConnection(url("target"), USER, PASSWORD);
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute("DROP TABLE IF EXISTS PERF");
+            statement.execute(CREATE_TABLE);
+            Phase phase = new Phase("reload." + form);
+            if ("sql".equals(form)) {
+                target.readFromFile(file.getPath());
+            } else {
+                target.setOutputFormat(form);
+                target.importFile(file.getPath(), "PERF");
+            }
+            phase.end(rows, file.length());
+            ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM PERF");
+            rs.next();
+            assertEquals("Rows reloaded from " + form, rows, rs.getLong(1));
+            statement.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private File exportFile(String form) {
+        return new File(directory, "export." + form);
+    }
+
+    private void writeReport(File file) throws Exception {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("# dbtools end-to-end performance, written by PerformanceTest\n");
+            for (Map.Entry<String, String> entry : report.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Fail if a phase has become slower or needs more heap than the baseline,
+     * beyond the tolerance. Output sizes are only reported.
+     */
+    private void compareWithBaseline() throws Exception {
+        Properties baseline = new Properties();
+        InputStream in = new FileInputStream(baselineFile);
+        try {
+            baseline.load(in);
+        } finally {
+            in.close();
+        }
+        assertEquals("Rows in the baseline " + baselineFile, baseline.getProperty("rows"), report.get("rows"));
+        List<String> regressions = new ArrayList<String>();
+        for (String key : baseline.stringPropertyNames()) {
+            String current = report.get(key);
+            boolean speed = key.endsWith(".rowsPerSecond");
+            if (current == null || !speed && !key.endsWith(".peakHeapBytes")) {
+                continue;
+            }
+            double before = Double.parseDouble(baseline.getProperty(key));
+            double now = Double.parseDouble(current);
+            if (speed ? now < before * (1 - tolerance) : now > before * (1 + tolerance)) {
+                regressions.add(key + " " + baseline.getProperty(key) + " -> " + current);
+            }
+        }
+        assertTrue("Slower than " + baselineFile + ": " + regressions, regressions.isEmpty());
+    }
+
+    /**
+     * Times a phase and measures the most heap used during it.
+     */
+    private final class Phase {
+
+        private final String name;
+
+        private final long start;
+
+        Phase(String name) {
+            this.name = name;
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            start = System.nanoTime();
+        }
+
+        void end(long rowCount, long bytes) {
+            long nanos = Math.max(System.nanoTime() - start, 1);
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            report.put(name + ".millis", Long.toString(nanos / 1000000));
+            report.put(name + ".rowsPerSecond", Long.toString(Math.round(rowCount * 1e9 / nanos)));
+            report.put(name + ".peakHeapBytes", Long.toString(peakHeap));
+            if (bytes > 0) {
+                report.put(name + ".bytes", Long.toString(bytes));
+            }
+            System.out.println(String.format(Locale.ROOT, "%-18s %8d ms %10.0f rows/s %6d MB heap %8d KB",
+                name, nanos / 1000000, rowCount * 1e9 / nanos, peakHeap >> 20, bytes >> 10));
+        }
+    }
+}
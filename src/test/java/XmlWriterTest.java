@@ -1,5 +1,7 @@
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import static org.junit.Assert.assertEquals;
@@ -60,4 +62,49 @@ public class XmlWriterTest {
         assertEquals(expected, writer.toString());
     }
 
+    /**
+     * Characters the encoding can hold are written as they are, others as
+     * character references, unless the legacy escaping is on.
+     */
+    @Test
+    public void escaping() throws IOException {
+        String text = "Ηλέκτρα & Zoë <\"\t\u0001\ud83d\ude00";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        XmlWriter xmlwriter = new XmlWriter(bytes, "UTF-8");
+        xmlwriter.writeElementWithText("a", text);
+        xmlwriter.close();
+        assertEquals("<a>Ηλέκτρα &amp; Zoë &lt;&quot;&#09;&#1;\ud83d\ude00</a>\n", bytes.toString("UTF-8"));
+
+        bytes.reset();
+        xmlwriter = new XmlWriter(bytes, "ISO-8859-1");
+        xmlwriter.writeElementWithText("a", text);
+        xmlwriter.close();
+        assertEquals("<a>&#919;&#955;&#941;&#954;&#964;&#961;&#945; &amp; Zoë &lt;&quot;&#09;&#1;&#128512;</a>\n",
+            bytes.toString("ISO-8859-1"));
+
+        bytes.reset();
+        xmlwriter = new XmlWriter(bytes, "UTF-8");
+        xmlwriter.setLegacyEscaping(true);
+        xmlwriter.writeElement("a").writeAttribute("b", text, true).endElement();
+        xmlwriter.close();
+        assertEquals("<a b=\"&#919;&#955;&#941;&#954;&#964;&#961;&#945; &amp; Zo&#235; &lt;&quot;&#09;&#1;&#55357;&#56832;\"/>\n",
+            bytes.toString("UTF-8"));
+    }
+
+    /**
+     * Text longer than the buffer, read in chunks that split a surrogate pair.
+     */
+    @Test
+    public void longText() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 20000) {
+            text.append("Ηλέκτρα \ud83d\ude00 ");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        XmlWriter xmlwriter = new XmlWriter(bytes, "UTF-8");
+        xmlwriter.writeElement("a").writeText(new StringReader(text.toString()), new char[9]).endElement();
+        xmlwriter.close();
+        assertEquals("<a>" + text + "</a>\n", bytes.toString("UTF-8"));
+    }
+
 }
@@ -0,0 +1,54 @@
+package bench;
+
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Excel cells written per workbook, by column type and with the row window
+ * that decides how often rows are flushed to the temporary file. A workbook
+ * has fixed costs, so the result sets are larger than for the other forms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExcelOutputBenchmark {
+
+    /** Rows in a result set. */
+    static final int ROWS = 10000;
+
+    @Param({"mixed", "text", "numeric"})
+    private String types;
+
+    @Param({"100", "1000"})
+    private int rowWindow;
+
+    private ResultSet rs;
+
+    @Setup
+    public void setUp() throws Exception {
+        rs = SyntheticData.resultSet(16, ROWS, types);
+    }
+
+    @Benchmark
+    public long workbook() throws Exception {
+        rs.beforeFirst();
+        SyntheticData.NullOutputStream out = new SyntheticData.NullOutputStream();
+        Targets.INSTANCE.excel(rs, out, rowWindow);
+        return out.getCount();
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Every output form over in-memory result sets of a few widths and column
+ * types. The score is result sets written per second; multiply by ROWS for
+ * rows per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputFormsBenchmark {
+
+    /** Rows in a result set. */
+    static final int ROWS = 1000;
+
+    @Param({"csv", "tsv", "oldtsv", "excel", "binary", "arrow", "json", "ndjson", "sql", "accessxml", "flatxml"})
+    private String form;
+
+    @Param({"4", "16", "64"})
+    private int columns;
+
+    @Param({"mixed", "text", "numeric"})
+    private String types;
+
+    private ResultSet rs;
+
+    @Setup
+    public void setUp() throws Exception {
+        rs = SyntheticData.resultSet(columns, ROWS, types);
+    }
+
+    @Benchmark
+    public long output() throws Exception {
+        rs.beforeFirst();
+        SyntheticData.NullOutputStream out = new SyntheticData.NullOutputStream();
+        Targets.INSTANCE.output(form, rs, out);
+        return out.getCount();
+    }
+}
@@ -0,0 +1,44 @@
+package bench;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting a large script into statements with the StmtState scanner, as
+ * -f does. The score is scripts per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptScanBenchmark {
+
+    @Param({"1000", "100000"})
+    private int statements;
+
+    private String script;
+
+    @Setup
+    public void setUp() {
+        script = SyntheticData.script(statements);
+    }
+
+    @Benchmark
+    public long scan() throws Exception {
+        return Targets.INSTANCE.scanScript(new StringReader(script));
+    }
+}
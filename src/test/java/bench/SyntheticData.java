@@ -0,0 +1,189 @@
+package bench;
+
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Random;
+
+import org.h2.tools.SimpleResultSet;
+
+/**
+ * Inputs for the benchmarks, made in memory from a fixed seed so every run
+ * measures the same data.
+ */
+public final class SyntheticData {
+
+    /** Every this many values is NULL. */
+    private static final int NULL_EVERY = 10;
+
+    private static final String GREEK = "Ηλέκτρα Παπαδοπούλου, Θεσσαλονίκη ";
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** 2015-01-01 in UTC. */
+    private static final long EPOCH_2015 = 1420070400000L;
+
+    private SyntheticData() {
+    }
+
+    /**
+     * The column types of a kind of table.
+     *
+     * @param types - "mixed", "text" or "numeric".
+     */
+    private static int[] columnTypes(String types) {
+        if ("text".equals(types)) {
+            return new int[] {Types.VARCHAR};
+        } else if ("numeric".equals(types)) {
+            return new int[] {Types.INTEGER, Types.BIGINT, Types.DOUBLE, Types.DECIMAL};
+        } else if ("mixed".equals(types)) {
+            return new int[] {Types.INTEGER, Types.VARCHAR, Types.DECIMAL, Types.TIMESTAMP,
+                Types.DOUBLE, Types.DATE, Types.BOOLEAN, Types.BIGINT};
+        }
+        throw new IllegalArgumentException("Unknown column types: " + types);
+    }
+
+    /**
+     * Make a result set. It can be read again after beforeFirst().
+     *
+     * @param columns - number of columns.
+     * @param rows - number of rows.
+     * @param types - "mixed", "text" or "numeric". The types repeat across the columns.
+     * @return the result set, named as a table so the sql form can write it.
+     */
+    public static ResultSet resultSet(int columns, int rows, String types) throws SQLException {
+        int[] cycle = columnTypes(types);
+        SimpleResultSet rs = new SimpleResultSet() {
+            @Override
+            public String getTableName(int column) {
+                return "BENCH";
+            }
+        };
+        rs.setAutoClose(false);
+        for (int i = 0; i < columns; i++) {
+            int type = cycle[i % cycle.length];
+            rs.addColumn("C" + i, type, type == Types.DECIMAL ? 12 : 255, type == Types.DECIMAL ? 2 : 0);
+        }
+        Random random = new Random(rows * 31L + columns);
+        for (int r = 0; r < rows; r++) {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                if ((r + i) % NULL_EVERY != 0) {
+                    row[i] = value(cycle[i % cycle.length], r, random);
+                }
+            }
+            rs.addRow(row);
+        }
+        return rs;
+    }
+
+    private static Object value(int type, int row, Random random) {
+        switch (type) {
+            case Types.INTEGER:
+                return random.nextInt();
+            case Types.BIGINT:
+                return random.nextLong();
+            case Types.DOUBLE:
+                return random.nextGaussian() * 1e6;
+            case Types.DECIMAL:
+                return BigDecimal.valueOf(random.nextInt(100000000), 2);
+            case Types.BOOLEAN:
+                return random.nextBoolean();
+            case Types.DATE:
+                return new Date(EPOCH_2015 + random.nextInt(3650) * DAY_MILLIS);
+            case Types.TIMESTAMP:
+                return new Timestamp(EPOCH_2015 + (random.nextLong() & 0xfffffffffL));
+            default:
+                return row % 3 == 0 ? text("greek", 24, random) : text("ascii", 24, random);
+        }
+    }
+
+    /**
+     * Make text of a kind.
+     *
+     * @param kind - "ascii" for plain ASCII, "greek" for mostly non-ASCII letters,
+     *     "control" for text with many characters that must be escaped.
+     * @param length - number of characters.
+     */
+    public static String text(String kind, int length, Random random) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            if ("ascii".equals(kind)) {
+                text.append((char) ('a' + random.nextInt(26)));
+                if (random.nextInt(8) == 0) {
+                    text.append(' ');
+                }
+            } else if ("greek".equals(kind)) {
+                text.append(GREEK.charAt(random.nextInt(GREEK.length())));
+            } else if ("control".equals(kind)) {
+                switch (random.nextInt(8)) {
+                    case 0: text.append('\t'); break;
+                    case 1: text.append('\n'); break;
+                    case 2: text.append('&'); break;
+                    case 3: text.append('<'); break;
+                    case 4: text.append('"'); break;
+                    case 5: text.append((char) 1); break;
+                    default: text.append((char) ('a' + random.nextInt(26)));
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown kind of text: " + kind);
+            }
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    /**
+     * Make a script like a database dump: mostly INSERT statements with quoted
+     * strings, some holding semicolons and doubled quotes, and a meta command
+     * now and then.
+     *
+     * @param statements - number of statements.
+     */
+    public static String script(int statements) {
+        Random random = new Random(statements);
+        StringBuilder script = new StringBuilder(statements * 96);
+        for (int i = 0; i < statements; i++) {
+            if (i % 500 == 0) {
+                script.append("\\echo off\n");
+            }
+            script.append("INSERT INTO PERSON (ID, NAME, NOTE) VALUES (").append(i).append(", '")
+                .append(text("ascii", 20, random)).append("', '");
+            switch (i % 4) {
+                case 0: script.append("a; b"); break;
+                case 1: script.append("O''Brien"); break;
+                case 2: script.append("\"quoted\""); break;
+                default: script.append(text("ascii", 30, random));
+            }
+            script.append("');\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Discards what is written to it, but keeps the count so the JIT can't
+     * leave the writing out.
+     */
+    public static final class NullOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.ResultSet;
+
+/**
+ * The code under benchmark. JMH doesn't take benchmarks in the default
+ * package and the tool's classes can't be imported from a named one, so the
+ * benchmarks call them through this interface, which BenchTargets in the
+ * default package implements. Get it with {@link #INSTANCE}.
+ */
+public interface Targets {
+
+    /** The implementation. */
+    Targets INSTANCE = Loader.load();
+
+    /**
+     * Write a result set in an output form as a complete document.
+     *
+     * @param form - the name of the form, as given to \f.
+     * @param rs - the result set, positioned before the first row.
+     * @param out - where to write.
+     */
+    void output(String form, ResultSet rs, OutputStream out) throws Exception;
+
+    /**
+     * Write a result set as an Excel workbook.
+     *
+     * @param rs - the result set, positioned before the first row.
+     * @param out - where to write.
+     * @param rowWindow - rows kept in memory before they are flushed.
+     */
+    void excel(ResultSet rs, OutputStream out, int rowWindow) throws Exception;
+
+    /**
+     * Write one element with the values as its attributes.
+     */
+    void writeAttributes(Writer out, String[] names, String[] values) throws Exception;
+
+    /**
+     * Write one element per value with the value as its text.
+     */
+    void writeTexts(Writer out, String[] values) throws Exception;
+
+    /**
+     * Split a script into statements.
+     *
+     * @return the number of statements.
+     */
+    long scanScript(Reader script) throws Exception;
+
+    /**
+     * Loads the implementation by name, as it can't be referred to.
+     */
+    final class Loader {
+
+        private Loader() {
+        }
+
+        static Targets load() {
+            try {
+                return (Targets) Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new IllegalStateException("BenchTargets is not on the class path", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Escaping in XmlWriter, through writeAttribute() and element text, over
+ * plain ASCII, Greek, and text full of characters that must be escaped.
+ * The score is batches of VALUES values written per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlWriterBenchmark {
+
+    /** Values in a batch. */
+    static final int VALUES = 100;
+
+    @Param({"ascii", "greek", "control"})
+    private String text;
+
+    @Param({"16", "256"})
+    private int length;
+
+    private String[] names;
+
+    private String[] values;
+
+    private final Writer out = new Writer() {
+        @Override
+        public void write(char[] chars, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(length);
+        names = new String[VALUES];
+        values = new String[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            names[i] = "A" + i;
+            values[i] = SyntheticData.text(text, length, random);
+        }
+    }
+
+    @Benchmark
+    public void attributes() throws Exception {
+        Targets.INSTANCE.writeAttributes(out, names, values);
+    }
+
+    @Benchmark
+    public void texts() throws Exception {
+        Targets.INSTANCE.writeTexts(out, values);
+    }
+}